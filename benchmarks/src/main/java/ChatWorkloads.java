@@ -0,0 +1,195 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import chat.benchmarks.Workload;
+
+/**
+ * The operations measured by the benchmarks in {@code chat.benchmarks}, built here because only
+ * code in the unnamed package can use the application's classes (see {@link Workload}).
+ *
+ * <ul>
+ *   <li>{@code decode-lines}: splitting a stream into text lines with {@link ProtocolDecoder}, as
+ *       {@link ClientHandler} and {@link ChatClient} do</li>
+ *   <li>{@code decode-frames}: the same for binary frames</li>
+ *   <li>{@code prefix}: building a text-protocol chat line from
+ *       {@link ChatUtils.MessageSenderInfo#messagePrefix()}, as {@link ChatClient#sendChat} does</li>
+ *   <li>{@code format}: rendering a received chat frame for display with {@link ChatMessage#formatChat}</li>
+ *   <li>{@code fanout}: {@link ChatServer#handleLine} of a chat line into a room of in-memory
+ *       recipients that discard what they receive</li>
+ *   <li>{@code roundtrip}: one {@link ChatClient} sending a message to an in-process
+ *       {@link ChatServer} over loopback and waiting for its own copy, in a room with the other clients</li>
+ * </ul>
+ */
+public final class ChatWorkloads {
+    // Bytes of input the decoders cycle through, so that it stays in cache like a socket buffer would
+    private static final int DECODE_INPUT_BYTES = 64 * 1024;
+
+    private ChatWorkloads() {
+    }
+
+    /**
+     * Sets up a workload; see {@link Workload#open}.
+     */
+    public static Workload open(String name, int clients, int messageSize, String mode) throws Exception {
+        String text = "x".repeat(messageSize);
+        return switch (name) {
+            case "decode-lines" -> decodeLines(text);
+            case "decode-frames" -> decodeFrames(text);
+            case "prefix" -> () -> (ChatUtils.MessageSenderInfo.USER.messagePrefix() + "alice: " + text).length();
+            case "format" -> () -> ChatMessage.formatChat(System.currentTimeMillis(), "alice", text).length();
+            case "fanout" -> fanOut(clients, text);
+            case "roundtrip" -> roundTrip(clients, text, mode);
+            default -> throw new IllegalArgumentException("Unknown workload: " + name);
+        };
+    }
+
+    private static Workload decodeLines(String text) {
+        byte[] line = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        do {
+            input.writeBytes(line);
+        } while (input.size() < DECODE_INPUT_BYTES);
+        ByteArrayInputStream in = new ByteArrayInputStream(input.toByteArray());
+        ProtocolDecoder decoder = new ProtocolDecoder();
+        return () -> {
+            String decoded = decoder.readLine(in);
+            if (decoded == null) {
+                in.reset();
+                decoded = decoder.readLine(in);
+            }
+            return decoded.length();
+        };
+    }
+
+    private static Workload decodeFrames(String text) {
+        SharedFrame frame = SharedFrame.encodeBinary(FrameCodec.CHAT, 7, System.currentTimeMillis(), 42, text, false);
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        do {
+            input.write(frame.array(), frame.offset(), frame.length());
+        } while (input.size() < DECODE_INPUT_BYTES);
+        frame.release();
+        ByteArrayInputStream in = new ByteArrayInputStream(input.toByteArray());
+        ProtocolDecoder decoder = new ProtocolDecoder();
+        return () -> {
+            FrameCodec.Frame decoded = decoder.readFrame(in);
+            if (decoded == null) {
+                in.reset();
+                decoded = decoder.readFrame(in);
+            }
+            return decoded.payload.length();
+        };
+    }
+
+    private static Workload fanOut(int clients, String text) {
+        ClientRegistry registry = new ClientRegistry();
+        for (int i = 0; i < clients; i++) {
+            ChatServer.join(registry, new DiscardingSession());
+        }
+        ChatSession[] sessions = registry.sessions();
+        ChatSession sender = sessions[0];
+        return new Workload() {
+            @Override
+            public long run() {
+                ChatServer.handleLine(registry, sender, text);
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                for (ChatSession session : sessions) {
+                    ChatServer.leave(registry, session);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts a {@link ChatServer} in this JVM, without a message log so that the disk stays out of
+     * the figures, and connects the clients to it; closing the workload stops the server.
+     */
+    private static Workload roundTrip(int clients, String text, String mode) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String[] serverArgs = {"--mode=" + mode, "--port=" + port, "--log-dir=off", "--metrics-interval-s=0"};
+        ChatServer server = ChatServer.start(ServerConfig.fromOptions(ChatUtils.parseOptions(serverArgs)));
+        String room = "bench";
+        CountDownLatch joined = new CountDownLatch(clients);
+        Semaphore echoed = new Semaphore(0);
+        List<ChatClient> members = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                boolean sender = i == 0;
+                ChatClient client = new ChatClient(InetAddress.getLoopbackAddress(), port, line -> {
+                    if (line.endsWith("You are now in room " + room + ".")) {
+                        joined.countDown();
+                    } else if (sender && line.endsWith(text)) {
+                        echoed.release();
+                    }
+                });
+                client.startClient(true);
+                client.sendMessage(ChatProtocol.JOIN_COMMAND + room);
+                members.add(client);
+            }
+            joined.await();
+        } catch (IOException | InterruptedException e) {
+            members.forEach(ChatClient::close);
+            server.stop();
+            throw e;
+        }
+        ChatClient sender = members.get(0);
+        return new Workload() {
+            @Override
+            public long run() throws InterruptedException {
+                sender.sendChat("bench", text);
+                echoed.acquire();
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                members.forEach(ChatClient::close);
+                server.stop();
+            }
+        };
+    }
+
+    /**
+     * A recipient that accepts every frame and immediately releases it, as if written instantly.
+     */
+    private static final class DiscardingSession extends AbstractChatSession {
+
+        DiscardingSession() {
+            // Frames never reach the queue, but joining a room marks it for the replay
+            super(new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        }
+
+        @Override
+        protected void enqueue(SharedFrame frame) {
+            frame.release();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public String describe() {
+            return "discarding session " + id();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Reports compression ratio and CPU cost for chat message payloads on a synthetic corpus.
+ *
+ * Usage:
+ * <pre>
+ *   java CompressionBenchmark [--messages=100000] [--seed=42]
+ * </pre>
+ *
+ * The corpus mixes short and long chat messages built from everyday words, links, legacy
+ * formatted lines and join/leave notices. Three strategies are compared:
+ * {@code deflate} compresses each message on its own, {@code deflate-dict} does the same seeded
+ * with {@link CompressionDictionary}, both at the {@link CompressionDictionary#THRESHOLD} cut-off,
+ * and {@code streaming} keeps one deflate context per connection and sync-flushes after each
+ * message. Streaming compresses best but its output depends on everything sent before on that
+ * connection, so a broadcast costs one compression per recipient instead of one in total. The
+ * ratio is compressed payload bytes over raw payload bytes; lower is better. A sweep over
+ * thresholds shows what the cut-off trades between ratio and CPU time.
+ */
+public class CompressionBenchmark {
+    private static final String[] WORDS = {
+            "the", "and", "you", "to", "a", "I", "it", "is", "that", "of", "in", "for", "on", "we",
+            "this", "what", "so", "have", "do", "but", "just", "be", "not", "with", "are", "can",
+            "was", "if", "all", "me", "my", "at", "get", "about", "now", "know", "like", "think",
+            "will", "there", "one", "yeah", "when", "good", "see", "out", "time", "going", "build",
+            "deploy", "server", "branch", "review", "merge", "test", "tests", "failing", "fixed",
+            "lunch", "coffee", "meeting", "later", "tomorrow", "today", "thanks", "sorry", "okay",
+            "sure", "maybe", "really", "actually", "already", "still", "again", "people", "right",
+            "should", "could", "would", "because", "working", "looks", "great", "nice", "lol",
+            "haha", "weekend", "morning", "afternoon", "minutes", "please", "check", "issue",
+            "ticket", "release", "version", "config", "logs", "error", "restart", "client"
+    };
+    private static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+
+    public static void main(String[] args) {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        int messageCount = Integer.parseInt(options.getOrDefault("messages", "100000"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        List<byte[]> corpus = buildCorpus(messageCount, new Random(seed));
+        long rawBytes = 0;
+        for (byte[] message : corpus) {
+            rawBytes += message.length;
+        }
+        System.out.println("Corpus: " + corpus.size() + " messages, " + rawBytes / corpus.size()
+                + " bytes on average");
+
+        // Run each strategy twice and report the second run, after the JIT has warmed up
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("deflate", corpus, rawBytes, report, new PerMessage(false, CompressionDictionary.THRESHOLD));
+            run("deflate-dict", corpus, rawBytes, report, new PerMessage(true, CompressionDictionary.THRESHOLD));
+            run("streaming", corpus, rawBytes, report, new Streaming());
+        }
+        System.out.println("deflate-dict by threshold:");
+        for (int threshold : new int[] {0, 16, 32, 64, 128}) {
+            run("  >= " + threshold, corpus, rawBytes, true, new PerMessage(true, threshold));
+        }
+        measureDecompression(corpus);
+    }
+
+    /**
+     * A compression strategy; returns the number of bytes sent for one payload.
+     */
+    private interface Strategy {
+        int compress(byte[] payload, byte[] output);
+    }
+
+    /**
+     * Compresses each payload on its own, sending it raw below the threshold or if that is smaller.
+     */
+    private static final class PerMessage implements Strategy {
+        private final boolean dictionary;
+        private final int threshold;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        PerMessage(boolean dictionary, int threshold) {
+            this.dictionary = dictionary;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public int compress(byte[] payload, byte[] output) {
+            if (payload.length < threshold || payload.length < 2) {
+                return payload.length;
+            }
+            int compressed;
+            if (dictionary) {
+                compressed = CompressionDictionary.compress(payload, 0, payload.length, output, 0);
+            } else {
+                deflater.reset();
+                deflater.setInput(payload);
+                deflater.finish();
+                compressed = deflater.deflate(output, 0, payload.length - 1);
+                if (!deflater.finished()) {
+                    compressed = -1;
+                }
+            }
+            return compressed > 0 ? compressed : payload.length;
+        }
+    }
+
+    /**
+     * One long-lived deflate context, as a single connection would keep, flushed after each message.
+     */
+    private static final class Streaming implements Strategy {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        @Override
+        public int compress(byte[] payload, byte[] output) {
+            deflater.setInput(payload);
+            int total = 0;
+            int written;
+            do {
+                written = deflater.deflate(output, total, output.length - total, Deflater.SYNC_FLUSH);
+                total += written;
+            } while (written > 0 && total < output.length);
+            return total;
+        }
+    }
+
+    private static void run(String name, List<byte[]> corpus, long rawBytes, boolean report, Strategy strategy) {
+        byte[] output = new byte[64 * 1024];
+        long sent = 0;
+        long start = System.nanoTime();
+        for (byte[] payload : corpus) {
+            sent += strategy.compress(payload, output);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.printf("%-14s ratio %.3f, %5d ns per message%n",
+                    name + ":", (double) sent / rawBytes, elapsed / corpus.size());
+        }
+    }
+
+    private static void measureDecompression(List<byte[]> corpus) {
+        List<byte[]> compressed = new ArrayList<>();
+        byte[] output = new byte[64 * 1024];
+        for (byte[] payload : corpus) {
+            int length = CompressionDictionary.compress(payload, 0, payload.length, output, 0);
+            if (length > 0) {
+                byte[] copy = new byte[length];
+                System.arraycopy(output, 0, copy, 0, length);
+                compressed.add(copy);
+            }
+        }
+        long checksum = 0;
+        long elapsed = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (byte[] payload : compressed) {
+                try {
+                    checksum += CompressionDictionary.decompress(payload, 0, payload.length, 1 << 20).length;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        System.out.println("deflate-dict decompression: " + elapsed / Math.max(1, compressed.size())
+                + " ns per message (" + checksum / 2 + " bytes restored)");
+    }
+
+    private static List<byte[]> buildCorpus(int count, Random random) {
+        List<byte[]> corpus = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = NAMES[random.nextInt(NAMES.length)];
+            int kind = random.nextInt(100);
+            String message;
+            if (kind < 5) {
+                message = name + " has left the chat.";
+            } else if (kind < 8) {
+                message = name + " has joined the chat.";
+            } else if (kind < 18) {
+                // A line relayed from a legacy client, timestamp and name included
+                message = String.format("[%02d:%02d:%02d] %s: %s", random.nextInt(24), random.nextInt(60),
+                        random.nextInt(60), name, sentence(random, 3 + random.nextInt(12)));
+            } else if (kind < 23) {
+                message = sentence(random, 2 + random.nextInt(6)) + " https://github.com/" + name
+                        + "/project/pull/" + random.nextInt(2000);
+            } else if (kind < 80) {
+                message = sentence(random, 1 + random.nextInt(10));
+            } else {
+                message = sentence(random, 10 + random.nextInt(40));
+            }
+            corpus.add(message.getBytes(StandardCharsets.UTF_8));
+        }
+        return corpus;
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        if (random.nextInt(3) == 0) {
+            sentence.append(random.nextBoolean() ? '?' : '!');
+        }
+        return sentence.toString();
+    }
+}
@@ -0,0 +1,111 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Measures heap allocated per broadcast when one line is fanned out to many recipients.
+ *
+ * Usage:
+ * <pre>
+ *   java FanOutBenchmark [--recipients=1000] [--message-size=100] [--broadcasts=20000] [--rooms=1]
+ * </pre>
+ *
+ * Two strategies are compared against in-memory recipients that discard what they receive:
+ * {@code per-recipient} encodes the line separately for every recipient, as broadcasts did before
+ * frames were shared, and {@code shared-frame} goes through {@link ChatServer#handleLine}, which
+ * encodes once into a pooled {@link SharedFrame}. Allocation is read from the JVM's per-thread
+ * allocation counter, so only the broadcasting thread is measured.
+ *
+ * With {@code --rooms=n} the recipients are spread evenly over n rooms and the shared-frame
+ * broadcasts are sent in one of them, so only that room's members receive them; the time per
+ * broadcast shows the work following the room size rather than the number of clients.
+ */
+public class FanOutBenchmark {
+
+    public static void main(String[] args) {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        int recipients = Integer.parseInt(options.getOrDefault("recipients", "1000"));
+        int messageSize = Integer.parseInt(options.getOrDefault("message-size", "100"));
+        int broadcasts = Integer.parseInt(options.getOrDefault("broadcasts", "20000"));
+        int rooms = Integer.parseInt(options.getOrDefault("rooms", "1"));
+
+        String line = "x".repeat(messageSize);
+        ClientRegistry clients = new ClientRegistry();
+        for (int i = 0; i < recipients; i++) {
+            DiscardingSession session = new DiscardingSession();
+            ChatServer.join(clients, session);
+            if (rooms > 1) {
+                ChatServer.handleLine(clients, session, ChatProtocol.JOIN_COMMAND + "room" + i % rooms);
+            }
+        }
+        ChatSession sender = clients.sessions()[0];
+
+        System.out.println("Recipients: " + recipients + " in " + rooms + " rooms, message size: "
+                + messageSize + " bytes");
+        // Run each strategy twice and report the second run, after the JIT has warmed up
+        for (int round = 0; round < 2; round++) {
+            long perRecipient = measure(broadcasts, () -> {
+                for (ChatSession client : clients.sessions()) {
+                    ((DiscardingSession) client).consume(
+                            ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+                }
+            });
+            long start = System.nanoTime();
+            long shared = measure(broadcasts, () -> ChatServer.handleLine(clients, sender, line));
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.println("per-recipient: " + perRecipient + " bytes allocated per broadcast");
+                System.out.println("shared-frame:  " + shared + " bytes allocated per broadcast, "
+                        + elapsed / broadcasts + " ns per broadcast to " + sender.getRoom().size() + " members");
+            }
+        }
+    }
+
+    private static long measure(int broadcasts, Runnable broadcast) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < broadcasts; i++) {
+            broadcast.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / broadcasts;
+    }
+
+    /**
+     * A recipient that accepts every frame and immediately releases it, as if written instantly.
+     */
+    private static final class DiscardingSession extends AbstractChatSession {
+        private long bytesReceived;
+
+        DiscardingSession() {
+            // Frames never reach the queue, but joining a room marks it for the replay
+            super(new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        }
+
+        @Override
+        protected void enqueue(SharedFrame frame) {
+            bytesReceived += frame.length();
+            frame.release();
+        }
+
+        void consume(ByteBuffer bytes) {
+            bytesReceived += bytes.remaining();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public String describe() {
+            return "discarding session " + id();
+        }
+    }
+}
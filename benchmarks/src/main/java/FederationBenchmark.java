@@ -0,0 +1,198 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts several federated {@link ChatServer} nodes as separate processes on localhost, checks
+ * that messages reach every member of a room on every node exactly once and nobody outside it,
+ * that a peer link without the nodes' shared secret is refused, and measures the latency of
+ * delivery within a node and across nodes. It exits with status 1 if any check fails, so a build
+ * can run it as an integration test.
+ *
+ * Usage:
+ * <pre>
+ *   java FederationBenchmark [--nodes=3] [--clients-per-node=20] [--messages=1000] [--warmup=1000]
+ *                            [--base-port=6000] [--mode=blocking]
+ * </pre>
+ *
+ * Node i serves clients on {@code base-port + i} and peers on {@code base-port + 100 + i}, and lists
+ * every other node as a peer, with a shared secret made up for the run. On each node one client stays in the lobby and the rest join the
+ * {@code bench} room; one member per node then sends messages carrying its clock. All clients
+ * live in this process, so their send and receive times come from the same clock. The lobby
+ * clients must receive nothing, which also shows that the room is only relayed where it has members.
+ * The first {@code warmup} messages from each sender are checked for delivery but left out of the
+ * latency figures, which would otherwise mostly measure the servers' JIT compilation.
+ */
+public class FederationBenchmark {
+    private static final String ROOM = "bench";
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int clientsPerNode = Integer.parseInt(options.getOrDefault("clients-per-node", "20"));
+        int messages = Integer.parseInt(options.getOrDefault("messages", "1000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1000"));
+        int basePort = Integer.parseInt(options.getOrDefault("base-port", "6000"));
+        String mode = options.getOrDefault("mode", "blocking");
+
+        String secret = UUID.randomUUID().toString();
+        List<Process> servers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+        for (int node = 0; node < nodes; node++) {
+            servers.add(startNode(node, nodes, basePort, mode, secret));
+        }
+        for (int node = 0; node < nodes; node++) {
+            awaitPort(basePort + node);
+        }
+
+        // Received message ids per client, and the latency of each delivery
+        List<Map<String, Boolean>> received = new ArrayList<>();
+        ConcurrentLinkedQueue<Long> localLatencies = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Long> remoteLatencies = new ConcurrentLinkedQueue<>();
+        AtomicLong duplicates = new AtomicLong();
+        AtomicLong lobbyDeliveries = new AtomicLong();
+        List<ChatClient> senders = new ArrayList<>();
+        for (int node = 0; node < nodes; node++) {
+            for (int i = 0; i < clientsPerNode; i++) {
+                boolean inLobby = i == clientsPerNode - 1;
+                int receiverNode = node;
+                Map<String, Boolean> seen = new ConcurrentHashMap<>();
+                ChatClient client = new ChatClient(InetAddress.getLoopbackAddress(), basePort + node, line -> {
+                    int marker = line.indexOf("bench ");
+                    if (marker < 0) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    if (inLobby) {
+                        lobbyDeliveries.incrementAndGet();
+                        return;
+                    }
+                    // "bench <node> <sequence> <sent nanos>"
+                    String[] fields = line.substring(marker).split(" ");
+                    if (seen.put(fields[1] + "/" + fields[2], Boolean.TRUE) != null) {
+                        duplicates.incrementAndGet();
+                    }
+                    if (Integer.parseInt(fields[2]) >= warmup) {
+                        long latency = now - Long.parseLong(fields[3]);
+                        (Integer.parseInt(fields[1]) == receiverNode ? localLatencies : remoteLatencies).add(latency);
+                    }
+                });
+                client.startClient(true);
+                client.login("n" + node + "c" + i);
+                if (!inLobby) {
+                    client.sendChat("n" + node + "c" + i, ChatProtocol.JOIN_COMMAND + ROOM);
+                    received.add(seen);
+                }
+                if (i == 0) {
+                    senders.add(client);
+                }
+            }
+        }
+        // Let the subscriptions reach every node
+        Thread.sleep(2000);
+        boolean intruderRefused = refusesIntruder(basePort + 100);
+
+        for (int sequence = 0; sequence < warmup + messages; sequence++) {
+            for (int node = 0; node < nodes; node++) {
+                senders.get(node).sendChat("n" + node + "c0", "bench " + node + " " + sequence + " " + System.nanoTime());
+            }
+            Thread.sleep(5);
+        }
+        Thread.sleep(2000);
+
+        int expected = nodes * (warmup + messages);
+        int complete = 0;
+        long missing = 0;
+        for (Map<String, Boolean> seen : received) {
+            if (seen.size() == expected) {
+                complete++;
+            }
+            missing += expected - seen.size();
+        }
+        System.out.println(nodes + " nodes, " + received.size() + " room members, " + expected + " messages each");
+        System.out.println("Members with every message: " + complete + " / " + received.size()
+                + " (" + missing + " missing, " + duplicates.get() + " duplicates)");
+        System.out.println("Deliveries to lobby clients: " + lobbyDeliveries.get() + " (expected 0)");
+        System.out.println("Peer link with a wrong secret: " + (intruderRefused ? "refused" : "NOT refused"));
+        report("Same-node latency: ", localLatencies);
+        report("Cross-node latency:", remoteLatencies);
+        System.exit(complete == received.size() && duplicates.get() == 0 && lobbyDeliveries.get() == 0
+                && intruderRefused ? 0 : 1);
+    }
+
+    /**
+     * Poses as a node that does not know the secret and returns true if the peer closes the link.
+     */
+    private static boolean refusesIntruder(int peerPort) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), peerPort)) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write((Federation.PEER_COMMAND + "999 1 00\n" + Federation.PEER_AUTH_COMMAND
+                    + "00\n").getBytes(StandardCharsets.UTF_8));
+            InputStream in = socket.getInputStream();
+            while (in.read() >= 0) {
+                // The peer's own handshake lines, until it closes the link
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    private static Process startNode(int node, int nodes, int basePort, String mode, String secret) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int other = 0; other < nodes; other++) {
+            if (other != node) {
+                peers.add("127.0.0.1:" + (basePort + 100 + other));
+            }
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "ChatServer",
+                "--mode=" + mode, "--port=" + (basePort + node), "--peer-port=" + (basePort + 100 + node),
+                "--peers=" + String.join(",", peers), "--peer-secret=" + secret, "--node-id=" + node, "--log-dir=off");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.to(new File(System.getProperty("java.io.tmpdir"),
+                "federation-node-" + node + ".log")));
+        return builder.start();
+    }
+
+    private static void awaitPort(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("No server listening on port " + port + " after "
+                            + START_TIMEOUT_MILLIS / 1000 + " s", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void report(String label, ConcurrentLinkedQueue<Long> latencies) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        if (sorted.length == 0) {
+            System.out.println(label + " no samples");
+            return;
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%s p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d samples)%n", label,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                sorted[sorted.length - 1] / 1e6, sorted.length);
+    }
+}
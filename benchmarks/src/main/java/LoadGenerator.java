@@ -0,0 +1,811 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Headless load tool for the chat server. Runs entirely on loopback without opening any windows.
+ *
+ * Usage:
+ * <pre>
+ *   java LoadGenerator [--scenario=idle|reconnect-storm|chat|host-startup|flood|file-transfer] [--host=127.0.0.1] [--port=5000] [--clients=1000]
+ *                      [--hold-seconds=10] [--rounds=3] [--messages=20] [--embedded=blocking|virtual|nio]
+ *                      [--backlog=n] [--acceptors=n] [--reuse-port]
+ *                      [--rooms=1] [--senders=n] [--rate=1000] [--seconds=30] [--warmup-seconds=5]
+ *                      [--message-size=16-512] [--size-distribution=uniform|log] [--client-threads=virtual|platform]
+ *                      [--flooders=1] [--max-line-bytes=n] [--client-rate-messages=n] [--server-rate-messages=n] ...
+ *                      [--file-mb=256] [--file-rate=bytes/s] [--transfer-rate-bytes=n]
+ * </pre>
+ *
+ * The {@code idle} scenario opens the requested number of {@link ChatClient} connections, each
+ * reading on a virtual thread, holds them open and reports how many were established together
+ * with the JVM's platform thread count and heap used per connection. With {@code --embedded}
+ * the server runs inside this JVM, so those numbers cover both ends of every connection.
+ *
+ * The {@code reconnect-storm} scenario models a server restart: it connects the clients, drops
+ * them all, and has every one of them reconnect at the same instant, for the given number of
+ * rounds. It reports how long the server took to re-admit all of them, meaning connected and
+ * answered the protocol handshake, the spread of per-client admission times, and failures such
+ * as connection timeouts caused by an overflowing accept queue. Once all are back, one of them
+ * sends {@code --messages} numbered messages, and it checks that every client receives all of them
+ * in order. The listener options are passed on to an embedded server, so their effect can be
+ * compared directly.
+ *
+ * The {@code chat} scenario spreads the clients over rooms and has the first {@code senders} of
+ * them (all by default) send messages in turn at a fixed total rate. Message sizes are fixed, or
+ * drawn from a range uniformly or log-uniformly, which gives mostly short messages with the odd
+ * long one as in real chat. Every message carries the time it was due to be sent, so each receiver
+ * computes its delivery latency against the same clock. Using the scheduled rather than the
+ * actual send time means a stall in the generator or the server counts against latency instead
+ * of quietly lowering the rate. Messages sent during the warmup are delivered but not measured.
+ * It reports the rate achieved, messages delivered against those expected, and latency percentiles.
+ *
+ * The {@code host-startup} scenario measures what hosting a chat from the GUI costs: for each of
+ * the given number of rounds it starts a server in this JVM, connects a client to it, and sends a
+ * message, timing how long until the server is listening and until the client receives its own
+ * message back. Each round is run with the client connected in memory, as the host's own window
+ * is, and over a loopback socket for comparison, and the server is stopped in between.
+ *
+ * The {@code flood} scenario has the given number of flooders write lines to the server as fast
+ * as their sockets allow, while one well-behaved client sends at {@code --rate} (10 by default).
+ * A listener in the same room reports how many flood lines a second got through and the delivery
+ * latency of the well-behaved client's messages; the rate limit options are passed on to an
+ * embedded server. Finally it sends a line longer than {@code --max-line-bytes} and checks that
+ * the server closes the connection.
+ *
+ * The {@code file-transfer} scenario has one client share a generated file of {@code --file-mb}
+ * megabytes and a second client download it, and reports the throughput of each direction and
+ * whether the downloaded file matches. Meanwhile the client at the other end of the transfer
+ * sends chat at {@code --rate} (20 by default), and the latency of those messages shows whether
+ * they were held up behind the file; each is counted in the phase it was sent in, whenever it
+ * arrives. {@code --file-rate} caps the transfer as its sender would.
+ *
+ * The {@code reconnect-storm}, {@code chat} and {@code file-transfer} scenarios exit with status 1
+ * if a client was not re-admitted, a message went missing or arrived out of order, or the file
+ * arrived damaged, so that a script or the build's {@code integration} profile can run them as checks.
+ *
+ * A single source/destination address pair on Linux only has ~28k ephemeral ports, so
+ * loopback clients are spread across 127.0.0.1, 127.0.0.2, ... in blocks of 20,000.
+ * Holding 100k connections also needs {@code ulimit -n} raised above 200,000 when embedded.
+ */
+public class LoadGenerator {
+    private static final int CLIENTS_PER_LOOPBACK_ADDRESS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        String scenario = options.getOrDefault("scenario", "idle");
+        switch (scenario) {
+            case "idle" -> runIdle(options);
+            case "reconnect-storm" -> runReconnectStorm(options);
+            case "chat" -> runChat(options);
+            case "host-startup" -> runHostStartup(options);
+            case "flood" -> runFlood(options);
+            case "file-transfer" -> runFileTransfer(options);
+            default -> throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+    }
+
+    /**
+     * Opens many connections that never send anything and measures what holding them costs.
+     */
+    private static void runIdle(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int holdSeconds = Integer.parseInt(options.getOrDefault("hold-seconds", "10"));
+
+        String embeddedMode = options.get("embedded");
+        if (embeddedMode != null) {
+            startEmbeddedServer(options, port);
+        }
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long start = System.nanoTime();
+
+        List<ChatClient> clients = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                ChatClient client = new ChatClient(targetAddress(host, i), port, line -> { });
+                client.startClient(true);
+                clients.add(client);
+            } catch (IOException e) {
+                System.out.println("Connection " + i + " failed: " + e.getMessage());
+                break;
+            }
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Give the server a moment to finish setting up handlers for the tail of the accept queue
+        Thread.sleep(1000);
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.println("Connected clients:        " + clients.size() + " / " + clientCount
+                + " in " + connectMillis + " ms");
+        System.out.println("Platform threads:         " + threadsBefore + " -> " + threadsAfter);
+        if (!clients.isEmpty()) {
+            System.out.println("Heap per connection:      " + (heapAfter - heapBefore) / clients.size() + " bytes"
+                    + (embeddedMode != null ? " (client and server side)" : " (client side)"));
+        }
+
+        Thread.sleep(holdSeconds * 1000L);
+        System.exit(0);
+    }
+
+    /**
+     * Connects clients, then repeatedly drops them all and measures how long it takes the server
+     * to re-admit every one of them when they all reconnect at once.
+     */
+    private static void runReconnectStorm(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+        int messages = Integer.parseInt(options.getOrDefault("messages", "20"));
+        if (options.containsKey("embedded")) {
+            startEmbeddedServer(options, port);
+        }
+
+        ChatClient[] clients = new ChatClient[clientCount];
+        boolean failed = false;
+        for (int round = 0; round <= rounds; round++) {
+            for (ChatClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            // Give the server a moment to notice the disconnects, as it would after a restart
+            Thread.sleep(500);
+
+            long[] admitNanos = new long[clientCount];
+            AtomicInteger failures = new AtomicInteger();
+            // The next message number each client expects this round, or -1 once one arrived out of order
+            AtomicIntegerArray nextMessage = new AtomicIntegerArray(clientCount);
+            String marker = " rs " + round + " ";
+            CountDownLatch ready = new CountDownLatch(clientCount);
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[clientCount];
+            for (int i = 0; i < clientCount; i++) {
+                int index = i;
+                threads[i] = Thread.ofVirtual().start(() -> {
+                    ready.countDown();
+                    try {
+                        go.await();
+                        long start = System.nanoTime();
+                        ChatClient client = new ChatClient(targetAddress(host, index), port, line -> {
+                            // "... rs <round> <number>"; rounds before this one may be replayed from the history
+                            int at = line.indexOf(marker);
+                            if (at >= 0) {
+                                int number = Integer.parseInt(line.substring(at + marker.length()).trim());
+                                int expected = nextMessage.get(index);
+                                nextMessage.set(index, expected >= 0 && number == expected ? expected + 1 : -1);
+                            }
+                        });
+                        client.startClient(true);
+                        clients[index] = client;
+                        admitNanos[index] = System.nanoTime() - start;
+                    } catch (IOException | InterruptedException e) {
+                        clients[index] = null;
+                        admitNanos[index] = -1;
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            long[] admitted = Arrays.stream(admitNanos).filter(nanos -> nanos >= 0).sorted().toArray();
+            int inOrder = checkOrder(clients, nextMessage, "storm", marker, messages);
+            // Round 0 only connects the clients for the first time
+            if (round > 0 || admitted.length < clientCount || inOrder < admitted.length) {
+                System.out.printf("Round %d: re-admitted %d / %d clients in %d ms; per client p50 %.1f ms,"
+                                + " p99 %.1f ms, max %.1f ms; %d failed; %d / %d received %d messages in order%n",
+                        round, admitted.length, clientCount, elapsedMillis, percentile(admitted, 0.50),
+                        percentile(admitted, 0.99), percentile(admitted, 1.0), failures.get(),
+                        inOrder, admitted.length, messages);
+            }
+            failed |= admitted.length < clientCount || inOrder < admitted.length;
+        }
+        if (failed) {
+            System.out.println("FAILED: not every client was re-admitted and received every message in order");
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Sends numbered messages from the first connected client and waits until every connected
+     * client has received them all, giving up once deliveries stop for a few seconds.
+     *
+     * @param nextMessage Updated by each client's listener as the messages arrive
+     * @return The number of connected clients that received every message in order
+     */
+    private static int checkOrder(ChatClient[] clients, AtomicIntegerArray nextMessage, String username,
+                                  String marker, int messages) throws InterruptedException {
+        ChatClient sender = Arrays.stream(clients).filter(client -> client != null).findFirst().orElse(null);
+        if (sender == null) {
+            return 0;
+        }
+        for (int i = 0; i < messages; i++) {
+            sender.sendChat(username, marker.trim() + " " + i);
+        }
+        long lastProgress = System.nanoTime();
+        long lastTotal = -1;
+        while (System.nanoTime() - lastProgress < TimeUnit.SECONDS.toNanos(5)) {
+            long total = 0;
+            int done = 0;
+            int connected = 0;
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] != null) {
+                    connected++;
+                    int next = nextMessage.get(i);
+                    total += Math.max(0, next);
+                    done += next < 0 || next == messages ? 1 : 0;
+                }
+            }
+            if (done == connected) {
+                break;
+            }
+            if (total != lastTotal) {
+                lastTotal = total;
+                lastProgress = System.nanoTime();
+            }
+            Thread.sleep(50);
+        }
+        int inOrder = 0;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != null && nextMessage.get(i) == messages) {
+                inOrder++;
+            }
+        }
+        return inOrder;
+    }
+
+    /**
+     * Sends messages at a fixed rate between clients in rooms and measures delivery latency.
+     */
+    private static void runChat(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int roomCount = Math.max(1, Math.min(clientCount, Integer.parseInt(options.getOrDefault("rooms", "1"))));
+        int senderCount = Math.min(clientCount, Integer.parseInt(options.getOrDefault("senders", String.valueOf(clientCount))));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup-seconds", "5"));
+        MessageSizes sizes = new MessageSizes(options.getOrDefault("message-size", "16-512"),
+                options.getOrDefault("size-distribution", "uniform"));
+        boolean virtualThreads = !options.getOrDefault("client-threads", "virtual").equals("platform");
+        if (options.containsKey("embedded")) {
+            startEmbeddedServer(options, port);
+        }
+
+        // Messages sent before this are part of the warmup; set once every client is in its room
+        long[] measureFrom = {Long.MAX_VALUE};
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder delivered = new LongAdder();
+        ChatClient[] clients = new ChatClient[clientCount];
+        int[] roomSizes = new int[roomCount];
+        CountDownLatch joined = new CountDownLatch(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            String room = "load-" + i % roomCount;
+            roomSizes[i % roomCount]++;
+            ChatClient client = new ChatClient(targetAddress(host, i), port, line -> {
+                // "... lg <scheduled nanos> <padding>"
+                int marker = line.indexOf(" lg ");
+                if (marker < 0) {
+                    if (line.endsWith("You are now in room " + room + ".")) {
+                        joined.countDown();
+                    }
+                    return;
+                }
+                int end = line.indexOf(' ', marker + 4);
+                long scheduled = Long.parseLong(line.substring(marker + 4, end < 0 ? line.length() : end));
+                if (scheduled - measureFrom[0] >= 0) {
+                    latency.recordSince(scheduled);
+                    delivered.increment();
+                }
+            });
+            client.startClient(virtualThreads);
+            client.sendMessage(ChatProtocol.JOIN_COMMAND + room);
+            clients[i] = client;
+        }
+        if (!joined.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (clientCount - joined.getCount()) + " / " + clientCount + " clients joined their rooms");
+        }
+        System.out.printf("Clients: %d in %d rooms, %d senders, %.0f msgs/s for %d s after %d s of warmup, message size %s%n",
+                clientCount, roomCount, senderCount, rate, seconds, warmupSeconds, sizes);
+
+        // One pacing thread sends every message at its scheduled time, round-robin over the senders
+        long periodNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long stop = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        measureFrom[0] = measureStart;
+        Random random = new Random(42);
+        long sent = 0;
+        long expected = 0;
+        for (long k = 0; ; k++) {
+            long scheduled = start + k * periodNanos;
+            if (scheduled - stop >= 0) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int sender = (int) (k % senderCount);
+            String text = "lg " + scheduled + " ";
+            clients[sender].sendChat("load" + sender, text + "x".repeat(Math.max(0, sizes.next(random) - text.length())));
+            if (scheduled - measureStart >= 0) {
+                sent++;
+                expected += roomSizes[sender % roomCount];
+            }
+        }
+        long sendNanos = System.nanoTime() - measureStart;
+
+        // Wait for the tail to arrive, giving up once deliveries stop for a few seconds
+        long lastCount = -1;
+        long lastProgress = System.nanoTime();
+        while (delivered.sum() < expected && System.nanoTime() - lastProgress < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(100);
+            long count = delivered.sum();
+            if (count != lastCount) {
+                lastCount = count;
+                lastProgress = System.nanoTime();
+            }
+        }
+        double deliverySeconds = (System.nanoTime() - measureStart) / 1e9;
+
+        LatencyHistogram.Snapshot latencies = latency.snapshot();
+        System.out.printf("Sent:      %d messages (%.1f msgs/s)%n", sent, sent / (sendNanos / 1e9));
+        System.out.printf("Delivered: %d / %d (%.1f msgs/s), %d missing%n", delivered.sum(), expected,
+                delivered.sum() / deliverySeconds, expected - delivered.sum());
+        System.out.printf("Latency:   p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                latencies.percentile(0.5) / 1e6, latencies.percentile(0.99) / 1e6,
+                latencies.percentile(0.999) / 1e6, latencies.max() / 1e6);
+        if (delivered.sum() != expected) {
+            System.out.println("FAILED: " + (expected - delivered.sum()) + " messages were not delivered");
+        }
+        System.exit(delivered.sum() == expected ? 0 : 1);
+    }
+
+    /**
+     * Draws message sizes in bytes: a fixed size, or a {@code min-max} range sampled uniformly or
+     * log-uniformly.
+     */
+    private static final class MessageSizes {
+        private final int min;
+        private final int max;
+        private final boolean logarithmic;
+
+        MessageSizes(String range, String distribution) {
+            int dash = range.indexOf('-');
+            this.min = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            this.max = dash < 0 ? min : Integer.parseInt(range.substring(dash + 1));
+            if (min < 1 || max < min) {
+                throw new IllegalArgumentException("Message size must be n or min-max with 1 <= min <= max: " + range);
+            }
+            this.logarithmic = switch (distribution) {
+                case "uniform" -> false;
+                case "log" -> true;
+                default -> throw new IllegalArgumentException("Unknown size distribution: " + distribution);
+            };
+        }
+
+        int next(Random random) {
+            if (min == max) {
+                return min;
+            }
+            if (logarithmic) {
+                return (int) Math.round(Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min))));
+            }
+            return min + random.nextInt(max - min + 1);
+        }
+
+        @Override
+        public String toString() {
+            return min == max ? min + " bytes" : min + "-" + max + " bytes (" + (logarithmic ? "log" : "uniform") + ")";
+        }
+    }
+
+    private static double percentile(long[] sortedNanos, double fraction) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = Math.min(sortedNanos.length - 1, (int) (sortedNanos.length * fraction));
+        return sortedNanos[index] / 1e6;
+    }
+
+    /**
+     * Times starting a server and getting a first message through it, in memory and over loopback.
+     */
+    private static void runHostStartup(Map<String, String> options) throws Exception {
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        int rounds = Math.max(2, Integer.parseInt(options.getOrDefault("rounds", "10")));
+        String[] serverArgs = {"--mode=" + options.getOrDefault("embedded", "virtual"), "--port=" + port,
+                "--log-dir=off", "--metrics-interval-s=0"};
+        long[][] readyNanos = new long[2][rounds];
+        long[][] firstMessageNanos = new long[2][rounds];
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < 2; i++) {
+                // Alternate which goes first, so that neither always runs on a warmer JVM
+                int transport = (round + i) % 2;
+                long start = System.nanoTime();
+                ChatServer server = ChatServer.start(ServerConfig.fromOptions(ChatUtils.parseOptions(serverArgs)));
+                readyNanos[transport][round] = System.nanoTime() - start;
+                CountDownLatch delivered = new CountDownLatch(1);
+                Consumer<String> onMessage = line -> {
+                    if (line.endsWith("host: hello")) {
+                        delivered.countDown();
+                    }
+                };
+                ChatClient client = transport == 0 ? new ChatClient(server::connectLocal, onMessage)
+                        : new ChatClient(InetAddress.getLoopbackAddress(), port, onMessage);
+                client.startClient(true);
+                client.login("host");
+                client.sendChat("host", "hello");
+                delivered.await();
+                firstMessageNanos[transport][round] = System.nanoTime() - start;
+                client.close();
+                server.stop();
+            }
+        }
+        // The very first round includes class loading and runs interpreted, like a real first click
+        System.out.printf("First round (in-memory): listening after %.1f ms, first message after %.1f ms%n",
+                readyNanos[0][0] / 1e6, firstMessageNanos[0][0] / 1e6);
+        for (int transport = 0; transport < 2; transport++) {
+            long[] ready = Arrays.copyOfRange(readyNanos[transport], 1, rounds);
+            long[] firstMessage = Arrays.copyOfRange(firstMessageNanos[transport], 1, rounds);
+            Arrays.sort(ready);
+            Arrays.sort(firstMessage);
+            System.out.printf("%-9s later rounds: listening after p50 %.2f ms, first message after p50 %.2f ms, max %.2f ms%n",
+                    transport == 0 ? "In-memory" : "Loopback", percentile(ready, 0.5),
+                    percentile(firstMessage, 0.5), percentile(firstMessage, 1.0));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Floods the server from raw sockets and measures what gets through, and what a well-behaved
+     * client sending alongside the flood sees.
+     */
+    private static void runFlood(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        int flooderCount = Integer.parseInt(options.getOrDefault("flooders", "1"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "10"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int maxLineBytes = Integer.parseInt(options.getOrDefault("max-line-bytes",
+                String.valueOf(ServerConfig.DEFAULT_MAX_MESSAGE_BYTES)));
+        if (options.containsKey("embedded")) {
+            startEmbeddedServer(options, port);
+        }
+
+        LongAdder floodDelivered = new LongAdder();
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder delivered = new LongAdder();
+        CountDownLatch listening = new CountDownLatch(1);
+        ChatClient listener = new ChatClient(targetAddress(host, 0), port, line -> {
+            if (line.endsWith("flood")) {
+                floodDelivered.increment();
+                return;
+            }
+            int marker = line.indexOf(" lg ");
+            if (marker >= 0) {
+                latency.recordSince(Long.parseLong(line.substring(marker + 4)));
+                delivered.increment();
+            } else if (line.contains("You are now in room")) {
+                listening.countDown();
+            }
+        });
+        listener.startClient(true);
+        listener.login("listener");
+        listening.await(10, TimeUnit.SECONDS);
+        ChatClient sender = new ChatClient(targetAddress(host, 1), port, line -> { });
+        sender.startClient(true);
+        sender.login("paced");
+
+        long stop = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        byte[] floodLine = "flood\n".getBytes(StandardCharsets.UTF_8);
+        LongAdder floodSent = new LongAdder();
+        List<Socket> flooders = new ArrayList<>();
+        for (int i = 0; i < flooderCount; i++) {
+            Socket socket = new Socket(targetAddress(host, 2 + i), port);
+            flooders.add(socket);
+            // Drain what the server sends back, so that only the flood itself is being measured
+            Thread.ofVirtual().start(() -> discardInput(socket));
+            Thread.ofPlatform().daemon().start(() -> {
+                try (OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                    while (System.nanoTime() - stop < 0) {
+                        out.write(floodLine);
+                        floodSent.increment();
+                    }
+                } catch (IOException e) {
+                    // Disconnected by the server
+                }
+            });
+        }
+
+        long periodNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long sent = 0;
+        for (long scheduled = start; scheduled - stop < 0; scheduled += periodNanos) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sender.sendChat("paced", "lg " + scheduled);
+            sent++;
+        }
+        long floodNanos = System.nanoTime() - start;
+        long floodCount = floodDelivered.sum();
+        for (Socket socket : flooders) {
+            socket.close();
+        }
+        // Give the paced messages queued behind the flood a moment to arrive
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (delivered.sum() < sent && System.nanoTime() - deadline < 0) {
+            Thread.sleep(100);
+        }
+
+        LatencyHistogram.Snapshot latencies = latency.snapshot();
+        System.out.printf("Flood:     %d flooders wrote %.0f lines/s, %.0f lines/s delivered%n", flooderCount,
+                floodSent.sum() / (floodNanos / 1e9), floodCount / (floodNanos / 1e9));
+        System.out.printf("Paced:     %d / %d delivered, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                delivered.sum(), sent, latencies.percentile(0.5) / 1e6, latencies.percentile(0.99) / 1e6,
+                latencies.max() / 1e6);
+
+        try (Socket socket = new Socket(targetAddress(host, 2), port)) {
+            socket.setSoTimeout(5000);
+            long oversizedStart = System.nanoTime();
+            Thread.ofVirtual().start(() -> {
+                try {
+                    socket.getOutputStream().write(("x".repeat(maxLineBytes + 1) + "\n").getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    // Closed by the server mid-line
+                }
+            });
+            boolean closed = discardInput(socket);
+            System.out.printf("Oversized: line of %d bytes %s%n", maxLineBytes + 1, closed
+                    ? String.format("disconnected after %.1f ms", (System.nanoTime() - oversizedStart) / 1e6)
+                    : "not disconnected within 5 s");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Uploads a file and downloads it again through the server, with chat going the other way.
+     */
+    private static void runFileTransfer(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        long fileBytes = Long.parseLong(options.getOrDefault("file-mb", "256")) * 1024 * 1024;
+        long fileRate = Long.parseLong(options.getOrDefault("file-rate", "0"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "20"));
+        if (options.containsKey("embedded")) {
+            startEmbeddedServer(options, port);
+        }
+        Path directory = Files.createTempDirectory("chat-file-transfer");
+        Path source = directory.resolve("transfer.bin");
+        Path downloads = Files.createDirectory(directory.resolve("downloads"));
+        long checksum = writeRandomFile(source, fileBytes);
+
+        // Chat latency during the upload and during the download, by the phase a message was sent in;
+        // messages of an earlier run, replayed from the room's history, carry another marker
+        LatencyHistogram[] latency = {new LatencyHistogram(), new LatencyHistogram()};
+        String chatMarker = "lg" + Long.toHexString(new Random().nextLong());
+        AtomicLong sharedId = new AtomicLong();
+        AtomicLong sharedAt = new AtomicLong();
+        AtomicLong savedAt = new AtomicLong();
+        CountDownLatch listening = new CountDownLatch(1);
+        CountDownLatch shared = new CountDownLatch(1);
+        CountDownLatch saved = new CountDownLatch(1);
+        ChatClient downloader = new ChatClient(targetAddress(host, 0), port, line -> {
+            // "... <chat marker> <phase> <scheduled nanos>"
+            int marker = line.indexOf(" " + chatMarker + " ");
+            int get = line.indexOf(ChatClient.GET_FILE_COMMAND);
+            if (marker >= 0) {
+                String[] fields = line.substring(marker + chatMarker.length() + 2).split(" ");
+                latency[Integer.parseInt(fields[0])].recordSince(Long.parseLong(fields[1]));
+            } else if (line.contains("You are now in room")) {
+                listening.countDown();
+            } else if (get >= 0) {
+                sharedAt.set(System.nanoTime());
+                sharedId.set(Long.parseLong(line.substring(get + ChatClient.GET_FILE_COMMAND.length()).split(" ")[0]));
+                shared.countDown();
+            } else if (line.contains("Saved ")) {
+                savedAt.set(System.nanoTime());
+                saved.countDown();
+            } else if (line.contains("File transfer failed")) {
+                System.out.println(line);
+            }
+        });
+        downloader.startClient(true);
+        downloader.login("downloader");
+        listening.await(10, TimeUnit.SECONDS);
+        ChatClient uploader = new ChatClient(targetAddress(host, 1), port, line -> {
+            if (line.contains("File transfer failed")) {
+                System.out.println(line);
+            }
+        });
+        uploader.startClient(true);
+        uploader.login("uploader");
+        if (!uploader.usesBinaryFrames()) {
+            throw new IllegalStateException("The server did not accept binary frames, which file transfers need");
+        }
+
+        long uploadStart = System.nanoTime();
+        uploader.sendFile(source, fileRate);
+        long uploadChat = sendPacedUntil(uploader, "uploader", chatMarker + " 0", rate, shared);
+        long uploadNanos = sharedAt.get() - uploadStart;
+
+        long downloadStart = System.nanoTime();
+        downloader.receiveFile(sharedId.get(), downloads);
+        long downloadChat = sendPacedUntil(uploader, "uploader", chatMarker + " 1", rate, saved);
+        long downloadNanos = savedAt.get() - downloadStart;
+        // Let the last chat messages arrive
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((latency[0].snapshot().count() < uploadChat || latency[1].snapshot().count() < downloadChat)
+                && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        LatencyHistogram.Snapshot uploadLatency = latency[0].snapshot();
+        LatencyHistogram.Snapshot downloadLatency = latency[1].snapshot();
+
+        System.out.printf("Upload:   %d MB in %.2f s, %.1f MB/s; chat %d / %d delivered meanwhile, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                fileBytes >> 20, uploadNanos / 1e9, fileBytes / 1048576.0 / (uploadNanos / 1e9), uploadLatency.count(), uploadChat,
+                uploadLatency.percentile(0.5) / 1e6, uploadLatency.percentile(0.99) / 1e6, uploadLatency.max() / 1e6);
+        System.out.printf("Download: %d MB in %.2f s, %.1f MB/s; chat %d / %d delivered meanwhile, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                fileBytes >> 20, downloadNanos / 1e9, fileBytes / 1048576.0 / (downloadNanos / 1e9), downloadLatency.count(), downloadChat,
+                downloadLatency.percentile(0.5) / 1e6, downloadLatency.percentile(0.99) / 1e6, downloadLatency.max() / 1e6);
+        Path received = downloads.resolve(source.getFileName());
+        boolean matches = Files.size(received) == fileBytes && checksum(received) == checksum;
+        System.out.println("Verified: " + (matches ? "downloaded file matches the original" : "downloaded file DIFFERS from the original"));
+        boolean chatDelivered = uploadLatency.count() == uploadChat && downloadLatency.count() == downloadChat;
+        if (!chatDelivered) {
+            System.out.println("FAILED: chat sent alongside the transfer was not all delivered");
+        }
+
+        Files.delete(received);
+        Files.delete(downloads);
+        Files.delete(source);
+        Files.delete(directory);
+        System.exit(matches && chatDelivered ? 0 : 1);
+    }
+
+    /**
+     * Sends chat messages, each a prefix and its scheduled time, at a fixed rate until the latch opens.
+     *
+     * @return The number of messages sent
+     */
+    private static long sendPacedUntil(ChatClient sender, String username, String prefix, double rate, CountDownLatch until)
+            throws InterruptedException {
+        long periodNanos = (long) (1e9 / rate);
+        long sent = 0;
+        for (long scheduled = System.nanoTime(); !until.await(Math.max(0, scheduled - System.nanoTime()), TimeUnit.NANOSECONDS);
+                scheduled += periodNanos) {
+            sender.sendChat(username, prefix + " " + scheduled);
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Writes a file of pseudo-random bytes, which do not compress, and returns its CRC-32.
+     */
+    private static long writeRandomFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(42);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                int length = (int) Math.min(block.length, size - written);
+                crc.update(block, 0, length);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) > 0) {
+                crc.update(buffer.flip());
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads and discards everything until the server closes the connection.
+     *
+     * @return false if nothing arrived for the socket's read timeout first
+     */
+    private static boolean discardInput(Socket socket) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = socket.getInputStream();
+            while (in.read(buffer) != -1) {
+                // Discard
+            }
+            return true;
+        } catch (java.net.SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // Reset by the server, or closed by us
+            return true;
+        }
+    }
+
+    /**
+     * Starts {@link ChatServer} in this JVM with the given mode and the listener and queue
+     * options passed on, and returns once it is listening.
+     */
+    private static void startEmbeddedServer(Map<String, String> options, int port)
+            throws IOException {
+        List<String> serverArgs = new ArrayList<>(List.of("--mode=" + options.get("embedded"), "--port=" + port));
+        for (String option : List.of("backlog", "acceptors", "reuse-port", "tcp-nodelay", "send-buffer", "receive-buffer",
+                "queue-capacity", "overflow", "flush-delay-us", "compression", "log-dir", "history",
+                "max-line-bytes", "client-rate-messages", "client-rate-bytes", "server-rate-messages", "server-rate-bytes",
+                "rate-burst-ms", "rate-limit", "transfer-rate-bytes", "max-file-mb")) {
+            if (options.containsKey(option)) {
+                serverArgs.add("--" + option + "=" + options.get(option));
+            }
+        }
+        ChatServer.start(ServerConfig.fromOptions(ChatUtils.parseOptions(serverArgs.toArray(new String[0]))));
+    }
+
+    private static InetAddress targetAddress(String host, int clientIndex) throws IOException {
+        InetAddress address = InetAddress.getByName(host);
+        if (!address.isLoopbackAddress() || address.getAddress().length != 4) {
+            return address;
+        }
+        // The server listens on all interfaces, so any 127.x address reaches it
+        int block = clientIndex / CLIENTS_PER_LOOPBACK_ADDRESS;
+        return InetAddress.getByName("127.0.0." + (1 + block));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link MessageLog} append throughput, then reads the log back to verify it.
+ *
+ * Usage:
+ * <pre>
+ *   java MessageLogBenchmark [--messages=1000000] [--message-size=100] [--threads=4]
+ *                            [--segment-mb=64] [--flush-ms=20] [--dir=&lt;new directory&gt;]
+ *   java MessageLogBenchmark --verify --dir=chat-log
+ * </pre>
+ *
+ * Appending threads stand in for client reader threads broadcasting concurrently. The read-back
+ * checks that offsets are contiguous and every record decodes. With {@code --verify} nothing is
+ * appended: an existing log, for example one left behind by a killed server, is only checked.
+ */
+public class MessageLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        int messages = Integer.parseInt(options.getOrDefault("messages", "1000000"));
+        int messageSize = Integer.parseInt(options.getOrDefault("message-size", "100"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int segmentBytes = Integer.parseInt(options.getOrDefault("segment-mb", "64")) * 1024 * 1024;
+        long flushMillis = Long.parseLong(options.getOrDefault("flush-ms", "20"));
+        boolean verifyOnly = options.containsKey("verify");
+        Path directory = options.containsKey("dir") ? Path.of(options.get("dir"))
+                : Files.createTempDirectory("message-log-benchmark");
+
+        try (MessageLog log = new MessageLog(directory, segmentBytes, Long.MAX_VALUE, Long.MAX_VALUE, flushMillis)) {
+            if (!verifyOnly) {
+                append(log, messages, messageSize, threads);
+            }
+            verify(log);
+        }
+    }
+
+    private static void append(MessageLog log, int messages, int messageSize, int threadCount)
+            throws InterruptedException {
+        String body = "x".repeat(messageSize);
+        AtomicLong remaining = new AtomicLong(messages);
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < threadCount; i++) {
+            long senderId = i + 1;
+            threads[i] = Thread.ofPlatform().start(() -> {
+                while (remaining.getAndDecrement() > 0) {
+                    log.append(System.currentTimeMillis(), FrameCodec.CHAT, senderId, "user" + senderId, RoomRegistry.LOBBY, body);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Appended %d messages of %d bytes from %d threads: %.0f messages/s, %.1f MB/s%n",
+                messages, messageSize, threadCount, messages / (elapsed / 1e9),
+                (double) messages * messageSize / (elapsed / 1e9) / (1024 * 1024));
+    }
+
+    private static void verify(MessageLog log) {
+        long[] expected = {-1};
+        long[] count = {0};
+        long start = System.nanoTime();
+        long from = 0;
+        int read;
+        do {
+            read = log.read(from, 10_000, record -> {
+                if (expected[0] >= 0 && record.offset != expected[0]) {
+                    throw new IllegalStateException("Expected offset " + expected[0] + " but read " + record.offset);
+                }
+                expected[0] = record.offset + 1;
+                count[0]++;
+            });
+            from = expected[0];
+        } while (read > 0);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Read back " + count[0] + " records in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms; offsets contiguous up to " + (expected[0] - 1)
+                + " (" + log.describe() + ")");
+    }
+}
@@ -0,0 +1,156 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SearchIndex}: how fast it indexes a large message log, how much disk and heap it
+ * takes, and how long queries of several kinds take once everything is indexed.
+ *
+ * Usage:
+ * <pre>
+ *   java -Xmx256m SearchBenchmark [--messages=10000000] [--segment-messages=100000] [--queries=200]
+ *                                 [--dir=&lt;new directory&gt;]
+ * </pre>
+ *
+ * The messages are made up of words drawn from a vocabulary of {@link #VOCABULARY} with a Zipf
+ * distribution, as in natural text, sent by {@link #SENDERS} users across {@link #ROOMS} rooms
+ * over the last {@link #DAYS} days. Queries look for a common word, a rare word, two words, a word
+ * from one sender and a word in the last week, each in one room, and report the time from asking
+ * to having the matching records. Running with a small heap shows that the index lives on disk.
+ */
+public class SearchBenchmark {
+    static final int VOCABULARY = 50_000;
+    static final int SENDERS = 200;
+    static final int ROOMS = 20;
+    static final int DAYS = 30;
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ne", "ru", "sa", "ti", "vo",
+            "ba", "de", "fi", "go", "hu", "ja", "pe", "zu"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ChatUtils.parseOptions(args);
+        int messages = Integer.parseInt(options.getOrDefault("messages", "10000000"));
+        int segmentMessages = Integer.parseInt(options.getOrDefault("segment-messages",
+                String.valueOf(SearchIndex.DEFAULT_SEGMENT_MESSAGES)));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "200"));
+        Path directory = options.containsKey("dir") ? Path.of(options.get("dir"))
+                : Files.createTempDirectory("search-benchmark");
+
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = word(i);
+        }
+        double[] cumulative = zipf(VOCABULARY);
+        Random random = new Random(42);
+        try (MessageLog log = new MessageLog(directory, 64 * 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE, 1000);
+             SearchIndex index = new SearchIndex(log, directory.resolve(SearchIndex.DIRECTORY), segmentMessages, null)) {
+            long start = System.nanoTime();
+            long firstTimestamp = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(DAYS);
+            double millisPerMessage = (double) TimeUnit.DAYS.toMillis(DAYS) / messages;
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < messages; i++) {
+                body.setLength(0);
+                int length = 4 + random.nextInt(16);
+                for (int w = 0; w < length; w++) {
+                    body.append(w == 0 ? "" : " ").append(words[sample(cumulative, random)]);
+                }
+                int sender = random.nextInt(SENDERS);
+                log.append(firstTimestamp + (long) (i * millisPerMessage), FrameCodec.CHAT, sender + 1,
+                        "user" + sender, "room" + random.nextInt(ROOMS), body.toString());
+            }
+            long appended = System.nanoTime() - start;
+            while (!index.caughtUp()) {
+                Thread.sleep(100);
+            }
+            long indexed = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "Appended %d messages in %.1f s; indexed and merged after %.1f s (%.0f messages/s)%n",
+                    messages, appended / 1e9, indexed / 1e9, messages / (indexed / 1e9));
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf(Locale.ROOT, "Index: %s; log and index: %d MB; heap used: %d MB of %d MB max%n", index.describe(),
+                    directorySize(directory) / (1024 * 1024), (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024),
+                    runtime.maxMemory() / (1024 * 1024));
+
+            String common = words[4];
+            String rare = words[20_000];
+            String[][] kinds = {
+                    {"common word", common},
+                    {"rare word", rare},
+                    {"two words", words[10] + " " + words[200]},
+                    {"word from sender", words[50] + " from:user7"},
+                    {"word since 7d", words[300] + " since:7d"},
+            };
+            // Warmup, so that the measured queries run compiled code
+            for (String[] kind : kinds) {
+                measure(index, kind[0], kind[1], queries, false);
+            }
+            for (String[] kind : kinds) {
+                measure(index, kind[0], kind[1], queries, true);
+            }
+            System.out.println("GC time: " + ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(bean -> Math.max(0, bean.getCollectionTime())).sum() + " ms");
+        }
+    }
+
+    private static void measure(SearchIndex index, String kind, String text, int queries, boolean report)
+            throws Exception {
+        long[] nanos = new long[queries];
+        long matches = 0;
+        for (int i = 0; i < queries; i++) {
+            SearchIndex.Query query = SearchIndex.Query.parse(text, "room" + i % ROOMS);
+            long start = System.nanoTime();
+            List<MessageLog.Record> found = index.search(query).get();
+            nanos[i] = System.nanoTime() - start;
+            matches += found.size();
+        }
+        if (!report) {
+            return;
+        }
+        Arrays.sort(nanos);
+        System.out.printf(Locale.ROOT, "%-17s %-24s p50 %6.2f ms  p99 %6.2f ms  max %6.2f ms  (%.1f matches each)%n",
+                kind, "\"" + text + "\"", nanos[queries / 2] / 1e6, nanos[Math.min(queries - 1, queries * 99 / 100)] / 1e6,
+                nanos[queries - 1] / 1e6, (double) matches / queries);
+    }
+
+    /**
+     * Spells out a word for a vocabulary rank, shorter for the more common words.
+     */
+    private static String word(int rank) {
+        StringBuilder word = new StringBuilder();
+        int value = rank;
+        do {
+            word.append(SYLLABLES[value % SYLLABLES.length]);
+            value /= SYLLABLES.length;
+        } while (value > 0);
+        return word.toString();
+    }
+
+    private static double[] zipf(int size) {
+        double[] cumulative = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < size; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int found = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(cumulative.length - 1, found >= 0 ? found : -found - 1);
+    }
+
+    private static long directorySize(Path directory) throws Exception {
+        try (var files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
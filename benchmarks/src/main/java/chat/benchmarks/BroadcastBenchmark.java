@@ -0,0 +1,51 @@
+package chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broadcasting a chat line into a room of in-memory recipients that discard what they receive,
+ * through {@code ChatServer.handleLine}, so that only the server's own work is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1", "100", "1000"})
+    int clients;
+
+    @Param({"32", "512"})
+    int messageSize;
+
+    private Workload fanOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        fanOut = Workload.open("fanout", clients, messageSize, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fanOut.close();
+    }
+
+    @Benchmark
+    public long fanOut() throws Exception {
+        return fanOut.run();
+    }
+}
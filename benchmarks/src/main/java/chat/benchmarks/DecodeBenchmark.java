@@ -0,0 +1,56 @@
+package chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting received bytes into messages with {@code ProtocolDecoder}, as the server's connections
+ * and {@code ChatClient} do, for text lines and for binary frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"32", "512"})
+    int messageSize;
+
+    private Workload lines;
+    private Workload frames;
+
+    @Setup
+    public void setUp() throws Exception {
+        lines = Workload.open("decode-lines", 0, messageSize, null);
+        frames = Workload.open("decode-frames", 0, messageSize, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        lines.close();
+        frames.close();
+    }
+
+    @Benchmark
+    public long lines() throws Exception {
+        return lines.run();
+    }
+
+    @Benchmark
+    public long frames() throws Exception {
+        return frames.run();
+    }
+}
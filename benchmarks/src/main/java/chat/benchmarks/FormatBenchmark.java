@@ -0,0 +1,49 @@
+package chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building display lines: a text-protocol chat line from {@code MessageSenderInfo.messagePrefix()},
+ * and a received chat frame rendered with {@code ChatMessage.formatChat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({"32", "512"})
+    int messageSize;
+
+    private Workload prefix;
+    private Workload format;
+
+    @Setup
+    public void setUp() throws Exception {
+        prefix = Workload.open("prefix", 0, messageSize, null);
+        format = Workload.open("format", 0, messageSize, null);
+    }
+
+    @Benchmark
+    public long prefix() throws Exception {
+        return prefix.run();
+    }
+
+    @Benchmark
+    public long format() throws Exception {
+        return format.run();
+    }
+}
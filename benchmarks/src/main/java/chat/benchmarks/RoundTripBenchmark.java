@@ -0,0 +1,56 @@
+package chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One client sending a message to a {@code ChatServer} in the same JVM over loopback and waiting
+ * for its own copy, in a room with the other clients, so that the whole path is measured: client
+ * writer, server decoding, fan-out, every recipient's writer and the client's reader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({"1", "10", "100"})
+    int clients;
+
+    @Param({"32", "512"})
+    int messageSize;
+
+    // The server's mode: blocking, virtual or nio
+    @Param({"virtual"})
+    String mode;
+
+    private Workload roundTrip;
+
+    @Setup
+    public void setUp() throws Exception {
+        roundTrip = Workload.open("roundtrip", clients, messageSize, mode);
+    }
+
+    @TearDown
+    public void tearDown() {
+        roundTrip.close();
+    }
+
+    @Benchmark
+    public long roundTrip() throws Exception {
+        return roundTrip.run();
+    }
+}
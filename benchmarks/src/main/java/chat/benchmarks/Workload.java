@@ -0,0 +1,43 @@
+package chat.benchmarks;
+
+/**
+ * One benchmarked operation of the chat application, set up for a client count and message size.
+ *
+ * The application's classes are in the unnamed package, which code in a named package cannot
+ * refer to, while JMH only accepts benchmarks in a named package. So each benchmark opens its
+ * workload through {@link #open}, which has {@code ChatWorkloads}, in the unnamed package, build it.
+ */
+public interface Workload extends AutoCloseable {
+
+    /**
+     * Performs the operation once.
+     *
+     * @return Something derived from the result, for the benchmark to consume
+     */
+    long run() throws Exception;
+
+    /**
+     * Releases whatever the setup acquired.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Sets up a workload.
+     *
+     * @param name        The operation, as named by {@code ChatWorkloads}
+     * @param clients     Clients taking part, where the operation depends on them
+     * @param messageSize Characters per message
+     * @param mode        Server mode, for operations that start a server
+     */
+    static Workload open(String name, int clients, int messageSize, String mode) throws Exception {
+        Class<?> workloads = Class.forName("ChatWorkloads");
+        try {
+            return (Workload) workloads.getMethod("open", String.class, int.class, int.class, String.class)
+                    .invoke(null, name, clients, messageSize, mode);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * State and delivery logic shared by the blocking and non-blocking sessions: the session id,
+ * username, negotiated protocol and outbound queue.
+ *
+ * Picking a message's encoding and queueing it happen under one lock, and so does the protocol
+ * switch. Without it, a broadcasting thread could choose the text encoding, lose the race to the
+ * handshake, and queue a text line after the acknowledgement, where the client expects frames.
+ * The lock is a {@link ReentrantLock} so that a virtual thread waiting for queue space under the
+ * block overflow policy does not pin its carrier.
+ *
+ * While the history of a room the session joins is being replayed, live messages are held back and queued
+ * after the replay, so the client sees everything in broadcast order. A resume's replay is read from
+ * the message log on another thread and may still be pending when the command returns; transports
+ * hold off handling the client's next message until it ends (see {@link #replayPending()}), so that
+ * a later command cannot start a second replay meanwhile.
+ *
+ * Files being downloaded are sent by the transport's writer from {@link #files} whenever the
+ * outbound queue is empty.
+ */
+abstract class AbstractChatSession implements ChatSession {
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id = NEXT_ID.getAndIncrement();
+    // Encoded messages waiting to be written
+    protected final OutboundQueue outbound;
+    // Files being sent to the client
+    protected final FileSender files = new FileSender();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // Signalled when a replay ends
+    private final Condition replayDone = sendLock.newCondition();
+    private volatile boolean binaryFrames;
+    private volatile boolean compressedFrames;
+    // Set once the client identifies itself; null until then
+    private volatile String username;
+    private volatile Room room;
+    // When anything was last received from the client; written by its reader on every message
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean heartbeats;
+    // Messages sent while the history replay is being queued, or null; guarded by sendLock
+    private List<SharedFrame> heldDuringReplay;
+    // Whether heldDuringReplay is set, for transports to check without taking the lock
+    private volatile boolean replayPending;
+
+    protected AbstractChatSession(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    @Override
+    public final void send(ChatMessage message) {
+        sendLock.lock();
+        try {
+            SharedFrame frame = message.frameFor(binaryFrames, compressedFrames);
+            if (frame == null) {
+                return;
+            }
+            if (heldDuringReplay != null) {
+                heldDuringReplay.add(frame);
+            } else {
+                enqueue(frame);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public final void beginReplay() {
+        sendLock.lock();
+        try {
+            outbound.replayStarting();
+            heldDuringReplay = new ArrayList<>();
+            replayPending = true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public final void endReplay(SharedFrame[] replay) {
+        // Queued without the lock so that broadcasts are not kept waiting; nothing else queues
+        // for this session until the held messages are released
+        for (SharedFrame frame : replay) {
+            enqueue(frame);
+        }
+        sendLock.lock();
+        try {
+            for (SharedFrame frame : heldDuringReplay) {
+                enqueue(frame);
+            }
+            heldDuringReplay = null;
+            replayPending = false;
+            replayDone.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+        replayEnded();
+    }
+
+    /**
+     * Returns true while a replay has begun and not yet ended.
+     */
+    protected final boolean replayPending() {
+        return replayPending;
+    }
+
+    /**
+     * Waits until no replay is pending.
+     */
+    protected final void awaitReplay() throws InterruptedException {
+        if (!replayPending) {
+            return;
+        }
+        sendLock.lock();
+        try {
+            while (replayPending) {
+                replayDone.await();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Called after every replay has been queued, on the thread that ended it, which for a resume is
+     * not the session's own. Does nothing unless the transport needs to know.
+     */
+    protected void replayEnded() {
+    }
+
+    @Override
+    public final void switchToBinaryFrames(String acknowledgement, boolean compressed) {
+        sendLock.lock();
+        try {
+            enqueue(SharedFrame.encode(acknowledgement));
+            compressedFrames = compressed;
+            binaryFrames = true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    @Override
+    public final void sendFile(FileTransfers.Transfer transfer, long offset) {
+        files.add(transfer.id, transfer.channel(), offset, transfer.size, transfer.bytesPerSecond);
+        // Queued after the file, so that it wakes a writer waiting for messages
+        send(ChatProtocol.FILE_SENDING + transfer.id + " " + offset + " " + transfer.size);
+    }
+
+    /**
+     * Queues an encoded message for writing, applying the slow-consumer handling of the transport.
+     *
+     * @param frame The frame; the session takes over the caller's reference
+     */
+    protected abstract void enqueue(SharedFrame frame);
+
+    @Override
+    public final long id() {
+        return id;
+    }
+
+    @Override
+    public final boolean binaryFrames() {
+        return binaryFrames;
+    }
+
+    @Override
+    public final boolean compressedFrames() {
+        return compressedFrames;
+    }
+
+    @Override
+    public final OutboundQueue outbound() {
+        return outbound;
+    }
+
+    @Override
+    public final String getUsername() {
+        return username;
+    }
+
+    @Override
+    public final void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public final long lastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    @Override
+    public final boolean heartbeats() {
+        return heartbeats;
+    }
+
+    @Override
+    public final void enableHeartbeats() {
+        heartbeats = true;
+    }
+
+    /**
+     * Notes that something was received from the client. Called by the transport's reader.
+     */
+    protected final void recordActivity() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    @Override
+    public final Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public final void setRoom(Room room) {
+        this.room = room;
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains an {@link OutboundQueue} into a blocking output stream, coalescing queued messages so that
+ * many small messages leave in one write and one TCP segment instead of one each.
+ *
+ * After taking the first message of a batch, the writer keeps appending whatever else is queued.
+ * With a flush delay configured it also waits up to that long, measured from the first message,
+ * for more to arrive. The batch is flushed when the queue runs dry, the delay expires or the batch
+ * reaches the size threshold, whichever comes first. A delay of zero adds no latency: it only
+ * coalesces messages that were already waiting.
+ *
+ * Files being sent by a {@link FileSender} go out a piece at a time whenever no message is queued,
+ * so that messages never wait behind more than one piece.
+ */
+final class BatchingWriter implements Runnable {
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    private final FileSender files;
+    // The stream as a channel, for pieces of files
+    private final WritableByteChannel channel;
+    private final long flushDelayNanos;
+    private final int flushThresholdBytes;
+    private final FlushStats stats;
+    private final Runnable onError;
+
+    /**
+     * Creates a writer. The stream should buffer at least {@code flushThresholdBytes}, so that
+     * only the explicit flush reaches the socket.
+     *
+     * @param queue               The queue to drain
+     * @param out                 The buffered stream to write to
+     * @param files               Files to send between messages
+     * @param flushDelayNanos     How long to wait for more messages before flushing a batch
+     * @param flushThresholdBytes Flush as soon as a batch holds this many bytes
+     * @param stats               Where to record flush counts
+     * @param onError             Called if writing fails, e.g. to close the connection
+     */
+    BatchingWriter(OutboundQueue queue, OutputStream out, FileSender files, long flushDelayNanos,
+                   int flushThresholdBytes, FlushStats stats, Runnable onError) {
+        this.queue = queue;
+        this.out = out;
+        this.files = files;
+        this.channel = Channels.newChannel(out);
+        this.flushDelayNanos = flushDelayNanos;
+        this.flushThresholdBytes = flushThresholdBytes;
+        this.stats = stats;
+        this.onError = onError;
+    }
+
+    /**
+     * Writes batches until interrupted or the stream fails.
+     */
+    public void run() {
+        try {
+            while (true) {
+                SharedFrame frame = files.isEmpty() ? queue.take() : queue.poll();
+                if (frame == null) {
+                    // Only file pieces to send; wait for a message if every file is waiting out its cap
+                    long wait = sendFilePiece();
+                    if (wait > 0) {
+                        frame = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    }
+                    if (frame == null) {
+                        continue;
+                    }
+                }
+                long deadline = System.nanoTime() + flushDelayNanos;
+                // The first message of a batch is its oldest, so its age bounds the batch's latency
+                boolean live = queue.isLive(frame);
+                long oldestNanos = frame.createdNanos();
+                int messages = 0;
+                int bytes = 0;
+                while (frame != null) {
+                    try {
+                        out.write(frame.array(), frame.offset(), frame.length());
+                        bytes += frame.length();
+                    } finally {
+                        frame.release();
+                    }
+                    messages++;
+                    if (bytes >= flushThresholdBytes) {
+                        break;
+                    }
+                    frame = queue.poll();
+                    if (frame == null && flushDelayNanos > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining > 0) {
+                            frame = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                }
+                out.flush();
+                stats.recordFlush(messages, bytes);
+                if (live) {
+                    stats.recordDelivery(oldestNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The connection is closing
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            onError.run();
+        }
+    }
+
+    /**
+     * Writes the next piece of a file, if one is ready.
+     *
+     * @return 0 if a piece was written, otherwise how long until one is ready
+     */
+    private long sendFilePiece() throws IOException {
+        long now = System.nanoTime();
+        FileSender.Chunk chunk = files.next(now);
+        if (chunk == null) {
+            return files.nanosUntilReady(now);
+        }
+        if (!chunk.writeTo(channel)) {
+            throw new IOException("File ended before the transfer did");
+        }
+        out.flush();
+        stats.recordFlush(0, chunk.length());
+        return 0;
+    }
+}
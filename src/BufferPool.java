@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of reusable byte arrays in power-of-four size classes from 256 bytes to 64 KiB.
+ *
+ * Each size class is a bounded queue backed by a preallocated array, so taking and returning a
+ * buffer does not allocate. The pool is best effort: when a class is empty a new array is
+ * allocated, and when it is full a returned array is simply left for the garbage collector.
+ * Requests larger than the biggest class are always allocated exactly and never pooled.
+ */
+final class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 8;    // 256 bytes
+    private static final int SIZE_CLASSES = 5;      // 256, 1K, 4K, 16K, 64K
+    private static final int BUFFERS_PER_CLASS = 1024;
+
+    private final List<ArrayBlockingQueue<byte[]>> classes = new ArrayList<>(SIZE_CLASSES);
+
+    BufferPool() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            classes.add(new ArrayBlockingQueue<>(BUFFERS_PER_CLASS));
+        }
+    }
+
+    /**
+     * Returns an array of at least the requested size. Its contents are undefined.
+     */
+    byte[] acquire(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+        if (sizeClass < 0) {
+            return new byte[minSize];
+        }
+        byte[] buffer = classes.get(sizeClass).poll();
+        return buffer != null ? buffer : new byte[1 << (MIN_SIZE_SHIFT + 2 * sizeClass)];
+    }
+
+    /**
+     * Gives an array back to the pool. The caller must not use it afterwards.
+     */
+    void release(byte[] buffer) {
+        int sizeClass = sizeClassFor(buffer.length);
+        // Only arrays that exactly match a class size came from this pool
+        if (sizeClass >= 0 && buffer.length == 1 << (MIN_SIZE_SHIFT + 2 * sizeClass)) {
+            classes.get(sizeClass).offer(buffer);
+        }
+    }
+
+    private static int sizeClassFor(int size) {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            if (size <= 1 << (MIN_SIZE_SHIFT + 2 * i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,22 +1,151 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
  * A client implementation for a chat application using TCP/IP sockets.
+ *
+ * Outgoing messages are queued and written by a background writer that coalesces bursts into
+ * batched flushes. The {@code chat.client.flushDelayMicros} system property makes the writer wait
+ * up to that long for more messages before flushing; by default it flushes as soon as it is idle.
+ *
+ * On connecting, the client offers the compact binary frame protocol and falls back to text lines
+ * if the server does not accept it (see {@link ChatProtocol}), along with dictionary compression
+ * for longer payloads. Setting the {@code chat.client.protocol} system property to {@code text}
+ * skips the offer, and setting {@code chat.client.compression} to {@code off} leaves out compression.
+ *
+ * Socket options come from system properties as well: {@code chat.client.connectTimeoutMillis}
+ * (default 10000), {@code chat.client.tcpNoDelay} (default true), and
+ * {@code chat.client.sendBuffer} and {@code chat.client.receiveBuffer} in bytes (default: the OS's).
+ *
+ * When the connection drops, the client reconnects on its own, waiting a random delay of up to
+ * {@code chat.client.reconnectBaseMillis} (default 250) doubled for every failed attempt, capped at
+ * {@code chat.client.reconnectMaxMillis} (default 30000). The randomness spreads out the clients of
+ * a restarted server instead of having them all arrive at once. It then logs in again and, if the
+ * server supports it, resumes from the last message it received, so the server sends only what
+ * it missed (see {@link ChatProtocol}). Setting {@code chat.client.reconnect} to {@code false}
+ * turns this off. A {@link ConnectionListener} is told about every change.
+ *
+ * A client in the same process as its server can connect through a {@link Connector} such as
+ * {@link ChatServer#connectLocal()}, which skips the network entirely.
+ *
+ * Over binary frames, files can be shared with the room: {@code /send <path>} uploads one and
+ * {@code /get <id>} downloads one announced by the server into {@code chat.client.downloadDir}
+ * (default: the user's home directory). Uploads are sent by the writer between messages, so chat
+ * is never held up by a file, and both directions carry on where they left off after a reconnect.
+ *
+ * {@code /search <words>} looks up earlier messages of the current room on the server, which
+ * answers with the most recent matches (see {@link ChatProtocol}).
  */
 public class ChatClient {
-    // Socket for network communication
-    private Socket socket;
-    // Reader for incoming messages from the server
-    private BufferedReader in;
-    // Writer for sending messages to the server
-    private PrintWriter out;
+    /**
+     * Opens a connection to the server; called for the first connection and every reconnect.
+     */
+    interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private final Connector connector;
+    // Socket for network communication; replaced on every reconnect
+    private volatile Socket socket;
+    // Stream of incoming messages from the server, split up by the decoder
+    private InputStream in;
+    private ProtocolDecoder decoder;
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+    // How long to wait for the server to answer the protocol offer
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final long DEFAULT_RECONNECT_BASE_MILLIS = 250;
+    private static final long DEFAULT_RECONNECT_MAX_MILLIS = 30_000;
+    private static final int DEFAULT_HEARTBEAT_MILLIS = 30_000;
+    // Silent heartbeat intervals after which the connection is given up for dead
+    private static final int HEARTBEAT_MISSES = 3;
+    // Typed by the user to share a file, or to download one announced by the server
+    static final String SEND_FILE_COMMAND = "/send ";
+    static final String GET_FILE_COMMAND = "/get ";
+
+    /**
+     * Whether the client is connected to the server.
+     */
+    public enum ConnectionState {
+        CONNECTED,
+        // The connection dropped and the client is trying to reconnect
+        RECONNECTING,
+        // The client was closed, or the connection dropped with reconnecting turned off
+        DISCONNECTED
+    }
+
+    /**
+     * Told when the connection state changes. Called from the client's reader thread, so a GUI
+     * must hand the update to its own thread.
+     */
+    public interface ConnectionListener {
+        /**
+         * @param state  The new state
+         * @param detail A short description for display, such as when the next attempt is due
+         */
+        void connectionStateChanged(ConnectionState state, String detail);
+    }
+
+    // Whether the server accepted binary frames, compression, resuming and heartbeats; set by each handshake
+    private volatile boolean binaryFrames;
+    private volatile boolean compressedFrames;
+    private volatile boolean resumable;
+    private volatile boolean heartbeats;
+    // How long the server may be silent before it is pinged (0 = no heartbeats)
+    private final int heartbeatMillis = Integer.getInteger("chat.client.heartbeatMillis", DEFAULT_HEARTBEAT_MILLIS);
+    // Lines that arrived while waiting for the handshake reply, delivered once the reader starts
+    private final List<String> earlyLines = new ArrayList<>();
+    // Usernames of senders by session id, learned from name frames; only used by the reader thread
+    private final Map<Long, String> usernames = new HashMap<>();
+
+    // Stream for sending messages to the server
+    private OutputStream out;
+    // Messages waiting for the writer thread; senders wait rather than lose messages if it fills up
+    private final OutboundQueue outbound = new OutboundQueue(OUTBOUND_CAPACITY, OutboundQueue.OverflowPolicy.BLOCK);
+    private final FlushStats flushStats = new FlushStats(null);
+    // Files being uploaded, sent by the writer between messages
+    private final FileSender files = new FileSender();
+    // Uploads by transfer id, and those offered but not yet answered, oldest first
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+    private final Queue<Upload> pendingOffers = new ConcurrentLinkedQueue<>();
+    // Files announced in the room, and those being downloaded, by transfer id
+    private final Map<Long, SharedFile> sharedFiles = new ConcurrentHashMap<>();
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
     // Callback function to handle received messages
     private Consumer<String> onMessageReceived;
+    private volatile ConnectionListener connectionListener;
+
+    private final boolean reconnect = !"false".equals(System.getProperty("chat.client.reconnect"));
+    private volatile boolean closed;
+    private volatile Thread reader;
+    // Restored on reconnect: the name given to login() and the room last joined
+    private volatile String username;
+    private volatile String room = RoomRegistry.LOBBY;
+    // Id of the last message received, handed back on resume; only used by the reader thread
+    private long lastMessageId = -1;
+    // Set after sending a resume until the server answers it; only used by the reader thread
+    private boolean awaitingResume;
 
     /**
-     * Initializes a new chat client.
+     * Initializes a new chat client and negotiates the protocol with the server.
      * 
      * @param serverAddress    The IP address or hostname of the server
      * @param serverPort      The port number the server is listening on
@@ -24,36 +153,727 @@ public class ChatClient {
      * @throws IOException    If connection to the server fails
      */
     public ChatClient(InetAddress serverAddress, int serverPort, Consumer<String> onMessageReceived) throws IOException {
-        this.socket = new Socket(serverAddress, serverPort);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this(() -> connect(serverAddress, serverPort), onMessageReceived);
+    }
+
+    /**
+     * Initializes a new chat client that connects through the given connector, and negotiates
+     * the protocol with the server.
+     *
+     * @throws IOException If connection to the server fails
+     */
+    ChatClient(Connector connector, Consumer<String> onMessageReceived) throws IOException {
+        this.connector = connector;
         this.onMessageReceived = onMessageReceived;
+        open();
+    }
+
+    /**
+     * Connects and negotiates the protocol; used for the first connection and every reconnect.
+     */
+    private void open() throws IOException {
+        socket = connector.connect();
+        try {
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD);
+            decoder = new ProtocolDecoder();
+            compressedFrames = false;
+            resumable = false;
+            heartbeats = false;
+            binaryFrames = !ChatProtocol.TEXT_PROTOCOL.equals(System.getProperty("chat.client.protocol"))
+                    && negotiateBinaryFrames();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
     }
 
     /**
-     * Sends a message to the server.
+     * Opens the connection with the socket options from the system properties. The receive buffer
+     * is sized before connecting, since the TCP window scale is fixed by the handshake.
+     */
+    private static Socket connect(InetAddress serverAddress, int serverPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(!"false".equals(System.getProperty("chat.client.tcpNoDelay")));
+            int sendBuffer = Integer.getInteger("chat.client.sendBuffer", 0);
+            if (sendBuffer > 0) {
+                socket.setSendBufferSize(sendBuffer);
+            }
+            int receiveBuffer = Integer.getInteger("chat.client.receiveBuffer", 0);
+            if (receiveBuffer > 0) {
+                socket.setReceiveBufferSize(receiveBuffer);
+            }
+            socket.connect(new InetSocketAddress(serverAddress, serverPort),
+                    Integer.getInteger("chat.client.connectTimeoutMillis", DEFAULT_CONNECT_TIMEOUT_MILLIS));
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Offers binary frames and waits for the server's verdict. Runs before the writer and reader
+     * threads exist, so it uses the streams directly.
+     *
+     * @return true if the server switched this connection to binary frames
+     */
+    private boolean negotiateBinaryFrames() throws IOException {
+        String offer = ChatProtocol.PROTOCOL_COMMAND + ChatProtocol.BINARY_PROTOCOL;
+        if (!"off".equals(System.getProperty("chat.client.compression"))) {
+            offer += " " + ChatProtocol.COMPRESSION_EXTENSION;
+        }
+        offer += " " + ChatProtocol.RESUME_EXTENSION;
+        if (heartbeatMillis > 0) {
+            offer += " " + ChatProtocol.HEARTBEAT_EXTENSION;
+        }
+        out.write((offer + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            String line;
+            while ((line = decoder.readLine(in)) != null) {
+                if (line.startsWith(ChatProtocol.PROTOCOL_REPLY)) {
+                    List<String> accepted = Arrays.asList(line.substring(ChatProtocol.PROTOCOL_REPLY.length()).split(" +"));
+                    compressedFrames = accepted.contains(ChatProtocol.COMPRESSION_EXTENSION);
+                    resumable = accepted.contains(ChatProtocol.RESUME_EXTENSION);
+                    heartbeats = accepted.contains(ChatProtocol.HEARTBEAT_EXTENSION);
+                    return accepted.get(0).equals(ChatProtocol.BINARY_PROTOCOL);
+                }
+                if (line.equals(offer)) {
+                    return false;  // An older server relayed the offer as a chat line
+                }
+                // Chat from other users can arrive before the reply
+                earlyLines.add(line);
+            }
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            // With heartbeats, reads time out once per interval of silence so that receive() can ping
+            socket.setSoTimeout(heartbeats ? heartbeatMillis : 0);
+        }
+    }
+
+    /**
+     * Sends a raw protocol line to the server, such as a command or a notice shown verbatim to
+     * everyone. The message is queued for the writer thread, which is started by {@link #startClient()}.
      * 
      * @param msg The message to be sent
      */
     public void sendMessage(String msg) {
-        out.println(msg);
+        if (msg.startsWith(ChatProtocol.JOIN_COMMAND)) {
+            String target = msg.substring(ChatProtocol.JOIN_COMMAND.length()).trim();
+            if (RoomRegistry.isValidName(target)) {
+                room = target;
+            }
+        } else if (msg.trim().equals(ChatProtocol.LEAVE_COMMAND)) {
+            room = RoomRegistry.LOBBY;
+        }
+        enqueue(encodeCommand(msg));
+    }
+
+    private SharedFrame encodeCommand(String msg) {
+        return binaryFrames ? SharedFrame.encodeBinary(FrameCodec.TEXT, 0, 0, msg, compressedFrames) : SharedFrame.encode(msg);
+    }
+
+    /**
+     * Sends a chat message typed by the user. Over binary frames only the text is sent, and the
+     * server adds the sender and time; over text lines the full display line is built here.
+     * Text starting with {@code /}, such as {@code /join <room>}, is sent as a command instead.
+     *
+     * @param username The user's name, used by the text protocol
+     * @param text     The message text
+     */
+    public void sendChat(String username, String text) {
+        if (text.startsWith(SEND_FILE_COMMAND) || text.startsWith(GET_FILE_COMMAND)) {
+            try {
+                if (text.startsWith(SEND_FILE_COMMAND)) {
+                    sendFile(Path.of(text.substring(SEND_FILE_COMMAND.length()).trim()), 0);
+                } else {
+                    receiveFile(Long.parseLong(text.substring(GET_FILE_COMMAND.length()).trim()),
+                            Path.of(System.getProperty("chat.client.downloadDir", System.getProperty("user.home"))));
+                }
+            } catch (IOException | RuntimeException e) {
+                onMessageReceived.accept(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "File transfer failed: " + e.getMessage());
+            }
+        } else if (text.startsWith("/")) {
+            sendMessage(text);
+        } else if (binaryFrames) {
+            enqueue(SharedFrame.encodeBinary(FrameCodec.CHAT, 0, 0, text, compressedFrames));
+        } else {
+            enqueue(SharedFrame.encode(ChatUtils.MessageSenderInfo.USER.messagePrefix() + username + ": " + text));
+        }
+    }
+
+    /**
+     * Asks the server for the most recent messages matching a query, such as
+     * {@code "deploy from:alice since:7d"}. The results arrive like any other server notice.
+     *
+     * @param query Words to find, with optional filters
+     */
+    public void search(String query) {
+        sendMessage(ChatProtocol.SEARCH_COMMAND + query);
+    }
+
+    /**
+     * Shares a file with the room. The server is asked to accept it, and the writer then sends it
+     * between messages; the room is told once all of it has arrived.
+     *
+     * @param file           The file to send
+     * @param bytesPerSecond The bandwidth cap for the upload and for each download of it, or 0 for
+     *                       none; the server may lower it
+     * @throws IOException If the file cannot be read, or the connection does not use binary frames
+     */
+    public void sendFile(Path file, long bytesPerSecond) throws IOException {
+        if (!binaryFrames) {
+            throw new IOException("File transfers need binary frames");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        Upload upload = new Upload(channel, channel.size(), bytesPerSecond, String.valueOf(file.getFileName()));
+        pendingOffers.add(upload);
+        sendMessage(upload.offer());
     }
 
     /**
-     * Starts a background thread that continuously listens for incoming messages.
+     * Downloads a file announced in the room. The data is written to {@code <name>.part} in the
+     * directory, continuing any such file left by an earlier attempt, and renamed once complete.
+     *
+     * @param transferId The id from the announcement
+     * @param directory  Where to save the file
+     * @throws IOException If the file is unknown or the partial file cannot be opened
+     */
+    public void receiveFile(long transferId, Path directory) throws IOException {
+        SharedFile shared = sharedFiles.get(transferId);
+        if (shared == null) {
+            throw new IOException("No file " + transferId + " has been shared here");
+        }
+        if (downloads.containsKey(transferId)) {
+            return;
+        }
+        Path part = saveTo(directory, shared.name + ".part");
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > shared.size) {
+            channel.truncate(0);
+        }
+        Download download = new Download(shared, directory, part, channel);
+        downloads.put(transferId, download);
+        sendMessage(ChatProtocol.FILE_GET + transferId + " " + download.received);
+    }
+
+    /**
+     * Returns true if the server accepted binary frames for this connection.
+     */
+    public boolean usesBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Returns true if the server also accepted compressed payloads.
+     */
+    public boolean usesCompression() {
+        return compressedFrames;
+    }
+
+    /**
+     * Sets the listener told when the connection drops, is re-established or is closed.
+     */
+    public void setConnectionListener(ConnectionListener listener) {
+        this.connectionListener = listener;
+    }
+
+    private void enqueue(SharedFrame frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        try {
+            outbound.offer(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the writer's flush counters: messages sent, flushes and syscalls saved by batching.
+     */
+    public FlushStats flushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Identifies this client to the server so other users can address it by name.
+     *
+     * @param username The username chosen on the start screen
+     */
+    public void login(String username) {
+        this.username = username;
+        sendMessage(ChatProtocol.NAME_COMMAND + username);
+    }
+
+    /**
+     * Starts a background thread that continuously listens for incoming messages, and the
+     * writer thread for outgoing ones.
      * When a message is received, it is passed to the onMessageReceived callback.
+     * The threads are virtual when the {@code chat.client.virtualThreads}
+     * system property is set to {@code true}.
      */
     public void startClient() {
-        new Thread(() -> {
+        startClient(Boolean.getBoolean("chat.client.virtualThreads"));
+    }
+
+    /**
+     * Starts the background reader and writer on either virtual or platform threads. The reader
+     * thread also does the reconnecting, and starts a new writer for every connection.
+     *
+     * @param virtualThread Whether to use virtual threads, which lets one process hold
+     *                      many mostly-idle connections without an OS thread each
+     */
+    public void startClient(boolean virtualThread) {
+        Thread.Builder threads = virtualThread ? Thread.ofVirtual() : Thread.ofPlatform();
+        reader = threads.start(() -> {
+            earlyLines.forEach(onMessageReceived);
+            earlyLines.clear();
+            while (true) {
+                Thread writer = startWriter(threads);
+                try {
+                    receive();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.out.println("An error occurred: " + e.getMessage());
+                    }
+                } finally {
+                    writer.interrupt();
+                }
+                closeQuietly();
+                try {
+                    // Only one writer may drain the queue at a time
+                    writer.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (closed || !reconnect || !reconnect()) {
+                    break;
+                }
+            }
+            // Nothing will send what is queued now, so stop anyone waiting for room in the queue
+            closed = true;
+            outbound.clear();
+            closeTransfers();
+            notifyState(ConnectionState.DISCONNECTED, "Disconnected from the server.");
+        });
+    }
+
+    private Thread startWriter(Thread.Builder threads) {
+        long flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.client.flushDelayMicros", 0));
+        Socket connection = socket;
+        return threads.start(new BatchingWriter(outbound, out, files, flushDelayNanos, FLUSH_THRESHOLD, flushStats, () -> {
             try {
-                String line;
-                // Keep reading messages until the connection is closed
-                while ((line = in.readLine()) != null) {
-                    onMessageReceived.accept(line);
+                connection.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }));
+    }
+
+    /**
+     * Keeps reading messages until the connection is closed. With heartbeats, the server is
+     * pinged whenever it has been silent for an interval, and the connection is treated as lost
+     * once it has stayed silent for {@link #HEARTBEAT_MISSES} intervals, which catches a
+     * half-open connection that would otherwise never report an error.
+     */
+    private void receive() throws IOException {
+        if (binaryFrames) {
+            int silentIntervals = 0;
+            while (true) {
+                FrameCodec.Frame frame;
+                try {
+                    frame = decoder.readFrame(in);
+                } catch (SocketTimeoutException e) {
+                    if (++silentIntervals >= HEARTBEAT_MISSES) {
+                        throw new IOException("No answer from the server for " + silentIntervals * heartbeatMillis / 1000 + " s");
+                    }
+                    enqueue(encodeCommand(ChatProtocol.PING));
+                    continue;
+                }
+                if (frame == null) {
+                    break;
                 }
+                silentIntervals = 0;
+                receiveFrame(frame);
+            }
+        } else {
+            String line;
+            while ((line = decoder.readLine(in)) != null) {
+                onMessageReceived.accept(line.startsWith(ChatProtocol.FILE_SHARED) ? fileShared(line) : line);
+            }
+        }
+    }
+
+    /**
+     * Waits and tries again until a new connection is negotiated and restored, or the client is closed.
+     *
+     * @return true once reconnected
+     */
+    private boolean reconnect() {
+        long baseMillis = Long.getLong("chat.client.reconnectBaseMillis", DEFAULT_RECONNECT_BASE_MILLIS);
+        long maxMillis = Long.getLong("chat.client.reconnectMaxMillis", DEFAULT_RECONNECT_MAX_MILLIS);
+        for (int attempt = 0; !closed; attempt++) {
+            long delay = backoffMillis(attempt, baseMillis, maxMillis);
+            notifyState(ConnectionState.RECONNECTING, "Connection lost. Reconnecting in "
+                    + String.format("%.1f", delay / 1000.0) + " s (attempt " + (attempt + 1) + ")...");
+            try {
+                Thread.sleep(delay);
+                open();
+                restore();
+                notifyState(ConnectionState.CONNECTED, "Reconnected to the server.");
+                return true;
+            } catch (InterruptedException e) {
+                // Closed while waiting
+                return false;
             } catch (IOException e) {
-                e.printStackTrace();
+                closeQuietly();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns how long to wait before a reconnect attempt: a uniformly random delay up to the
+     * exponential backoff bound ("full jitter"). Clients dropped by the same restart then arrive
+     * spread over the whole window rather than in synchronized waves.
+     *
+     * @param attempt Failed attempts so far
+     */
+    static long backoffMillis(int attempt, long baseMillis, long maxMillis) {
+        long bound = Math.min(maxMillis, baseMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Logs in again on a fresh connection, returns to the room the client was in and carries on
+     * with unfinished file transfers. Written straight to the stream before the new writer starts,
+     * so it precedes anything still queued.
+     */
+    private void restore() throws IOException {
+        // The server has just replayed the lobby's history, which the user has seen before
+        earlyLines.clear();
+        if (username != null) {
+            write(encodeCommand(ChatProtocol.NAME_COMMAND + username));
+        }
+        if (resumable) {
+            write(encodeCommand(ChatProtocol.RESUME_COMMAND + room + " " + lastMessageId));
+            awaitingResume = true;
+        } else if (!room.equals(RoomRegistry.LOBBY)) {
+            write(encodeCommand(ChatProtocol.JOIN_COMMAND + room));
+        }
+        // The server says where to continue each upload, and whatever was being sent has stopped
+        files.clear();
+        if (binaryFrames) {
+            for (Long id : uploads.keySet()) {
+                write(encodeCommand(ChatProtocol.FILE_RESUME + id));
+            }
+            for (Upload upload : pendingOffers) {
+                write(encodeCommand(upload.offer()));
+            }
+            for (Download download : downloads.values()) {
+                write(encodeCommand(ChatProtocol.FILE_GET + download.shared.id + " " + download.received));
+            }
+        }
+        out.flush();
+    }
+
+    private void write(SharedFrame frame) throws IOException {
+        try {
+            out.write(frame.array(), frame.offset(), frame.length());
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void notifyState(ConnectionState state, String detail) {
+        ConnectionListener listener = connectionListener;
+        if (listener != null) {
+            listener.connectionStateChanged(state, detail);
+        }
+    }
+
+    /**
+     * Turns a received frame into a display line for the callback, or records a username.
+     * Heartbeats are answered here and never shown.
+     * After a resume, messages are dropped until the server's answer, since the messages that
+     * follow it cover them.
+     */
+    private void receiveFrame(FrameCodec.Frame frame) {
+        if (frame.type == FrameCodec.FILE_DATA) {
+            receiveFileData(frame);
+            return;
+        }
+        if (frame.type == FrameCodec.TEXT && isTransferReply(frame.payload)) {
+            handleTransferReply(frame.payload);
+            return;
+        }
+        if (frame.type == FrameCodec.TEXT && frame.payload.equals(ChatProtocol.PING)) {
+            enqueue(encodeCommand(ChatProtocol.PONG));
+            return;
+        }
+        if (frame.type == FrameCodec.TEXT && frame.payload.equals(ChatProtocol.PONG)) {
+            return;
+        }
+        if (awaitingResume && frame.type != FrameCodec.NAME) {
+            if (frame.type == FrameCodec.TEXT && frame.payload.startsWith(ChatProtocol.RESUME_REPLY)) {
+                awaitingResume = false;
+            }
+            return;
+        }
+        if (frame.messageId >= 0) {
+            lastMessageId = frame.messageId;
+        }
+        switch (frame.type) {
+            case FrameCodec.CHAT -> {
+                String sender = usernames.getOrDefault(frame.senderId, "user" + frame.senderId);
+                onMessageReceived.accept(ChatMessage.formatChat(frame.timestamp, sender, frame.payload));
+            }
+            case FrameCodec.TEXT -> onMessageReceived.accept(frame.payload.startsWith(ChatProtocol.FILE_SHARED)
+                    ? fileShared(frame.payload) : frame.payload);
+            case FrameCodec.NAME -> usernames.put(frame.senderId, frame.payload);
+            default -> {
+                // Ignore frame types added by newer servers
+            }
+        }
+    }
+
+    private static boolean isTransferReply(String line) {
+        return line.startsWith(ChatProtocol.FILE_UPLOAD) || line.startsWith(ChatProtocol.FILE_SENDING)
+                || line.startsWith(ChatProtocol.FILE_ERROR);
+    }
+
+    /**
+     * Acts on the server's answer to a file transfer request. Runs on the reader thread.
+     */
+    private void handleTransferReply(String line) {
+        String[] parts = line.split(" +", 4);
+        long id;
+        try {
+            id = Long.parseLong(parts[1]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return;
+        }
+        if (line.startsWith(ChatProtocol.FILE_UPLOAD)) {
+            Upload upload = uploads.get(id);
+            if (upload == null) {
+                // The answer to the oldest offer; a resumed upload already has its id
+                upload = pendingOffers.poll();
+                if (upload == null) {
+                    return;
+                }
+                uploads.put(id, upload);
+            }
+            long offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            files.add(id, upload.channel, offset, upload.size, upload.bytesPerSecond);
+            // Queued after the file, so that it wakes the writer if it is waiting for messages
+            enqueue(encodeCommand(ChatProtocol.FILE_SENDING + id + " " + offset + " " + upload.size));
+        } else if (line.startsWith(ChatProtocol.FILE_SENDING)) {
+            Download download = downloads.get(id);
+            if (download != null && download.received == download.shared.size) {
+                // Nothing left to send, so no data will arrive to finish it
+                finishDownload(download);
+            }
+        } else {
+            String reason = parts.length > 2 ? line.substring(line.indexOf(parts[2])) : "refused";
+            files.remove(id);
+            Upload upload = id == 0 ? pendingOffers.poll() : uploads.remove(id);
+            if (upload != null) {
+                closeQuietly(upload.channel);
             }
-        }).start();
+            Download download = downloads.remove(id);
+            if (download != null) {
+                // The partial file is kept, so that asking again continues it
+                closeQuietly(download.channel);
+            }
+            onMessageReceived.accept(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "File transfer failed: " + reason);
+        }
+    }
+
+    /**
+     * Records a file announced in the room, closing it if it was our upload, and returns the
+     * announcement as a line for display.
+     */
+    private String fileShared(String line) {
+        String[] parts = line.substring(ChatProtocol.FILE_SHARED.length()).trim().split(" +", 4);
+        if (parts.length < 4) {
+            return line;
+        }
+        SharedFile shared;
+        try {
+            shared = new SharedFile(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    FileTransfers.safeName(parts[2]));
+        } catch (NumberFormatException e) {
+            return line;
+        }
+        sharedFiles.put(shared.id, shared);
+        Upload upload = uploads.remove(shared.id);
+        if (upload != null) {
+            closeQuietly(upload.channel);
+        }
+        return ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + parts[3] + " shared " + shared.name + " ("
+                + shared.size + " bytes). Type " + GET_FILE_COMMAND + shared.id + " to download it.";
+    }
+
+    /**
+     * Writes a piece of a file being downloaded. Runs on the reader thread.
+     */
+    private void receiveFileData(FrameCodec.Frame frame) {
+        Download download = downloads.get(frame.senderId);
+        if (download == null || frame.timestamp != download.received) {
+            // Left over from a download that failed or was restarted
+            return;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(frame.data, frame.dataOffset, frame.dataLength);
+            while (data.hasRemaining()) {
+                download.channel.write(data, download.received + data.position() - frame.dataOffset);
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            downloads.remove(download.shared.id);
+            closeQuietly(download.channel);
+            return;
+        }
+        download.received += frame.dataLength;
+        if (download.received == download.shared.size) {
+            finishDownload(download);
+        }
+    }
+
+    private void finishDownload(Download download) {
+        downloads.remove(download.shared.id);
+        closeQuietly(download.channel);
+        try {
+            Path target = saveTo(download.directory, download.shared.name);
+            if (Files.exists(target)) {
+                target = saveTo(download.directory, download.shared.id + "-" + download.shared.name);
+            }
+            Files.move(download.part, target);
+            onMessageReceived.accept(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Saved " + download.shared.name
+                    + " to " + target);
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Resolves a file name announced by the server in the download directory, refusing any name
+     * that would end up outside it.
+     *
+     * @throws IOException If the resolved path is not inside the directory
+     */
+    private static Path saveTo(Path directory, String name) throws IOException {
+        Path base = directory.toAbsolutePath().normalize();
+        Path path = base.resolve(name).normalize();
+        if (!path.getParent().equals(base)) {
+            throw new IOException("Refusing to save " + name + " outside " + directory);
+        }
+        return path;
+    }
+
+    /**
+     * Gives up every unfinished transfer once the client has disconnected for good. Partial
+     * downloads are left in place.
+     */
+    private void closeTransfers() {
+        files.clear();
+        pendingOffers.forEach(upload -> closeQuietly(upload.channel));
+        pendingOffers.clear();
+        uploads.values().forEach(upload -> closeQuietly(upload.channel));
+        uploads.clear();
+        downloads.values().forEach(download -> closeQuietly(download.channel));
+        downloads.clear();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing more to do with it
+        }
+    }
+
+    /**
+     * A file announced in the room.
+     */
+    private static final class SharedFile {
+        final long id;
+        final long size;
+        final String name;
+
+        SharedFile(long id, long size, String name) {
+            this.id = id;
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A file being shared by this client.
+     */
+    private static final class Upload {
+        final FileChannel channel;
+        final long size;
+        final long bytesPerSecond;
+        final String name;
+
+        Upload(FileChannel channel, long size, long bytesPerSecond, String name) {
+            this.channel = channel;
+            this.size = size;
+            this.bytesPerSecond = bytesPerSecond;
+            this.name = name;
+        }
+
+        String offer() {
+            return ChatProtocol.FILE_OFFER + size + " " + bytesPerSecond + " " + name;
+        }
+    }
+
+    /**
+     * A file being downloaded into its partial file.
+     */
+    private static final class Download {
+        final SharedFile shared;
+        final Path directory;
+        final Path part;
+        final FileChannel channel;
+        // Bytes written so far; only touched by the reader thread once started
+        long received;
+
+        Download(SharedFile shared, Path directory, Path part, FileChannel channel) throws IOException {
+            this.shared = shared;
+            this.directory = directory;
+            this.part = part;
+            this.channel = channel;
+            this.received = channel.size();
+        }
+    }
+
+    /**
+     * Disconnects from the server for good. The reader and writer threads stop on their own.
+     */
+    public void close() {
+        closed = true;
+        closeQuietly();
+        Thread readerThread = reader;
+        if (readerThread != null) {
+            // Wakes it if it is waiting to reconnect
+            readerThread.interrupt();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
     }
 }
\ No newline at end of file
@@ -3,23 +3,58 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.List;
 
 /**
  * A GUI client application for a chat system using Swing components.
- * This class creates a window with a text area for messages and an input field for sending messages.
+ * This class creates a window with a list of messages and an input field for sending messages.
+ *
+ * The message list only renders the rows in view, and keeps the most recent
+ * {@code -Dchat.client.historyLines} lines (10,000 by default) in memory. Older lines are paged
+ * to a temporary file and read back when scrolled to, unless {@code -Dchat.client.spillHistory=false},
+ * in which case they are dropped. The list follows new messages while it is scrolled to the bottom,
+ * and otherwise stays where it is. Received messages reach the list through a {@link UiDispatcher},
+ * at most once per frame however fast they arrive.
  */
 public class ChatClientGUI extends JFrame {
     // GUI Components
-    private final JTextArea messageArea;    // Area to display chat messages
+    private static final int DEFAULT_HISTORY_LINES = 10_000;
+
+    private final MessageListModel messages;  // Lines shown in the message list
+    private final JList<String> messageList;  // Area to display chat messages
+    private final JScrollPane scrollPane;
+    private final FontMetrics messageMetrics;
+    private final UiDispatcher dispatcher = new UiDispatcher(this::appendLines);
     private final JTextField textField;      // Input field for new messages
     private ChatClient client;         // Handles network communication
     private final JButton exitButton;
+    private final CustomTitleBar titleBar;
+    // When Host was clicked, until the first message arrives; 0 when joining, not logging
+    // (chat.host.stats) or once reported
+    private volatile long hostClickedNanos;
 
     /**
      * Constructor: Initializes the chat window and establishes connection to the server
      */
     public ChatClientGUI(String ipAddress, String name, ChatUtils.ServerOption serverOption) {
+        this(ipAddress, name, serverOption, null, 0);
+    }
+
+    /**
+     * Opens the host's chat window, connected in memory to the server embedded in this process.
+     *
+     * @param server           The server started for this host
+     * @param hostClickedNanos When the host clicked Host, for logging the time to the first message,
+     *                         or 0 not to log it
+     */
+    ChatClientGUI(String ipAddress, String name, ChatServer server, long hostClickedNanos) {
+        this(ipAddress, name, ChatUtils.ServerOption.HOST, server, hostClickedNanos);
+    }
+
+    private ChatClientGUI(String ipAddress, String name, ChatUtils.ServerOption serverOption, ChatServer server,
+                          long hostClickedNanos) {
         super("Chat Application - " + name);
+        this.hostClickedNanos = hostClickedNanos;
         setSize(800, 600);
         setUndecorated(true);
         
@@ -28,7 +63,7 @@ public class ChatClientGUI extends JFrame {
         
         // Initialize and add the custom title bar
         // Add CustomTitleBar as a field
-        CustomTitleBar titleBar = new CustomTitleBar(this, name);
+        titleBar = new CustomTitleBar(this, name);
         contentPanel.add(titleBar, BorderLayout.NORTH);
         
         // Create the gradient panel (your existing code)
@@ -56,36 +91,40 @@ public class ChatClientGUI extends JFrame {
 
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         // Initialize the message display area
-        messageArea = new JTextArea();
-        messageArea.setEditable(false);  // Make it read-only
+        messages = new MessageListModel(Integer.getInteger("chat.client.historyLines", DEFAULT_HISTORY_LINES),
+                !"false".equals(System.getProperty("chat.client.spillHistory")));
+        messageList = new JList<>(messages);
 
         // Style the message area
-        messageArea.setBackground(new Color(0, 0, 0));  // Black background
-        messageArea.setForeground(new Color(0, 255, 0));  // Electric green text
-        messageArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        messageArea.setCaretColor(new Color(0, 255, 0));
+        messageList.setBackground(new Color(0, 0, 0));  // Black background
+        messageList.setForeground(new Color(0, 255, 0));  // Electric green text
+        messageList.setSelectionBackground(new Color(0, 96, 0));
+        messageList.setSelectionForeground(new Color(0, 255, 0));
+        messageList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        // Fixed cell sizes, so that laying out the list never measures every row
+        messageMetrics = messageList.getFontMetrics(messageList.getFont());
+        messageList.setFixedCellHeight(messageMetrics.getHeight() + 2);
+        messageList.setFixedCellWidth(1);
 
         // Create a styled scroll pane
-        JScrollPane scrollPane = new JScrollPane(messageArea);
+        scrollPane = new JScrollPane(messageList);
         scrollPane.getViewport().setBackground(new Color(0, 0, 0));
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
 
         // Provide welcome message based on ServerOption selected
         String welcomeMessageHost = "Welcome to the chat! You are hosting. Share your IP Address to other users: "
-                + ipAddress + "\n";
-        String welcomeMessageJoin = "Welcome to the chat! You joined server: " + ipAddress + "\n";
+                + ipAddress;
+        String welcomeMessageJoin = "Welcome to the chat! You joined server: " + ipAddress;
         switch (serverOption) {
-            case HOST -> messageArea.append(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + welcomeMessageHost);
-            case JOIN -> messageArea.append(ChatUtils.MessageSenderInfo.USER.messagePrefix() + welcomeMessageJoin);
+            case HOST -> appendLines(List.of(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + welcomeMessageHost));
+            case JOIN -> appendLines(List.of(ChatUtils.MessageSenderInfo.USER.messagePrefix() + welcomeMessageJoin));
         }
 
         // Initialize and configure the input text field
         textField = new JTextField();
         // Add listener to handle message sending when Enter is pressed
         textField.addActionListener(e -> {
-            String message = ChatUtils.MessageSenderInfo.USER.messagePrefix() + name + ": "
-                    + textField.getText();
-            client.sendMessage(message);
+            client.sendChat(name, textField.getText());
             textField.setText("");  // Clear the input field after sending
         });
 
@@ -127,9 +166,7 @@ public class ChatClientGUI extends JFrame {
         // Initialize sendMessage button
         JButton sendMessageButton = new JButton("Send");
         sendMessageButton.addActionListener(e -> {
-            String message = ChatUtils.MessageSenderInfo.USER.messagePrefix() + name + ": "
-                    + textField.getText();
-            client.sendMessage(message);
+            client.sendChat(name, textField.getText());
             textField.setText("");
         });
 
@@ -183,8 +220,13 @@ public class ChatClientGUI extends JFrame {
 
         try {
             // Initialize chat client with localhost connection
-            this.client = new ChatClient(InetAddress.getByName(ipAddress), 5000, this::onMessageReceived);
+            // The server port can be changed with -Dchat.client.port, e.g. to reach a federated node
+            int port = Integer.getInteger("chat.client.port", ServerConfig.DEFAULT_PORT);
+            this.client = server != null ? new ChatClient(server::connectLocal, this::onMessageReceived)
+                    : new ChatClient(InetAddress.getByName(ipAddress), port, this::onMessageReceived);
+            client.setConnectionListener(this::onConnectionStateChanged);
             client.startClient();
+            client.login(name);
         } catch (IOException e) {
             e.printStackTrace();
             // Show error dialog if connection fails
@@ -196,11 +238,49 @@ public class ChatClientGUI extends JFrame {
 
     /**
      * Callback method to handle received messages
-     * Updates the message area safely using SwingUtilities.invokeLater
+     * Hands the message to the dispatcher, which updates the message area on the event dispatch thread
      * @param message The received message to display
      */
     private void onMessageReceived(String message) {
-        SwingUtilities.invokeLater(() -> messageArea.append(message + "\n"));
+        long clicked = hostClickedNanos;
+        if (clicked != 0) {
+            hostClickedNanos = 0;
+            System.out.printf("Hosting: first message delivered %.1f ms after clicking Host%n",
+                    (System.nanoTime() - clicked) / 1e6);
+        }
+        dispatcher.submit(message);
+    }
+
+    /**
+     * Adds lines to the message list, keeping the newest line in view if the list was scrolled to
+     * the bottom. Called on the event dispatch thread.
+     */
+    private void appendLines(List<String> lines) {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - messageList.getFixedCellHeight();
+        int width = messageList.getFixedCellWidth();
+        for (String line : lines) {
+            width = Math.max(width, messageMetrics.stringWidth(line) + 8);
+        }
+        if (width > messageList.getFixedCellWidth()) {
+            // Rows are as wide as the widest line so far, so long lines scroll horizontally
+            messageList.setFixedCellWidth(width);
+        }
+        messages.appendAll(lines);
+        if (atBottom) {
+            // Lay out the longer list now, so that it can be scrolled to its new last row
+            scrollPane.validate();
+            messageList.ensureIndexIsVisible(messages.getSize() - 1);
+        }
+    }
+
+    /**
+     * Callback for connection changes: shows reconnect progress in the title bar and notes each
+     * change in the message area, in order with the messages. Called from the client's reader thread.
+     */
+    private void onConnectionStateChanged(ChatClient.ConnectionState state, String detail) {
+        SwingUtilities.invokeLater(() -> titleBar.setStatus(state == ChatClient.ConnectionState.CONNECTED ? "" : detail));
+        dispatcher.submit(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + detail);
     }
 
     public JButton getExitButton() {
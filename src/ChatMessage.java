@@ -0,0 +1,177 @@
+/**
+ * One message on its way from the server to its recipients.
+ *
+ * Recipients may speak the legacy line protocol, binary frames or compressed binary frames, so a
+ * message is encoded lazily, at most once per protocol, and each encoding is shared by every
+ * recipient that uses it.
+ * The message owns one reference to each frame it has encoded until {@link #release()}.
+ *
+ * A message is built and fanned out by a single thread; it is not safe to share between threads
+ * before it has been released.
+ */
+final class ChatMessage {
+    private static final MessageStamp.Clock CLOCK = new MessageStamp.Clock("[", "] ");
+
+    // FrameCodec.CHAT, TEXT or NAME
+    final byte type;
+    // Session id of the sender, or 0 for messages from the server itself
+    final long senderId;
+    final String senderName;
+    final long timestamp;
+    final String body;
+    // Server-assigned id (the log offset if the server keeps a log), set when the message is published
+    // in a room; -1 if it has none
+    private long id = -1;
+    private SharedFrame textFrame;
+    private SharedFrame binaryFrame;
+    private SharedFrame compressedFrame;
+
+    private ChatMessage(byte type, long senderId, String senderName, long timestamp, String body) {
+        this.type = type;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.timestamp = timestamp;
+        this.body = body;
+    }
+
+    /**
+     * A chat message typed by a user, stamped with the current time.
+     */
+    static ChatMessage chat(ChatSession sender, String text) {
+        return new ChatMessage(FrameCodec.CHAT, sender.id(), displayName(sender), System.currentTimeMillis(), text);
+    }
+
+    /**
+     * A preformatted line, relayed verbatim to every recipient.
+     *
+     * @param sender The session the line came from, or null if the server generated it
+     */
+    static ChatMessage text(ChatSession sender, String line) {
+        long senderId = sender != null ? sender.id() : 0;
+        return new ChatMessage(FrameCodec.TEXT, senderId, null, System.currentTimeMillis(), line);
+    }
+
+    /**
+     * A message relayed from another node, already formatted for display there. Delivered as text
+     * because the sender's session id is only meaningful on its own node.
+     */
+    static ChatMessage relayed(long timestamp, String line) {
+        return new ChatMessage(FrameCodec.TEXT, 0, null, timestamp, line);
+    }
+
+    /**
+     * A message read back from the message log to fill a reconnecting client's gap. Delivered as
+     * text like a relayed message, because the sender's session may be long gone.
+     */
+    static ChatMessage logged(MessageLog.Record record) {
+        ChatMessage message = new ChatMessage(FrameCodec.TEXT, 0, null, record.timestamp, displayLine(record));
+        message.id = record.offset;
+        return message;
+    }
+
+    /**
+     * Renders a logged message as the line its recipients saw; also used for search results.
+     */
+    static String displayLine(MessageLog.Record record) {
+        return record.type == FrameCodec.CHAT
+                ? formatChat(record.timestamp, record.senderName, record.body) : record.body;
+    }
+
+    /**
+     * A private message, rendered the same way for the recipient and for the sender's own copy.
+     */
+    static ChatMessage direct(ChatSession sender, String recipientName, String text) {
+        long timestamp = System.currentTimeMillis();
+        String line = formatChat(timestamp, displayName(sender) + " -> " + recipientName, text);
+        return new ChatMessage(FrameCodec.TEXT, sender.id(), displayName(sender), timestamp, line);
+    }
+
+    /**
+     * Announces a session's username to binary clients. Legacy clients never see it, because
+     * their lines already carry the name.
+     */
+    static ChatMessage name(ChatSession session) {
+        return new ChatMessage(FrameCodec.NAME, session.id(), session.getUsername(), 0, session.getUsername());
+    }
+
+    /**
+     * Records the message's id. Must be called before the message is first encoded, since
+     * binary frames carry the id.
+     */
+    void assignId(long id) {
+        this.id = id;
+    }
+
+    long id() {
+        return id;
+    }
+
+    /**
+     * Returns this message encoded for a recipient, with one extra reference for the caller.
+     *
+     * @param binary     Whether the recipient has negotiated binary frames
+     * @param compressed Whether the recipient has also negotiated compression
+     * @return The frame, or null if the message is not delivered in that protocol
+     */
+    SharedFrame frameFor(boolean binary, boolean compressed) {
+        SharedFrame frame;
+        if (binary && compressed) {
+            if (compressedFrame == null) {
+                compressedFrame = SharedFrame.encodeBinary(type, senderId, timestamp, id, body, true);
+            }
+            frame = compressedFrame;
+        } else if (binary) {
+            if (binaryFrame == null) {
+                binaryFrame = SharedFrame.encodeBinary(type, senderId, timestamp, id, body, false);
+            }
+            frame = binaryFrame;
+        } else {
+            if (type == FrameCodec.NAME) {
+                return null;
+            }
+            if (textFrame == null) {
+                textFrame = SharedFrame.encode(toLine());
+            }
+            frame = textFrame;
+        }
+        frame.retain(1);
+        return frame;
+    }
+
+    /**
+     * Drops the message's own references once every recipient has been handed its frame.
+     */
+    void release() {
+        if (textFrame != null) {
+            textFrame.release();
+        }
+        if (binaryFrame != null) {
+            binaryFrame.release();
+        }
+        if (compressedFrame != null) {
+            compressedFrame.release();
+        }
+    }
+
+    /**
+     * Renders the message the way the legacy line protocol carries it: "[HH:mm:ss] name: text".
+     */
+    String toLine() {
+        if (type != FrameCodec.CHAT) {
+            return body;
+        }
+        return formatChat(timestamp, senderName, body);
+    }
+
+    /**
+     * Formats a chat message as a display line; also used by clients to render binary chat frames.
+     */
+    static String formatChat(long timestamp, String senderName, String text) {
+        return CLOCK.format(timestamp) + senderName + ": " + text;
+    }
+
+    private static String displayName(ChatSession session) {
+        String username = session.getUsername();
+        return username != null ? username : "user" + session.id();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Constants shared by {@link ChatClient} and the server for the newline-delimited text protocol.
+ *
+ * Lines starting with {@code /} are protocol commands; the GUI prefixes every chat message with a
+ * timestamp, so user text never starts a line with one. Over binary frames, commands travel in
+ * text frames and chat messages in chat frames.
+ *
+ * Every client is in one room at a time and only receives messages sent in that room. It starts
+ * in {@code lobby}, moves with {@code "/join <room>"} and returns to the lobby with
+ * {@code "/leave"}. {@code "/msg <user> <text>"} sends a private message to one user, wherever
+ * they are.
+ *
+ * A client may offer binary frames (see {@link FrameCodec}) by sending
+ * {@code "/protocol binary/1"} as its very first line. A server that supports them replies
+ * {@code "/protocol-ok binary/1"} and both sides switch to frames from the next byte on; otherwise
+ * it replies {@code "/protocol-ok text"} and the connection stays on lines. A server predating the
+ * handshake broadcasts the offer like any other line, so a client that receives its own offer back
+ * knows to stay on lines as well. Clients that never offer keep using the line protocol.
+ *
+ * Optional extensions follow the protocol name in the offer, separated by spaces; the reply lists
+ * the ones the server accepted: {@code deflate-dict/1}, per-message compression with
+ * {@link CompressionDictionary}, {@code resume/1}, which says the server understands
+ * {@code /resume}, and {@code heartbeat/1}. For example
+ * {@code "/protocol binary/1 deflate-dict/1 resume/1 heartbeat/1"}.
+ *
+ * A client that reconnects after losing its connection sends {@code "/resume <room> <id>"} with
+ * the room it was in and the id of the last message it received there (see {@link FrameCodec}),
+ * or -1 if it has none. The server answers {@code "/resumed <room>"} and follows it with the
+ * messages sent in the room since that id, then live messages; anything the client receives
+ * before the answer is already covered by it and can be discarded.
+ *
+ * On a connection that negotiated {@code heartbeat/1}, either side may send {@code "/ping"} when it
+ * has heard nothing from the other for a while, and the other answers {@code "/pong"}. Neither is
+ * shown to the user. The server disconnects a client that stays silent for several pings.
+ *
+ * Clients on binary frames can share files in their room. A client offers one with
+ * {@code "/file-offer <size> <bytes per second> <name>"}, the rate being a bandwidth cap for the
+ * transfer or 0 for none, and the server answers {@code "/file-upload <id> <offset>"}: the client
+ * sends {@code "/file-sending <id> <offset> <size>"} and then the file from that offset in
+ * {@link FrameCodec#FILE_DATA} frames, between its other messages. Once the whole file is staged
+ * the server tells the room {@code "/file <id> <size> <name> <sender>"}, and a member fetches it
+ * with {@code "/file-get <id> <offset>"}, to which the server likewise answers with
+ * {@code "/file-sending"} and the frames. After reconnecting, a client continues an upload with
+ * {@code "/file-resume <id>"}, answered by {@code "/file-upload"} with the offset the server has,
+ * and a download with {@code "/file-get"} from the offset it has. A request that cannot be met is
+ * answered {@code "/file-error <id> <reason>"}.
+ *
+ * {@code "/search <words> [from:<user>] [in:<room>] [since:<when>] [until:<when>] [limit:<n>]"}
+ * searches the history of a room, the client's own unless {@code in:} names another, for messages
+ * containing every word. The server answers with a summary line, then one line per match, newest
+ * first, each indented by two spaces.
+ */
+final class ChatProtocol {
+    // Sent by a client right after connecting to identify itself: "/name <username>"
+    static final String NAME_COMMAND = "/name ";
+    // Moves the client to another room, creating it if needed: "/join <room>"
+    static final String JOIN_COMMAND = "/join ";
+    // Returns the client to the lobby
+    static final String LEAVE_COMMAND = "/leave";
+    // Private message to one user: "/msg <username> <text>"
+    static final String DIRECT_COMMAND = "/msg ";
+    // Rejoins a room after reconnecting: "/resume <room> <last message id>"
+    static final String RESUME_COMMAND = "/resume ";
+    // Marks where the messages a resuming client missed begin: "/resumed <room>"
+    static final String RESUME_REPLY = "/resumed ";
+    // Searches the message history: "/search <words and filters>"
+    static final String SEARCH_COMMAND = "/search ";
+    // Handshake offer from the client: "/protocol <name>"
+    static final String PROTOCOL_COMMAND = "/protocol ";
+    // Handshake reply from the server, naming the protocol chosen: "/protocol-ok <name>"
+    static final String PROTOCOL_REPLY = "/protocol-ok ";
+    // The binary frame protocol, with its version
+    static final String BINARY_PROTOCOL = "binary/" + FrameCodec.VERSION;
+    // The newline-delimited text protocol
+    static final String TEXT_PROTOCOL = "text";
+    // Extension for compressed binary frame payloads, with the dictionary version
+    static final String COMPRESSION_EXTENSION = "deflate-dict/" + CompressionDictionary.VERSION;
+    // Extension saying the server understands RESUME_COMMAND
+    static final String RESUME_EXTENSION = "resume/1";
+    // Extension for PING and PONG heartbeats on an otherwise quiet connection
+    static final String HEARTBEAT_EXTENSION = "heartbeat/1";
+    // Asks the other side to show it is still there
+    static final String PING = "/ping";
+    // The answer to PING
+    static final String PONG = "/pong";
+    // Prefix shared by the file transfer commands
+    static final String FILE_PREFIX = "/file";
+    // Offers a file to the room: "/file-offer <size> <bytes per second> <name>"
+    static final String FILE_OFFER = "/file-offer ";
+    // Asks for a file's data from an offset: "/file-upload <id> <offset>"
+    static final String FILE_UPLOAD = "/file-upload ";
+    // Continues an interrupted upload: "/file-resume <id>"
+    static final String FILE_RESUME = "/file-resume ";
+    // Precedes the data frames of a file: "/file-sending <id> <offset> <size>"
+    static final String FILE_SENDING = "/file-sending ";
+    // Tells a room that a file is ready to fetch: "/file <id> <size> <name> <sender>"
+    static final String FILE_SHARED = "/file ";
+    // Fetches a shared file from an offset: "/file-get <id> <offset>"
+    static final String FILE_GET = "/file-get ";
+    // Refuses a file request: "/file-error <id> <reason>"
+    static final String FILE_ERROR = "/file-error ";
+
+    private ChatProtocol() {
+    }
+}
@@ -1,22 +1,82 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.net.InetAddress;
 
 /**
- * A simple multi-client chat server that accepts connections on port 5000.
- * The server maintains a list of connected clients and broadcasts messages
+ * A simple multi-client chat server that accepts connections on port 5000 (change with {@code --port}).
+ * The server maintains a registry of connected clients and broadcasts messages
  * from any client to all connected clients.
+ *
+ * The connection handling strategy is chosen at startup with {@code --mode=<name>}:
+ * {@code blocking} (the default) uses one platform thread per client, {@code virtual}
+ * uses one virtual thread per client, and {@code nio} uses a small pool of selector event loops.
+ *
+ * Every client has a bounded outbound queue so a slow reader cannot stall a broadcast, and
+ * queued messages are coalesced into batched writes. See {@link ServerConfig} for the options.
+ *
+ * Messages are delivered to the members of the sender's room only (see {@link RoomRegistry});
+ * private messages go straight to their recipient. Several servers can share rooms by federating
+ * (see {@link Federation}).
+ *
+ * Clients may negotiate compact binary frames instead of text lines (see {@link ChatProtocol});
+ * both kinds of client can share a server, and each message is converted for its recipients.
+ *
+ * A host embeds the server in its own process with {@link #start(ServerConfig)} and {@link #stop()},
+ * and connects its own window through {@link #connectLocal()} without a network socket.
  */
 
 public class ChatServer {
-    // List to keep track of connected clients
-    private static List<ClientHandler> clients = new ArrayList<>();
+    /**
+     * How client sockets are serviced.
+     */
+    enum Mode {
+        BLOCKING,
+        VIRTUAL,
+        NIO
+    }
+
+    // Registry of connected clients; shared by every handler thread and event loop
+    private static final ClientRegistry clients = new ClientRegistry();
+    // Traffic counters and latency histograms, including flush counters summed over every client connection
+    private static final ServerMetrics metrics = new ServerMetrics(clients);
+    // Whether clients may negotiate compressed frames; set from the configuration at startup
+    private static volatile boolean compressionEnabled = true;
+    // Routing table of rooms; replaced at startup with one that keeps the configured history
+    private static volatile RoomRegistry rooms = new RoomRegistry(0, null, 0, null);
+    // Links to the other nodes sharing our rooms, or null if this server runs alone
+    private static volatile Federation federation;
+    // Pings and reaps silent clients, or null if heartbeats are off
+    private static volatile HeartbeatWheel heartbeats;
+    // Files shared in rooms, staged on disk; null while no server is running
+    private static volatile FileTransfers transfers;
+    // Full-text index of the message log; null while no server is running, or if it keeps no log
+    private static volatile SearchIndex search;
+    // How long stop() waits for disconnected clients to unregister
+    private static final int STOP_TIMEOUT_SECONDS = 5;
+    // The server started in this process and not yet stopped, or null
+    private static ChatServer running;
+
+    private final ServerConfig config;
+    private final MessageLog log;
+    // Closes the log if the process exits while the server runs; removed by stop(), or null
+    private final Thread shutdownHook;
+    // Budgets of messages and bytes per second for every client and for the server as a whole
+    private final RateLimiter rateLimiter;
+    // Threads for each client's reader and writer; virtual except in blocking mode
+    private final Thread.Builder threads;
+    private final AtomicLong nextClientId = new AtomicLong();
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final List<Thread> acceptors = new ArrayList<>();
+    private NioChatServer nio;
+    private volatile boolean stopped;
+    private final CountDownLatch done = new CountDownLatch(1);
 
     public static void main(String[] args) throws IOException {
-        // Remove binding to specific IP and use 0.0.0.0 to listen on all interfaces
-        ServerSocket serverSocket = new ServerSocket(5000);
-        System.out.println("Server started on port 5000");
+        ChatServer server = start(ServerConfig.fromOptions(ChatUtils.parseOptions(args)));
         System.out.println("Server IP addresses:");
         // Print all server IP addresses for convenience
         NetworkInterface.getNetworkInterfaces().asIterator().forEachRemaining(networkInterface -> {
@@ -27,40 +87,620 @@ public class ChatServer {
             });
         });
         System.out.println("Waiting for clients...");
+        server.awaitStop();
+    }
+
+    /**
+     * Starts a server in this process and returns once it is listening, so that clients can
+     * connect as soon as it returns. Clients are accepted on background threads until {@link #stop()}.
+     *
+     * The server's state is shared by every connection through static fields, so a process runs
+     * at most one server at a time; another can be started once it has stopped.
+     *
+     * @throws IOException           If the message log, the staging directory, the search index or
+     *                               a listening socket cannot be opened; nothing is left running
+     * @throws IllegalStateException If a server is already running in this process
+     */
+    static synchronized ChatServer start(ServerConfig config) throws IOException {
+        if (running != null) {
+            throw new IllegalStateException("A server is already running in this process");
+        }
+        compressionEnabled = config.compression;
+        MessageLog log = MessageLog.open(config);
+        Thread shutdownHook = null;
+        if (log != null) {
+            // Force the last group commit to disk on a normal shutdown
+            shutdownHook = new Thread(log::close);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+        ChatServer server = new ChatServer(config, log, shutdownHook);
+        try {
+            Federation peers = Federation.fromConfig(config);
+            // A resume replay fills at most half the client's queue, leaving room for messages held meanwhile
+            rooms = new RoomRegistry(config.historySize, log, Math.max(1, config.queueCapacity / 2), peers);
+            federation = peers;
+            if (peers != null) {
+                peers.start();
+            }
+            heartbeats = HeartbeatWheel.start(config);
+            metrics.start(config, heartbeats);
+            transfers = FileTransfers.open(config);
+            search = SearchIndex.open(config, log, metrics);
+            server.listen();
+        } catch (IOException | RuntimeException e) {
+            // Undoes whatever was started, down to the log and its shutdown hook
+            server.stop();
+            throw e;
+        }
+        System.out.println("Server started on port " + config.port + " (" + config.describe() + ")");
+        if (config.mode == Mode.VIRTUAL && config.flushDelayNanos > 0 && Runtime.getRuntime().availableProcessors() == 1) {
+            // Timed waits on a single carrier thread can be starved by a flooding client's reader
+            System.out.println("Warning: a flush delay in virtual mode needs more than one CPU core to keep up with bursts");
+        }
+        running = server;
+        return server;
+    }
+
+    private ChatServer(ServerConfig config, MessageLog log, Thread shutdownHook) {
+        this.config = config;
+        this.log = log;
+        this.shutdownHook = shutdownHook;
+        this.rateLimiter = new RateLimiter(config, metrics);
+        this.threads = config.mode == Mode.BLOCKING ? Thread.ofPlatform() : Thread.ofVirtual();
+    }
+
+    /**
+     * Binds the listening sockets and starts accepting on them.
+     */
+    private void listen() throws IOException {
+        if (config.mode == Mode.NIO) {
+            nio = new NioChatServer(clients, config, metrics.flushStats(), rateLimiter);
+            nio.start();
+        } else {
+            listenThreadPerClient();
+        }
+    }
+
+    /**
+     * Accepts clients on background threads, servicing each one with a reader thread and a writer
+     * thread. With several acceptors configured, they either share the listening socket or, with
+     * {@code --reuse-port}, each open their own on the same port so that the kernel spreads
+     * incoming connections between them. Per-client threads are virtual in virtual mode, which lets
+     * idle clients cost a small heap object instead of an OS thread and its stack.
+     */
+    private void listenThreadPerClient() throws IOException {
+        ServerSocket sharedSocket = config.reusePort ? null : config.openServerSocket();
+        for (int i = 0; i < config.acceptors; i++) {
+            serverSockets.add(sharedSocket != null ? sharedSocket : config.openServerSocket());
+        }
+        for (int i = 0; i < serverSockets.size(); i++) {
+            ServerSocket serverSocket = serverSockets.get(i);
+            acceptors.add(Thread.ofPlatform().name("acceptor-" + i).start(() -> acceptClients(serverSocket)));
+        }
+    }
+
+    private void acceptClients(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket = null;
+            try {
+                clientSocket = serverSocket.accept();
+                config.configure(clientSocket);
+                System.out.println(MessageStamp.LOG.now() + "New client connected: " + clientSocket.getInetAddress());
+                serve(clientSocket);
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;  // Stopped
+                }
+                System.out.println("An error occurred: " + e.getMessage());
+                if (clientSocket != null) {
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ignored) {
+                        // Already closed
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the reader and writer threads of a connected client.
+     */
+    private void serve(Socket clientSocket) throws IOException {
+        ClientHandler clientThread = new ClientHandler(clientSocket, clients, config, metrics.flushStats(),
+                rateLimiter.newClient());
+        long clientId = nextClientId.getAndIncrement();
+        // Builders are not thread-safe, and acceptors and local connections may name threads at once
+        synchronized (threads) {
+            Thread writer = threads.name("client-writer-" + clientId).start(clientThread::drainOutbound);
+            clientThread.setWriterThread(writer);
+            threads.name("client-" + clientId).start(clientThread);
+        }
+    }
+
+    /**
+     * Opens a connection to this server from within the process, through memory rather than a
+     * loopback socket, for a client running alongside it such as the host's own chat window.
+     * The server end is serviced by reader and writer threads like an accepted socket, in every
+     * mode, since an event loop can only watch real channels.
+     *
+     * @return The client's end of the connection
+     * @throws IOException If the server has stopped
+     */
+    Socket connectLocal() throws IOException {
+        if (stopped) {
+            throw new IOException("The server has stopped");
+        }
+        InMemorySocket[] ends = InMemorySocket.pair();
+        System.out.println(MessageStamp.LOG.now() + "New client connected: in-process");
+        serve(ends[1]);
+        return ends[0];
+    }
+
+    /**
+     * Stops accepting clients, disconnects every connected client, closes the links to federated
+     * peers, and stops the heartbeats, the metrics reporting and the message log. Calling it again
+     * is harmless.
+     */
+    void stop() {
+        synchronized (ChatServer.class) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (running == this) {
+                running = null;
+            }
+        }
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        // A socket closed under a blocked accept is only released once the acceptor has woken up,
+        // and the port cannot be bound again until then
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (nio != null) {
+            nio.stop();
+        }
+        for (ChatSession session : clients.sessions()) {
+            session.disconnect();
+        }
+        // Sessions unregister on their own threads; wait, so that a server started next finds
+        // their usernames free
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS);
+        while (clients.size() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Federation peers = federation;
+        if (peers != null) {
+            peers.stop();
+            federation = null;
+        }
+        // Drops the rooms' history, and with it the last references to the log
+        rooms.close();
+        rooms = new RoomRegistry(0, null, 0, null);
+        HeartbeatWheel wheel = heartbeats;
+        if (wheel != null) {
+            wheel.stop();
+            heartbeats = null;
+        }
+        metrics.stop();
+        FileTransfers staged = transfers;
+        if (staged != null) {
+            staged.close();
+            transfers = null;
+        }
+        SearchIndex index = search;
+        if (index != null) {
+            // Before the log, which it reads while writing out what it indexed last
+            index.close();
+            search = null;
+        }
+        if (log != null) {
+            log.close();
+        }
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Stopped while the process is exiting; the hook may be running already
+            }
+        }
+        System.out.println("Server stopped");
+        done.countDown();
+    }
+
+    /**
+     * Waits until the server has been stopped.
+     */
+    void awaitStop() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Registers a newly connected client and puts it in the lobby, queueing the lobby's recent
+     * history for it ahead of live messages. Every client starts out speaking text, so the history
+     * is replayed as lines; a client that negotiates binary frames receives them as early lines.
+     * The heartbeat wheel watches every client for silence from here on.
+     *
+     * @param clients The registry of connected clients
+     * @param session The new session, not yet registered
+     */
+    static void join(ClientRegistry clients, ChatSession session) {
+        clients.add(session);
+        HeartbeatWheel wheel = heartbeats;
+        if (wheel != null) {
+            wheel.register(session);
+        }
+        rooms.join(session, RoomRegistry.LOBBY);
+    }
+
+    /**
+     * Takes a disconnected client out of its room and the registry. Calling it twice is harmless.
+     */
+    static void leave(ClientRegistry clients, ChatSession session) {
+        rooms.leave(session);
+        clients.remove(session);
+    }
+
+    /**
+     * Returns the server's traffic counters and latency histograms, for the transports to record into.
+     */
+    static ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Processes one line received from a client, whichever transport it arrived on.
+     * Protocol commands are handled here; anything else is sent to everyone in the sender's room.
+     *
+     * @param clients The registry of connected clients
+     * @param sender  The session the line was received from
+     * @param line    The received line, without its terminator
+     */
+    static void handleLine(ClientRegistry clients, ChatSession sender, String line) {
+        if (line.startsWith(ChatProtocol.NAME_COMMAND)) {
+            String username = line.substring(ChatProtocol.NAME_COMMAND.length()).trim();
+            if (username.isEmpty()) {
+                return;
+            }
+            if (clients.bindUsername(sender, username)) {
+                // Binary clients render senders from their ids, so tell them the new name
+                broadcast(clients, ChatMessage.name(sender));
+            } else {
+                sender.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix()
+                        + "The username " + username + " is already in use.");
+            }
+            return;
+        }
+        if (line.equals(ChatProtocol.PING)) {
+            sender.send(ChatProtocol.PONG);
+            return;
+        }
+        if (line.equals(ChatProtocol.PONG)) {
+            // Receiving it already counted as activity
+            return;
+        }
+        if (line.startsWith(ChatProtocol.PROTOCOL_COMMAND)) {
+            negotiate(clients, sender, line.substring(ChatProtocol.PROTOCOL_COMMAND.length()).trim());
+            return;
+        }
+        if (line.startsWith(ChatProtocol.JOIN_COMMAND)) {
+            joinRoom(sender, line.substring(ChatProtocol.JOIN_COMMAND.length()).trim());
+            return;
+        }
+        if (line.trim().equals(ChatProtocol.LEAVE_COMMAND)) {
+            joinRoom(sender, RoomRegistry.LOBBY);
+            return;
+        }
+        if (line.startsWith(ChatProtocol.RESUME_COMMAND)) {
+            resume(sender, line.substring(ChatProtocol.RESUME_COMMAND.length()).trim());
+            return;
+        }
+        if (line.startsWith(ChatProtocol.DIRECT_COMMAND)) {
+            sendDirect(clients, sender, line.substring(ChatProtocol.DIRECT_COMMAND.length()).trim());
+            return;
+        }
+        if (line.startsWith(ChatProtocol.FILE_PREFIX)) {
+            FileTransfers staged = transfers;
+            if (staged != null) {
+                staged.handle(sender, line);
+            }
+            return;
+        }
+        if (line.startsWith(ChatProtocol.SEARCH_COMMAND) || line.trim().equals(ChatProtocol.SEARCH_COMMAND.trim())) {
+            SearchIndex index = search;
+            if (index != null) {
+                index.search(sender, line.substring(Math.min(line.length(), ChatProtocol.SEARCH_COMMAND.length())));
+            } else {
+                sender.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix()
+                        + "Search is not available: the server keeps no message log");
+            }
+            return;
+        }
+        sendToRoom(sender, ChatMessage.text(sender, line));
+    }
+
+    /**
+     * Processes one binary frame received from a client. Chat frames are stamped with the sender
+     * and the current time and sent to the sender's room; text frames are handled exactly like received lines,
+     * and file data frames are staged as part of the sender's upload.
+     *
+     * @param clients The registry of connected clients
+     * @param sender  The session the frame was received from
+     * @param frame   The received frame
+     */
+    static void handleFrame(ClientRegistry clients, ChatSession sender, FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case FrameCodec.CHAT -> sendToRoom(sender, ChatMessage.chat(sender, frame.payload));
+            case FrameCodec.TEXT -> handleLine(clients, sender, frame.payload);
+            case FrameCodec.FILE_DATA -> {
+                FileTransfers staged = transfers;
+                if (staged != null) {
+                    staged.receive(sender, frame);
+                }
+            }
+            default -> System.out.println("Ignoring frame of unknown type " + frame.type);
+        }
+    }
+
+    /**
+     * Delivers a message to the members of the sender's room on this node and relays it to the
+     * other nodes with members in the room, then releases it.
+     */
+    static void sendToRoom(ChatSession sender, ChatMessage message) {
+        Room room = sender.getRoom();
+        if (room == null) {
+            // The sender disconnected while the message was being handled
+            message.release();
+            return;
+        }
+        deliver(room, message);
+        Federation peers = federation;
+        if (peers != null) {
+            peers.relay(room.name, message);
+        }
+        message.release();
+    }
+
+    /**
+     * Delivers a line from the server itself to the members of the sender's room on this node,
+     * e.g. that a file has been shared there. Not relayed to other nodes, since only this node has
+     * the file.
+     */
+    static void announceInRoom(ChatSession sender, String line) {
+        Room room = sender.getRoom();
+        if (room == null) {
+            return;
+        }
+        ChatMessage message = ChatMessage.text(null, line);
+        deliver(room, message);
+        message.release();
+    }
+
+    /**
+     * Delivers a message relayed by another node to the room's members on this node.
+     *
+     * @param roomName  The room it was sent in
+     * @param timestamp When the origin node received it
+     * @param line      The message formatted for display
+     */
+    static void deliverRelayed(String roomName, long timestamp, String line) {
+        Room room = rooms.find(roomName);
+        if (room == null) {
+            // Everyone here left the room before the unsubscription reached the origin
+            return;
+        }
+        ChatMessage message = ChatMessage.relayed(timestamp, line);
+        deliver(room, message);
+        message.release();
+    }
+
+    /**
+     * Delivers a message to the members of a room on this node. Each recipient gets the encoding
+     * for its own protocol, and each encoding is made at most once, so the work grows with the
+     * size of the room only. Publishing appends the message to the message log, which only copies
+     * it into memory, and keeps it in the room's history, which decides atomically with the join
+     * of a new member whether the member gets it live or in its replay.
+     */
+    private static void deliver(Room room, ChatMessage message) {
+        long start = System.nanoTime();
+        for (ChatSession client : room.publish(message)) {
+            client.send(message);
+        }
+        metrics.recordFanOut(start);
+    }
+
+    /**
+     * Delivers a message to every live client in every room, then releases it. Used for username
+     * announcements, which binary clients need for anyone who may send them a message.
+     */
+    static void broadcast(ClientRegistry clients, ChatMessage message) {
+        for (ChatSession client : clients.sessions()) {
+            client.send(message);
+        }
+        message.release();
+    }
+
+    /**
+     * Moves a client to another room, replaying that room's recent history to it.
+     */
+    private static void joinRoom(ChatSession session, String name) {
+        if (!RoomRegistry.isValidName(name)) {
+            session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Room names are 1 to "
+                    + RoomRegistry.MAX_NAME_LENGTH + " characters without spaces.");
+            return;
+        }
+        Room current = session.getRoom();
+        if (current != null && current.name.equals(name)) {
+            return;
+        }
+        session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "You are now in room " + name + ".");
+        rooms.join(session, name);
+    }
+
+    /**
+     * Puts a reconnected client back into its room, {@code "<room> <last message id>"}, and sends
+     * it what it missed there while it was away.
+     */
+    private static void resume(ChatSession session, String command) {
+        String[] fields = command.split(" +");
+        long lastSeenId;
+        try {
+            lastSeenId = fields.length == 2 ? Long.parseLong(fields[1]) : Long.MIN_VALUE;
+        } catch (NumberFormatException e) {
+            lastSeenId = Long.MIN_VALUE;
+        }
+        if (lastSeenId < -1 || !RoomRegistry.isValidName(fields[0])) {
+            session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Usage: "
+                    + ChatProtocol.RESUME_COMMAND + "<room> <last message id>");
+            return;
+        }
+        rooms.resume(session, fields[0], lastSeenId);
+    }
 
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("New client connected: " + clientSocket.getInetAddress());
-            ClientHandler clientThread = new ClientHandler(clientSocket, clients);
-            clients.add(clientThread);
-            new Thread(clientThread).start();
+    /**
+     * Sends a private message, {@code "<username> <text>"}, to one user through the username
+     * index, without touching any room. The sender gets a copy. Private messages are neither
+     * logged nor kept in a room's history.
+     */
+    private static void sendDirect(ClientRegistry clients, ChatSession sender, String command) {
+        int space = command.indexOf(' ');
+        if (space < 0) {
+            sender.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Usage: "
+                    + ChatProtocol.DIRECT_COMMAND + "<username> <message>");
+            return;
+        }
+        String recipientName = command.substring(0, space);
+        ChatSession recipient = clients.find(recipientName);
+        if (recipient == null) {
+            sender.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Nobody called " + recipientName
+                    + " is connected.");
+            return;
+        }
+        ChatMessage message = ChatMessage.direct(sender, recipientName, command.substring(space + 1).trim());
+        recipient.send(message);
+        if (recipient != sender) {
+            sender.send(message);
+        }
+        message.release();
+    }
+
+    /**
+     * Answers a client's protocol offer: the protocol name, optionally followed by extensions.
+     * On a switch to binary frames the client is also told the names of everyone already
+     * connected, since frames identify senders by id.
+     */
+    private static void negotiate(ClientRegistry clients, ChatSession session, String offer) {
+        List<String> offered = Arrays.asList(offer.split(" +"));
+        if (!offered.get(0).equals(ChatProtocol.BINARY_PROTOCOL) || session.binaryFrames()) {
+            session.send(ChatProtocol.PROTOCOL_REPLY + ChatProtocol.TEXT_PROTOCOL);
+            return;
+        }
+        boolean compressed = compressionEnabled && offered.contains(ChatProtocol.COMPRESSION_EXTENSION);
+        String reply = ChatProtocol.PROTOCOL_REPLY + ChatProtocol.BINARY_PROTOCOL;
+        if (compressed) {
+            reply += " " + ChatProtocol.COMPRESSION_EXTENSION;
+        }
+        if (offered.contains(ChatProtocol.RESUME_EXTENSION)) {
+            reply += " " + ChatProtocol.RESUME_EXTENSION;
+        }
+        HeartbeatWheel wheel = heartbeats;
+        boolean heartbeat = wheel != null && offered.contains(ChatProtocol.HEARTBEAT_EXTENSION);
+        if (heartbeat) {
+            reply += " " + ChatProtocol.HEARTBEAT_EXTENSION;
+        }
+        session.switchToBinaryFrames(reply, compressed);
+        if (heartbeat) {
+            session.enableHeartbeats();
+        }
+        for (ChatSession client : clients.sessions()) {
+            if (client.getUsername() != null) {
+                ChatMessage name = ChatMessage.name(client);
+                session.send(name);
+                name.release();
+            }
         }
     }
 }
 /**
  * Handles communication with a single connected client.
  * Receives messages from the client and broadcasts them to all connected clients.
+ * Messages for this client are queued by the broadcasting threads and written in batches by a
+ * dedicated writer thread running {@link #drainOutbound()}.
  */
 
-class ClientHandler implements Runnable {
+class ClientHandler extends AbstractChatSession implements Runnable {
     private Socket clientSocket;
-    private List<ClientHandler> clients;
-    private PrintWriter out;
-    private BufferedReader in;
+    private ClientRegistry clients;
+    private OutputStream out;
+    private InputStream in;
+    // Splits the input into lines, or into frames once binary frames are negotiated
+    private final ProtocolDecoder decoder;
+    private final RateLimiter.Client rateLimit;
+    private final FlushStats flushStats;
+    private final BatchingWriter writer;
+    private volatile Thread writerThread;
 
     /**
      * Creates a new ClientHandler for a connected client.
      *
      * @param clientSocket The socket connection to the client
-     * @param clients The list of all connected client handlers
+     * @param clients The registry of all connected clients
+     * @param config The server configuration, for outbound queue and flush settings
+     * @param serverFlushStats Server-wide flush counters this client's counters roll up into
+     * @param rateLimit The client's budget of messages and bytes per second
      * @throws IOException If there's an error setting up the input/output streams
      */
 
-    public ClientHandler(Socket clientSocket, List<ClientHandler> clients) throws IOException {
+    public ClientHandler(Socket clientSocket, ClientRegistry clients, ServerConfig config,
+                         FlushStats serverFlushStats, RateLimiter.Client rateLimit) throws IOException {
+        super(config.newOutboundQueue());
         this.clientSocket = clientSocket;
         this.clients = clients;
-        this.out = new PrintWriter(clientSocket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        this.decoder = new ProtocolDecoder(config.maxMessageBytes);
+        this.rateLimit = rateLimit;
+        this.flushStats = new FlushStats(serverFlushStats);
+        // Buffer a whole batch so the writer's explicit flush is the only write to the socket
+        this.out = new BufferedOutputStream(clientSocket.getOutputStream(), config.flushThresholdBytes);
+        this.writer = new BatchingWriter(outbound, out, files, config.flushDelayNanos, config.flushThresholdBytes,
+                flushStats, this::closeQuietly);
+        this.in = clientSocket.getInputStream();
+    }
+
+    /**
+     * Queues a message for the writer thread. Never blocks on the socket; it only waits
+     * if the queue is full and the overflow policy is {@link OutboundQueue.OverflowPolicy#BLOCK}.
+     */
+    @Override
+    protected void enqueue(SharedFrame frame) {
+        try {
+            if (!outbound.offer(frame)) {
+                System.out.println(MessageStamp.LOG.now() + "Disconnecting slow client " + describe() + ": " + outbound.describe());
+                // Closing the socket makes the reader loop exit and unregister this client
+                closeQuietly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -69,30 +709,129 @@ class ClientHandler implements Runnable {
      * It ensures the proper closure of resources like input/output streams and socket upon termination.
      *
      * The method performs the following:
-     * 1. Reads incoming messages from the client.
-     * 2. Broadcasts each message to all connected clients by writing to their output streams.
-     * 3. Handles and logs any I/O exceptions that may occur during communication.
-     * 4. Closes the client's input/output streams and socket connection in the `finally` block to release resources.
+     * 1. Joins the registry and the lobby, queueing the lobby's recent history ahead of live messages.
+     * 2. Reads incoming lines from the client, or binary frames once the client has negotiated them.
+     * 3. Broadcasts each message to all connected clients by queueing it for their writer threads.
+     *    A client over its rate limit is made to wait before its next message is read, or is
+     *    disconnected; so is a client sending a message longer than the limit.
+     * 4. Handles and logs any I/O exceptions that may occur during communication.
+     * 5. Removes the client from the registry, stops its writer thread and closes its input stream
+     *    and socket connection in the `finally` block to release resources. The output stream is
+     *    owned by the writer thread and is closed along with the socket.
      */
 
     public void run() {
+        ChatServer.join(clients, this);
         try {
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                for (ClientHandler client : clients) {
-                    client.out.println(inputLine);
+            while (true) {
+                FrameCodec.Frame frame = null;
+                String inputLine = null;
+                if (binaryFrames()) {
+                    frame = decoder.readFrame(in);
+                    if (frame == null) {
+                        break;
+                    }
+                } else {
+                    inputLine = decoder.readLine(in);
+                    if (inputLine == null) {
+                        break;
+                    }
+                }
+                recordActivity();
+                ChatServer.metrics().recordReceived(1, decoder.takeBytesRead());
+                long wait = rateLimit.admit(decoder.lastMessageBytes(),
+                        frame != null && frame.type == FrameCodec.FILE_DATA);
+                if (wait == RateLimiter.DISCONNECT) {
+                    System.out.println(MessageStamp.LOG.now() + "Disconnecting flooding client " + describe());
+                    break;
+                }
+                if (frame != null) {
+                    ChatServer.handleFrame(clients, this, frame);
+                } else {
+                    ChatServer.handleLine(clients, this, inputLine);
+                }
+                // A resume's missed messages are still being read; the next command comes after them
+                awaitReplay();
+                throttle(wait);
+                if (Thread.currentThread().isVirtual()) {
+                    // Virtual threads are not preempted. During a burst the decoder keeps returning
+                    // buffered data without parking, so give the writer threads a turn to drain.
+                    Thread.yield();
                 }
             }
+        } catch (ProtocolDecoder.MessageTooLongException e) {
+            rateLimit.rejectOversized();
+            System.out.println(MessageStamp.LOG.now() + "Disconnecting client " + describe() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Interrupted while throttled or waiting for a replay; the connection is going away
+            Thread.currentThread().interrupt();
         }  catch (IOException e) {
             System.out.println("An error occurred: " + e.getMessage());
         } finally {
+            ChatServer.leave(clients, this);
+            Thread writer = writerThread;
+            if (writer != null) {
+                writer.interrupt();
+            }
+            System.out.println(MessageStamp.LOG.now() + "Client disconnected: " + describe() + " (" + outbound.describe() + "; "
+                    + flushStats.describe() + ")");
+            outbound.clear();
+            files.clear();
             try {
                 in.close();
-                out.close();
                 clientSocket.close();
             } catch (IOException e) {
                 System.out.println("An error occurred: " + e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Stops reading from a client that overdrew its budget until the budget has caught up, leaving
+     * whatever it sends meanwhile in the socket buffers.
+     */
+    private void throttle(long waitNanos) throws InterruptedException {
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    void setWriterThread(Thread writerThread) {
+        this.writerThread = writerThread;
+    }
+
+    /**
+     * Writes queued lines to the socket until the connection closes. Runs on the writer thread,
+     * so only this thread ever touches the output stream.
+     */
+    void drainOutbound() {
+        writer.run();
+    }
+
+    @Override
+    public String describe() {
+        String username = getUsername();
+        return username != null ? username : String.valueOf(clientSocket.getInetAddress());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !clientSocket.isClosed();
+    }
+
+    /**
+     * Closes the socket, which makes the reader loop exit and unregister this client.
+     */
+    @Override
+    public void disconnect() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+}
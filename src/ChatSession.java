@@ -0,0 +1,129 @@
+/**
+ * A connected chat participant that the server can deliver messages to.
+ * Implemented by both the blocking {@link ClientHandler} and the selector-driven
+ * {@link NioConnection}, so broadcasting does not care how a socket is serviced.
+ */
+interface ChatSession {
+
+    /**
+     * Delivers a single line from the server itself, such as an error notice, to this client.
+     *
+     * @param line The line to send, without a trailing line terminator
+     */
+    default void send(String line) {
+        ChatMessage message = ChatMessage.text(null, line);
+        send(message);
+        message.release();
+    }
+
+    /**
+     * Delivers a message to this client in whichever protocol it speaks. Used for broadcasts so a
+     * message is encoded at most once per protocol no matter how many clients receive it.
+     *
+     * @param message The message; the caller keeps ownership and releases it after the fan-out
+     */
+    void send(ChatMessage message);
+
+    /**
+     * Returns the id the server assigned to this session, unique for the life of the process.
+     */
+    long id();
+
+    /**
+     * Returns true once the client has negotiated binary frames instead of text lines.
+     */
+    boolean binaryFrames();
+
+    /**
+     * Returns true once the client has negotiated compressed binary frames.
+     */
+    boolean compressedFrames();
+
+    /**
+     * Switches delivery to binary frames. The acknowledgement is queued as the last text line, so
+     * the client sees every later message as a frame.
+     *
+     * @param acknowledgement The handshake reply, without a line terminator
+     * @param compressed      Whether payloads may also be compressed
+     */
+    void switchToBinaryFrames(String acknowledgement, boolean compressed);
+
+    /**
+     * Starts holding back live messages while the history of a room being joined is queued.
+     * Called by {@link Room} only.
+     */
+    void beginReplay();
+
+    /**
+     * Queues the replayed history, then the live messages held back meanwhile, and resumes normal
+     * delivery. Called by {@link Room} only, on the thread that read the history, which for a
+     * resume is not the session's own.
+     *
+     * @param replay Frames to queue, oldest first; the session takes over one reference to each
+     */
+    void endReplay(SharedFrame[] replay);
+
+    /**
+     * Starts sending part of a staged file to this client, between its messages, and tells it so.
+     *
+     * @param transfer The file, completely staged
+     * @param offset   Where to start, e.g. how much of it the client already has
+     */
+    void sendFile(FileTransfers.Transfer transfer, long offset);
+
+    /**
+     * Returns the room the client is in, or null while it is switching rooms or disconnected.
+     */
+    Room getRoom();
+
+    /**
+     * Records the room the session is in. Called by {@link Room} only.
+     */
+    void setRoom(Room room);
+
+    /**
+     * Returns the queue of messages waiting to be written to this client, for metrics.
+     */
+    OutboundQueue outbound();
+
+    /**
+     * Returns the username the client identified itself with, or null if it has not done so yet.
+     */
+    String getUsername();
+
+    /**
+     * Records the username bound to this session. Called by {@link ClientRegistry} only.
+     */
+    void setUsername(String username);
+
+    /**
+     * Returns the {@link System#nanoTime()} at which anything was last received from the client.
+     */
+    long lastActivityNanos();
+
+    /**
+     * Returns true once the client has negotiated {@link ChatProtocol#HEARTBEAT_EXTENSION}, so that it
+     * may be pinged when silent.
+     */
+    boolean heartbeats();
+
+    /**
+     * Notes that the client negotiated {@link ChatProtocol#HEARTBEAT_EXTENSION}.
+     */
+    void enableHeartbeats();
+
+    /**
+     * Returns false once the connection has been closed or is being closed.
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection from any thread; the session then unregisters itself as usual.
+     */
+    void disconnect();
+
+    /**
+     * Names the client for log output: its username, or its address until it has one.
+     */
+    String describe();
+}
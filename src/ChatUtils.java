@@ -1,9 +1,9 @@
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
 public final class ChatUtils {
 
@@ -13,15 +13,37 @@ public final class ChatUtils {
     }
 
     public enum MessageSenderInfo {
-        SYSTEM("[" + new SimpleDateFormat("HH:mm:ss").format(new Date()) + "] System: "),
-        USER ("[" + new SimpleDateFormat("HH:mm:ss").format(new Date()) + "] ");
+        SYSTEM("] System: "),
+        USER ("] ");
 
-        private final String message;
+        private final MessageStamp.Clock clock;
         MessageSenderInfo(String s) {
-            this.message = s;
+            this.clock = new MessageStamp.Clock("[", s);
         }
 
-        public String messagePrefix() {return message;}
+        /**
+         * Returns the prefix for a line sent now, e.g. "[12:34:56] System: ".
+         */
+        public String messagePrefix() {return clock.now();}
+    }
+
+    /**
+     * Parses {@code --key=value} command line options; a bare {@code --flag} maps to "true".
+     * Arguments that do not start with {@code --} are ignored.
+     */
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals > 0) {
+                    options.put(arg.substring(2, equals), arg.substring(equals + 1));
+                } else {
+                    options.put(arg.substring(2), "true");
+                }
+            }
+        }
+        return options;
     }
 
     public static String getLocalIPAddress() {
@@ -0,0 +1,107 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The set of live client sessions on the server.
+ *
+ * Broadcasts iterate far more often than clients connect or disconnect, so the sessions are kept
+ * in an immutable array that is replaced with a compare-and-set on every change. Readers take the
+ * current array and iterate it without locks or copies, and never see a
+ * {@link java.util.ConcurrentModificationException}. A separate concurrent index gives O(1)
+ * lookup by username.
+ */
+final class ClientRegistry {
+    private static final ChatSession[] EMPTY = new ChatSession[0];
+
+    // Current live sessions; the array itself is never modified after being published
+    private final AtomicReference<ChatSession[]> sessions = new AtomicReference<>(EMPTY);
+    private final ConcurrentHashMap<String, ChatSession> byUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a newly connected session.
+     */
+    void add(ChatSession session) {
+        ChatSession[] current;
+        ChatSession[] updated;
+        do {
+            current = sessions.get();
+            updated = new ChatSession[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = session;
+        } while (!sessions.compareAndSet(current, updated));
+    }
+
+    /**
+     * Unregisters a session and releases its username. Removing a session twice is harmless.
+     */
+    void remove(ChatSession session) {
+        ChatSession[] current;
+        ChatSession[] updated;
+        do {
+            current = sessions.get();
+            int index = indexOf(current, session);
+            if (index < 0) {
+                break;
+            }
+            updated = new ChatSession[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        } while (!sessions.compareAndSet(current, updated));
+
+        String username = session.getUsername();
+        if (username != null) {
+            byUsername.remove(username, session);
+        }
+    }
+
+    /**
+     * Associates a username with a session, replacing any name the session had before.
+     *
+     * @return false if another session already holds the username
+     */
+    boolean bindUsername(ChatSession session, String username) {
+        ChatSession holder = byUsername.putIfAbsent(username, session);
+        if (holder != null && holder != session) {
+            return false;
+        }
+        String previous = session.getUsername();
+        if (previous != null && !previous.equals(username)) {
+            byUsername.remove(previous, session);
+        }
+        session.setUsername(username);
+        return true;
+    }
+
+    /**
+     * Looks up a session by username.
+     *
+     * @return The session, or null if nobody with that name is connected
+     */
+    ChatSession find(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * Returns the live sessions for iteration. The returned array is shared and must not be modified;
+     * sessions that connect or disconnect during the iteration are not reflected in it.
+     */
+    ChatSession[] sessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Returns the number of live sessions.
+     */
+    int size() {
+        return sessions.get().length;
+    }
+
+    private static int indexOf(ChatSession[] array, ChatSession session) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-message deflate with a preset dictionary, for binary frame payloads.
+ *
+ * Chat messages are too short for deflate to find repeats within a single message, but they
+ * repeat the same notices and everyday words across messages. Seeding every compression with a
+ * fixed dictionary of those strings lets even a short message refer back to them. Each message is
+ * still compressed on its own, so a compressed frame can be shared by every recipient, unlike a
+ * streaming context per connection, which would compress every broadcast once per recipient.
+ *
+ * Both sides must use the same dictionary, so it is versioned and negotiated in the handshake;
+ * changing the text below requires a new {@link #VERSION}.
+ */
+final class CompressionDictionary {
+    static final int VERSION = 1;
+
+    // Payloads shorter than this are sent uncompressed; below it the saving rarely pays for the CPU
+    static final int THRESHOLD = 32;
+
+    // Deflate encodes nearby matches more cheaply, so the most common strings come last
+    private static final byte[] DICTIONARY = (
+            "https://www. .com/ .org/ github.com/ "
+            + "Welcome to the chat! You are hosting. Share your IP Address to other users: "
+            + "Welcome to the chat! You joined server: "
+            + "because would could should about there their think really right people something "
+            + "tomorrow today tonight morning meeting afternoon weekend minutes later please thanks "
+            + "sorry maybe actually already working again still going with have this that what "
+            + "when where just know like from they will your will be I'll I'm don't can't it's "
+            + "that's yeah okay sure good great nice cool haha lol "
+            + "The username  is already in use. "
+            + "] System:  has joined the chat.  has left the chat. "
+            + " the  and  you  to  of  is  in  it  for  on  a ").getBytes(StandardCharsets.UTF_8);
+
+    // Deflater and Inflater are not thread-safe, costly to create and hold native zlib state until
+    // ended, so they are borrowed from small pools rather than kept per thread: with a virtual
+    // thread per connection, that would be one of each per connection. A pool holds about as many
+    // as can be in use at once; one returned to a full pool is ended.
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private CompressionDictionary() {
+    }
+
+    /**
+     * Compresses bytes with the dictionary.
+     *
+     * @return The compressed length, or -1 if the result would not be smaller than the input
+     */
+    static int compress(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            // Only room for a strictly smaller result; anything else is not worth sending
+            int compressed = deflater.deflate(output, outputOffset, length - 1);
+            return deflater.finished() ? compressed : -1;
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompresses bytes produced by {@link #compress}.
+     *
+     * @param maxLength Largest decompressed size accepted, to bound the memory a peer can claim
+     * @throws ProtocolDecoder.MessageTooLongException If the data decompresses to more than
+     *                                                 {@code maxLength} bytes
+     * @throws IOException If the data is corrupt
+     */
+    static byte[] decompress(byte[] input, int offset, int length, int maxLength) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            return inflate(inflater, input, offset, length, maxLength);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] input, int offset, int length, int maxLength)
+            throws IOException {
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input, offset, length);
+        byte[] output = new byte[Math.min(maxLength, Math.max(64, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size == maxLength) {
+                        throw new ProtocolDecoder.MessageTooLongException("Compressed payload exceeds " + maxLength + " bytes");
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(maxLength, size * 2L));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+}
@@ -6,6 +6,8 @@ import java.awt.event.MouseMotionAdapter;
 
 class CustomTitleBar extends JPanel {
     private Point initialClick;
+    // Connection problems, shown next to the title; empty while connected
+    private final JLabel status;
 
     public CustomTitleBar(JFrame frame, String name) {
         setLayout(new BorderLayout());
@@ -18,6 +20,12 @@ class CustomTitleBar extends JPanel {
         title.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
         add(title, BorderLayout.WEST);
 
+        // Status label
+        status = new JLabel();
+        status.setForeground(new Color(255, 191, 0));
+        status.setBorder(BorderFactory.createEmptyBorder(0, 20, 0, 0));
+        add(status, BorderLayout.CENTER);
+
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
         buttonPanel.setBackground(Color.BLACK);
@@ -73,6 +81,14 @@ class CustomTitleBar extends JPanel {
         });
     }
 
+    /**
+     * Shows a connection status next to the title; pass an empty string to clear it.
+     * Must be called on the Event Dispatch Thread.
+     */
+    public void setStatus(String text) {
+        status.setText(text);
+    }
+
     private JButton createButton(String text) {
         JButton button = new JButton(text);
         button.setForeground(new Color(0, 255, 0));
@@ -0,0 +1,508 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Connects this server to other chat server nodes so that users on different nodes share rooms.
+ *
+ * Each node listens for its peers on a separate port, on loopback unless configured otherwise, and
+ * dials the peers it is configured with, retrying until they are up. A link starts with a
+ * {@code "/peer <node id> <boot id> <nonce>"} line from each side. If the nodes share a secret, each
+ * side then sends {@code "/peer-auth <proof>"}, an HMAC-SHA256 of the other side's nonce keyed with
+ * the secret, and closes the link unless the other's proof matches, so that only nodes knowing the
+ * secret can relay messages. After that both sides send binary frames (see {@link FrameCodec}) of three node-only
+ * types: {@link #SUBSCRIBE} and {@link #UNSUBSCRIBE} say that the sending node has gained its
+ * first or lost its last local member of a room, and {@link #RELAY} carries a message sent in a
+ * room. A node only relays a message to nodes subscribed to its room, and over one link per node
+ * however many users there are, so relaying costs one encoding plus one queued frame per
+ * interested node. A message is relayed only by the node its sender is connected to; nodes do
+ * not forward what they receive, so every node must have a link to every other.
+ *
+ * A relayed message is identified by its origin node, that node's boot id and a sequence number.
+ * Receivers drop ids they have already seen, so a message that arrives twice, for example over a
+ * second link between the same two nodes, is shown once. Messages sent while a link is down are
+ * not relayed later.
+ *
+ * Remote messages are delivered to local clients as text, already formatted with the sender's
+ * name, because session ids are only meaningful on the node that assigned them.
+ */
+final class Federation implements RoomRegistry.OccupancyListener {
+    // Frame types used only between nodes, clear of the client frame types and flags
+    static final byte RELAY = 0x10;
+    static final byte SUBSCRIBE = 0x11;
+    static final byte UNSUBSCRIBE = 0x12;
+    static final String PEER_COMMAND = "/peer ";
+    static final String PEER_AUTH_COMMAND = "/peer-auth ";
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final long nodeId;
+    // Distinguishes restarts of a node, whose sequence numbers start again from zero
+    private final long bootId = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final int peerPort;
+    private final InetAddress bindAddress;
+    // Key for the handshake proofs, or null if peers are not authenticated
+    private final SecretKeySpec secret;
+    private final List<InetSocketAddress> peers;
+    // Every open link, including spare links to a node that already has one
+    private final CopyOnWriteArrayList<PeerLink> links = new CopyOnWriteArrayList<>();
+    // The link used to relay to each node; messages are relayed over exactly one link per node
+    private final ConcurrentHashMap<Long, PeerLink> linkByNode = new ConcurrentHashMap<>();
+    // Makes changes to the local rooms and the snapshot sent to a new link atomic
+    private final ReentrantLock subscriptionLock = new ReentrantLock();
+    // Rooms with members on this node; guarded by subscriptionLock
+    private final Set<String> localRooms = new HashSet<>();
+    // Ids already received from each origin node
+    private final ConcurrentHashMap<Long, SequenceWindow> received = new ConcurrentHashMap<>();
+    // Flush counters summed over every link
+    private final FlushStats flushStats = new FlushStats(null);
+    // Accepts peer links once started, and the threads dialing peers; closed and interrupted by stop()
+    private volatile ServerSocket serverSocket;
+    private final List<Thread> dialers = new CopyOnWriteArrayList<>();
+    private volatile boolean stopped;
+
+    /**
+     * @param nodeId      This node's id, unique among its peers
+     * @param peerPort    The port to accept peer links on
+     * @param bindAddress The interface to accept peer links on
+     * @param secret      The secret shared by every node, or null not to authenticate peers
+     * @param peers       Peer ports of the nodes to dial
+     */
+    Federation(long nodeId, int peerPort, InetAddress bindAddress, String secret, List<InetSocketAddress> peers) {
+        this.nodeId = nodeId;
+        this.peerPort = peerPort;
+        this.bindAddress = bindAddress;
+        this.secret = secret != null && !secret.isEmpty()
+                ? new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), PROOF_ALGORITHM) : null;
+        this.peers = peers;
+    }
+
+    /**
+     * Creates the federation configured for a server, or returns null if it runs alone.
+     */
+    static Federation fromConfig(ServerConfig config) {
+        if (config.peerPort == 0) {
+            return null;
+        }
+        return new Federation(config.nodeId, config.peerPort, config.peerBindAddress, config.peerSecret, config.peers);
+    }
+
+    /**
+     * Starts accepting peer links and dialing the configured peers, on daemon threads.
+     *
+     * @throws IOException If the peer port cannot be bound
+     */
+    void start() throws IOException {
+        ServerSocket listening = new ServerSocket(peerPort, 0, bindAddress);
+        serverSocket = listening;
+        Thread.ofPlatform().daemon().name("peer-acceptor").start(() -> {
+            while (!stopped) {
+                try {
+                    Socket socket = listening.accept();
+                    Thread.ofPlatform().daemon().name("peer-link-" + socket.getRemoteSocketAddress())
+                            .start(() -> new PeerLink(this, socket).run());
+                } catch (IOException e) {
+                    if (!stopped) {
+                        System.out.println("An error occurred: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        for (InetSocketAddress peer : peers) {
+            dialers.add(Thread.ofPlatform().daemon().name("peer-dialer-" + peer).start(() -> dial(peer)));
+        }
+    }
+
+    /**
+     * Stops accepting and dialing peers and closes every link. Calling it again is harmless.
+     */
+    void stop() {
+        stopped = true;
+        ServerSocket listening = serverSocket;
+        if (listening != null) {
+            try {
+                listening.close();
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        dialers.forEach(Thread::interrupt);
+        links.forEach(PeerLink::close);
+    }
+
+    /**
+     * Keeps a link open to one configured peer, reconnecting whenever it drops.
+     */
+    private void dial(InetSocketAddress peer) {
+        while (!stopped) {
+            try {
+                Socket socket = new Socket(peer.getHostString(), peer.getPort());
+                if (stopped) {
+                    socket.close();
+                    return;
+                }
+                new PeerLink(this, socket).run();
+            } catch (IOException e) {
+                // The peer is not up yet or went away; try again shortly
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Relays a message sent in a room by a local client to every node with members in that room.
+     * The message is encoded once, and only if some node needs it.
+     */
+    void relay(String room, ChatMessage message) {
+        SharedFrame frame = null;
+        for (PeerLink link : linkByNode.values()) {
+            if (!link.subscribedTo(room)) {
+                continue;
+            }
+            if (frame == null) {
+                frame = SharedFrame.encodeBinary(RELAY, nextSequence.incrementAndGet(), message.timestamp,
+                        room + '\n' + message.toLine(), true);
+            }
+            frame.retain(1);
+            link.send(frame);
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void occupied(String room) {
+        updateSubscription(room, true);
+    }
+
+    @Override
+    public void vacated(String room) {
+        updateSubscription(room, false);
+    }
+
+    private void updateSubscription(String room, boolean subscribe) {
+        subscriptionLock.lock();
+        try {
+            if (subscribe ? localRooms.add(room) : localRooms.remove(room)) {
+                for (PeerLink link : links) {
+                    link.send(SharedFrame.encodeBinary(subscribe ? SUBSCRIBE : UNSUBSCRIBE, 0, 0, room, false));
+                }
+            }
+        } finally {
+            subscriptionLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a link that has completed its handshake and sends it the rooms this node is in.
+     *
+     * @return false if the link leads back to this node and must be closed
+     */
+    boolean register(PeerLink link) {
+        if (link.remoteNode() == nodeId) {
+            return false;
+        }
+        subscriptionLock.lock();
+        try {
+            links.add(link);
+            for (String room : localRooms) {
+                link.send(SharedFrame.encodeBinary(SUBSCRIBE, 0, 0, room, false));
+            }
+        } finally {
+            subscriptionLock.unlock();
+        }
+        if (linkByNode.putIfAbsent(link.remoteNode(), link) == null) {
+            System.out.println("Linked to node " + link.remoteNode());
+        }
+        return true;
+    }
+
+    /**
+     * Removes a closed link. If it was the one relaying to its node, a spare link takes over.
+     */
+    void unregister(PeerLink link) {
+        links.remove(link);
+        if (linkByNode.remove(link.remoteNode(), link)) {
+            for (PeerLink spare : links) {
+                if (spare.remoteNode() == link.remoteNode() && linkByNode.putIfAbsent(spare.remoteNode(), spare) == null) {
+                    return;
+                }
+            }
+            System.out.println("Lost link to node " + link.remoteNode() + " (" + flushStats.describe() + ")");
+        }
+    }
+
+    /**
+     * Handles a frame received over a link.
+     */
+    void receive(PeerLink link, FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case SUBSCRIBE -> link.subscribe(frame.payload);
+            case UNSUBSCRIBE -> link.unsubscribe(frame.payload);
+            case RELAY -> {
+                SequenceWindow window = received.computeIfAbsent(link.remoteNode(), node -> new SequenceWindow());
+                if (!window.firstSeen(link.remoteBoot(), frame.senderId)) {
+                    return;
+                }
+                int newline = frame.payload.indexOf('\n');
+                if (newline > 0) {
+                    ChatServer.deliverRelayed(frame.payload.substring(0, newline), frame.timestamp,
+                            frame.payload.substring(newline + 1));
+                }
+            }
+            default -> System.out.println("Ignoring peer frame of unknown type " + frame.type);
+        }
+    }
+
+    long nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns true if peers must prove they know the shared secret.
+     */
+    boolean authenticates() {
+        return secret != null;
+    }
+
+    /**
+     * Returns the proof that a node knows the shared secret, for the nonce the other side sent.
+     */
+    byte[] proof(byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            // Every JDK provides HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    long bootId() {
+        return bootId;
+    }
+
+    FlushStats flushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Remembers which sequence numbers from one origin node have been received.
+     *
+     * Messages from one node can arrive slightly out of order, because its broadcasting threads
+     * number them before queueing them, so a single high-water mark is not enough. A sliding
+     * window of the most recent {@link #WINDOW} numbers is kept as a bit set instead; anything
+     * older than the window is treated as already seen.
+     */
+    private static final class SequenceWindow {
+        private static final int WINDOW = 4096;
+
+        private final long[] bits = new long[WINDOW / 64];
+        private long boot = -1;
+        private long highest;
+
+        /**
+         * Records a sequence number and returns true if it had not been received before.
+         */
+        synchronized boolean firstSeen(long bootId, long sequence) {
+            if (bootId != boot) {
+                // The origin restarted, so its numbering did too
+                boot = bootId;
+                highest = 0;
+                Arrays.fill(bits, 0);
+            }
+            if (sequence > highest) {
+                for (long s = Math.max(highest + 1, sequence - WINDOW + 1); s < sequence; s++) {
+                    clear(s);
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+            if (sequence <= highest - WINDOW || isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private boolean isSet(long sequence) {
+            int bit = (int) (sequence % WINDOW);
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long sequence) {
+            int bit = (int) (sequence % WINDOW);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long sequence) {
+            int bit = (int) (sequence % WINDOW);
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+}
+
+/**
+ * One connection to another node. The thread that opened or accepted the socket reads from it in
+ * {@link #run()}; a second thread writes the queued frames in batches.
+ */
+final class PeerLink {
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int NONCE_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Federation federation;
+    private final Socket socket;
+    // A link that cannot keep up is dropped and redialed rather than silently losing subscriptions
+    private final OutboundQueue outbound = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT);
+    // Rooms the remote node has members in
+    private final Set<String> remoteRooms = ConcurrentHashMap.newKeySet();
+    private volatile long remoteNode = -1;
+    private volatile long remoteBoot;
+
+    PeerLink(Federation federation, Socket socket) {
+        this.federation = federation;
+        this.socket = socket;
+    }
+
+    /**
+     * Performs the handshake, then reads frames until the link drops.
+     */
+    void run() {
+        Thread writer = null;
+        boolean registered = false;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD * 2);
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            out.write((Federation.PEER_COMMAND + federation.nodeId() + " " + federation.bootId() + " "
+                    + HexFormat.of().formatHex(nonce) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            ProtocolDecoder decoder = new ProtocolDecoder();
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            String hello = decoder.readLine(in);
+            String[] fields = hello != null && hello.startsWith(Federation.PEER_COMMAND)
+                    ? hello.substring(Federation.PEER_COMMAND.length()).trim().split(" ") : null;
+            if (fields == null || fields.length < 3) {
+                System.out.println("Rejected peer link from " + socket.getRemoteSocketAddress() + ": no handshake");
+                return;
+            }
+            if (federation.authenticates()) {
+                out.write((Federation.PEER_AUTH_COMMAND + HexFormat.of().formatHex(
+                        federation.proof(HexFormat.of().parseHex(fields[2]))) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String auth = decoder.readLine(in);
+                if (auth == null || !auth.startsWith(Federation.PEER_AUTH_COMMAND) || !MessageDigest.isEqual(
+                        federation.proof(nonce), HexFormat.of().parseHex(auth.substring(Federation.PEER_AUTH_COMMAND.length())))) {
+                    System.out.println("Rejected peer link from " + socket.getRemoteSocketAddress() + ": wrong secret");
+                    return;
+                }
+            }
+            socket.setSoTimeout(0);
+            remoteBoot = Long.parseLong(fields[1]);
+            remoteNode = Long.parseLong(fields[0]);
+
+            writer = Thread.ofPlatform().daemon().name("peer-writer-" + remoteNode).start(
+                    new BatchingWriter(outbound, out, new FileSender(), 0, FLUSH_THRESHOLD, new FlushStats(federation.flushStats()),
+                            this::close));
+            registered = federation.register(this);
+            if (!registered) {
+                return;
+            }
+            FrameCodec.Frame frame;
+            while ((frame = decoder.readFrame(in)) != null) {
+                federation.receive(this, frame);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        } finally {
+            if (registered) {
+                federation.unregister(this);
+            }
+            if (writer != null) {
+                writer.interrupt();
+            }
+            outbound.clear();
+            close();
+        }
+    }
+
+    /**
+     * Queues a frame for the remote node, closing the link if it has fallen too far behind.
+     *
+     * @param frame The frame; the link takes over the caller's reference
+     */
+    void send(SharedFrame frame) {
+        try {
+            if (!outbound.offer(frame)) {
+                System.out.println("Closing link to node " + remoteNode + ": " + outbound.describe());
+                close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean subscribedTo(String room) {
+        return remoteRooms.contains(room);
+    }
+
+    void subscribe(String room) {
+        remoteRooms.add(room);
+    }
+
+    void unsubscribe(String room) {
+        remoteRooms.remove(room);
+    }
+
+    long remoteNode() {
+        return remoteNode;
+    }
+
+    long remoteBoot() {
+        return remoteBoot;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
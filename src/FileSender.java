@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The files one side of a connection is sending to the other, cut into {@link FrameCodec#FILE_DATA}
+ * frames of at most {@link #CHUNK_BYTES} bytes each. Used by the server for downloads and by the
+ * client for uploads.
+ *
+ * A connection's writer sends file pieces only while it has no messages queued, and one piece at a
+ * time, so a message waits behind at most one piece however large the file is. Several files are
+ * sent in turns, a piece each. A file with a bandwidth cap is paced by a token bucket: while every
+ * file is waiting out its cap, the writer waits for messages instead.
+ *
+ * A piece goes from the file to the connection with {@link FileChannel#transferTo}, so on a socket
+ * channel the kernel copies it straight from the page cache and it never enters the heap; on a
+ * stream it is copied through a small direct buffer. Files are added by whichever thread handles
+ * the request, and taken by the connection's writer.
+ */
+final class FileSender {
+    // Large enough for transferTo to be efficient, small enough to keep a message's wait short
+    static final int CHUNK_BYTES = 32 * 1024;
+    // How much of a capped file's bandwidth may be used at once
+    private static final int CAP_BURST_MILLIS = 100;
+
+    private final ConcurrentLinkedQueue<Stream> streams = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Starts sending part of a file. The caller should then queue a message announcing it, which
+     * also wakes up a writer waiting for messages.
+     *
+     * @param transferId     The id the pieces are labelled with
+     * @param file           The file, which the sender only reads at explicit positions
+     * @param offset         Where to start
+     * @param end            Where to stop, normally the size of the file
+     * @param bytesPerSecond The bandwidth cap, or 0 for none
+     */
+    void add(long transferId, FileChannel file, long offset, long end, long bytesPerSecond) {
+        streams.add(new Stream(transferId, file, offset, end, bytesPerSecond));
+    }
+
+    boolean isEmpty() {
+        return streams.isEmpty();
+    }
+
+    /**
+     * Stops sending a file, e.g. once the other side has refused it. A piece already taken is
+     * still sent.
+     */
+    void remove(long transferId) {
+        streams.removeIf(stream -> stream.transferId == transferId);
+    }
+
+    /**
+     * Stops sending everything, e.g. once the connection has closed.
+     */
+    void clear() {
+        streams.clear();
+    }
+
+    /**
+     * Takes the next piece to send: from the file whose turn it is among those not waiting out
+     * their cap.
+     *
+     * @return The piece, or null if there is none to send now
+     */
+    Chunk next(long now) {
+        for (int i = streams.size(); i > 0; i--) {
+            Stream stream = streams.poll();
+            if (stream == null) {
+                return null;
+            }
+            if (!stream.file.isOpen()) {
+                // Deleted meanwhile, e.g. expired on the server
+                continue;
+            }
+            if (stream.readyAt - now > 0) {
+                streams.add(stream);
+                continue;
+            }
+            int length = (int) Math.min(CHUNK_BYTES, stream.end - stream.position);
+            Chunk chunk = new Chunk(stream, length);
+            stream.position += length;
+            long wait = stream.cap.take(now, length);
+            stream.readyAt = wait > 0 ? now + wait : now;
+            if (stream.position < stream.end) {
+                // To the back of the line, so that files take turns
+                streams.add(stream);
+            }
+            return chunk;
+        }
+        return null;
+    }
+
+    /**
+     * Returns how long until a piece is ready to send, or 0 if one is ready now or nothing is left.
+     */
+    long nanosUntilReady(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (Stream stream : streams) {
+            earliest = Math.min(earliest, stream.readyAt - now);
+        }
+        return earliest == Long.MAX_VALUE ? 0 : Math.max(0, earliest);
+    }
+
+    private static final class Stream {
+        final long transferId;
+        final FileChannel file;
+        final long end;
+        final RateLimiter.Bucket cap;
+        // Only touched by the writer
+        long position;
+        long readyAt = System.nanoTime();
+
+        Stream(long transferId, FileChannel file, long offset, long end, long bytesPerSecond) {
+            this.transferId = transferId;
+            this.file = file;
+            this.position = offset;
+            this.end = end;
+            this.cap = new RateLimiter.Bucket(bytesPerSecond, CAP_BURST_MILLIS, CHUNK_BYTES);
+        }
+    }
+
+    /**
+     * One {@link FrameCodec#FILE_DATA} frame being written: its header, then its part of the file.
+     */
+    static final class Chunk {
+        private final ByteBuffer header;
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private final int length;
+
+        private Chunk(Stream stream, int length) {
+            this.header = ByteBuffer.wrap(FrameCodec.encodeFileDataHeader(stream.transferId, stream.position, length));
+            this.file = stream.file;
+            this.position = stream.position;
+            this.remaining = length;
+            this.length = header.remaining() + length;
+        }
+
+        /**
+         * Writes as much of the frame as the target takes. A blocking target takes all of it.
+         *
+         * @return true once the whole frame has been written
+         */
+        boolean writeTo(WritableByteChannel target) throws IOException {
+            while (header.hasRemaining()) {
+                if (target.write(header) == 0) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                long written = file.transferTo(position, remaining, target);
+                if (written == 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the size of the whole frame.
+         */
+        int length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Files shared in rooms: received from their sender, staged on disk, then sent to every member of
+ * the room who asks for them (see {@link ChatProtocol} for the commands).
+ *
+ * A file is written to the staging directory as its pieces arrive and read back from there with
+ * positional reads for each download, so neither direction holds more than one piece of it in the
+ * heap, and any number of members can fetch it at once at different offsets. Uploads are
+ * resumable by their sender, under the same username, and downloads from any offset. A transfer's
+ * bandwidth cap is the one its sender asked for or {@code --transfer-rate-bytes}, whichever is
+ * lower, and applies to its upload and to each download separately.
+ *
+ * The staging directory holds at most {@code --transfer-quota-mb}, counting every file at its full
+ * size from the moment it is offered; an offer that does not fit is refused. An upload that
+ * receives nothing for {@code --upload-timeout-s} is dropped along with its {@code .part} file, so
+ * one abandoned by its sender gives its share of the quota back, and a shared file is deleted
+ * {@code --transfer-keep-s} after it was last asked for. A background thread looks for both a few
+ * times per timeout. Whatever is left is deleted when the server stops.
+ */
+final class FileTransfers {
+    // Longest file name kept; the rest is cut off
+    private static final int MAX_NAME_LENGTH = 100;
+    // Checks for expired transfers per timeout, and the most time between checks
+    private static final int CHECKS_PER_TIMEOUT = 4;
+    private static final long MAX_CHECK_MILLIS = 60_000;
+
+    private final Path directory;
+    private final boolean temporaryDirectory;
+    private final long maxFileBytes;
+    private final long bytesPerSecond;
+    private final long quotaBytes;
+    private final long uploadTimeoutNanos;
+    private final long keepNanos;
+    private final Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+    // Full sizes of the files in transfers, whether staged or still arriving
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Started from the clock, so that a file announced before a restart, and replayed from the
+    // message log since, does not share its id with a new one
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+    private FileTransfers(Path directory, boolean temporaryDirectory, ServerConfig config) {
+        this.directory = directory;
+        this.temporaryDirectory = temporaryDirectory;
+        this.maxFileBytes = config.maxFileBytes;
+        this.bytesPerSecond = config.transferRateBytes;
+        this.quotaBytes = config.transferQuotaBytes;
+        this.uploadTimeoutNanos = TimeUnit.SECONDS.toNanos(config.uploadTimeoutSeconds);
+        this.keepNanos = TimeUnit.SECONDS.toNanos(config.transferKeepSeconds);
+        long checkMillis = Math.min(MAX_CHECK_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(Math.min(uploadTimeoutNanos, keepNanos)) / CHECKS_PER_TIMEOUT);
+        expiry.scheduleWithFixedDelay(this::expire, checkMillis, Math.max(1, checkMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the staging directory configured for a server, or a temporary one, and starts
+     * looking for expired transfers.
+     */
+    static FileTransfers open(ServerConfig config) throws IOException {
+        if (config.transferDirectory == null) {
+            return new FileTransfers(Files.createTempDirectory("chat-transfers"), true, config);
+        }
+        Files.createDirectories(config.transferDirectory);
+        return new FileTransfers(config.transferDirectory, false, config);
+    }
+
+    /**
+     * A file offered by a client, staged or being staged.
+     */
+    static final class Transfer {
+        final long id;
+        final String name;
+        final long size;
+        // Username of the sender, who alone may resume the upload; null if it had none
+        final String owner;
+        // The bandwidth cap of the upload and of each download, or 0 for none
+        final long bytesPerSecond;
+        private final Path path;
+        private final FileChannel channel;
+        // Bytes staged so far, from the start of the file; only written by the uploader's reader
+        private volatile long staged;
+        // The session uploading it, or null while nobody is and once it is complete
+        private volatile ChatSession uploader;
+        // When data last arrived, or, once complete, when it was last asked for
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private Transfer(long id, String name, long size, String owner, long bytesPerSecond, Path path)
+                throws IOException {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.owner = owner;
+            this.bytesPerSecond = bytesPerSecond;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Returns the staged file, which readers only use at explicit positions.
+         */
+        FileChannel channel() {
+            return channel;
+        }
+
+        boolean complete() {
+            return staged == size;
+        }
+    }
+
+    /**
+     * Handles a file transfer command from a client.
+     *
+     * @param line A line starting with {@link ChatProtocol#FILE_PREFIX}
+     */
+    void handle(ChatSession session, String line) {
+        try {
+            if (line.startsWith(ChatProtocol.FILE_OFFER)) {
+                offer(session, line.substring(ChatProtocol.FILE_OFFER.length()).trim());
+            } else if (line.startsWith(ChatProtocol.FILE_RESUME)) {
+                resume(session, Long.parseLong(line.substring(ChatProtocol.FILE_RESUME.length()).trim()));
+            } else if (line.startsWith(ChatProtocol.FILE_GET)) {
+                String[] parts = line.substring(ChatProtocol.FILE_GET.length()).trim().split(" +");
+                get(session, Long.parseLong(parts[0]), parts.length > 1 ? Long.parseLong(parts[1]) : 0);
+            } else if (!line.startsWith(ChatProtocol.FILE_SENDING)) {
+                // The announcement before an upload needs no answer
+                refuse(session, 0, "Unknown file command");
+            }
+        } catch (NumberFormatException e) {
+            refuse(session, 0, "Malformed file command");
+        }
+    }
+
+    private void offer(ChatSession session, String arguments) {
+        String[] parts = arguments.split(" +", 3);
+        if (!session.binaryFrames()) {
+            refuse(session, 0, "File transfers need binary frames");
+            return;
+        }
+        if (parts.length < 3) {
+            refuse(session, 0, "Malformed file command");
+            return;
+        }
+        long size = Long.parseLong(parts[0]);
+        long requestedRate = Long.parseLong(parts[1]);
+        if (size < 0 || size > maxFileBytes) {
+            refuse(session, 0, "Files may be up to " + maxFileBytes / (1024 * 1024) + " MB");
+            return;
+        }
+        if (reservedBytes.addAndGet(size) > quotaBytes) {
+            reservedBytes.addAndGet(-size);
+            refuse(session, 0, "The server has no room for the file now");
+            return;
+        }
+        long rate = requestedRate <= 0 ? bytesPerSecond
+                : bytesPerSecond <= 0 ? requestedRate : Math.min(requestedRate, bytesPerSecond);
+        long id = nextId.getAndIncrement();
+        Transfer transfer;
+        try {
+            transfer = new Transfer(id, safeName(parts[2]), size, session.getUsername(), rate,
+                    directory.resolve(id + ".part"));
+        } catch (IOException e) {
+            reservedBytes.addAndGet(-size);
+            System.out.println("An error occurred: " + e.getMessage());
+            refuse(session, 0, "The server cannot store files");
+            return;
+        }
+        transfers.put(id, transfer);
+        transfer.uploader = session;
+        session.send(ChatProtocol.FILE_UPLOAD + id + " 0");
+        if (size == 0) {
+            complete(session, transfer);
+        }
+    }
+
+    private void resume(ChatSession session, long id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null || transfer.complete() || transfer.owner == null
+                || !transfer.owner.equals(session.getUsername())) {
+            refuse(session, id, "No upload to resume");
+            return;
+        }
+        transfer.uploader = session;
+        transfer.lastUsedNanos = System.nanoTime();
+        session.send(ChatProtocol.FILE_UPLOAD + id + " " + transfer.staged);
+    }
+
+    private void get(ChatSession session, long id, long offset) {
+        Transfer transfer = transfers.get(id);
+        if (!session.binaryFrames()) {
+            refuse(session, id, "File transfers need binary frames");
+        } else if (transfer == null || !transfer.complete()) {
+            refuse(session, id, "No such file");
+        } else if (offset < 0 || offset > transfer.size) {
+            refuse(session, id, "Offset out of range");
+        } else {
+            transfer.lastUsedNanos = System.nanoTime();
+            session.sendFile(transfer, offset);
+        }
+    }
+
+    /**
+     * Stages a piece of a file received from its uploader. Pieces must arrive in order; after one
+     * that does not, the upload stops until the sender resumes it from the offset the server has.
+     */
+    void receive(ChatSession session, FrameCodec.Frame frame) {
+        Transfer transfer = transfers.get(frame.senderId);
+        if (transfer == null || transfer.uploader != session) {
+            // The rest of an upload already refused
+            return;
+        }
+        long offset = frame.timestamp;
+        if (offset != transfer.staged || transfer.size - offset < frame.dataLength) {
+            transfer.uploader = null;
+            refuse(session, transfer.id, "Expected data at offset " + transfer.staged);
+            return;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(frame.data, frame.dataOffset, frame.dataLength);
+            while (data.hasRemaining()) {
+                transfer.channel.write(data, offset + data.position() - frame.dataOffset);
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            transfer.uploader = null;
+            refuse(session, transfer.id, "The server cannot store files");
+            return;
+        }
+        transfer.staged = offset + frame.dataLength;
+        transfer.lastUsedNanos = System.nanoTime();
+        if (transfer.complete()) {
+            complete(session, transfer);
+        }
+    }
+
+    private void complete(ChatSession session, Transfer transfer) {
+        transfer.uploader = null;
+        System.out.println(MessageStamp.LOG.now() + "File shared: " + transfer.name + " (" + transfer.size
+                + " bytes) by " + session.describe());
+        ChatServer.announceInRoom(session, ChatProtocol.FILE_SHARED + transfer.id + " " + transfer.size + " "
+                + transfer.name + " " + session.describe());
+    }
+
+    private static void refuse(ChatSession session, long id, String reason) {
+        session.send(ChatProtocol.FILE_ERROR + id + " " + reason);
+    }
+
+    /**
+     * Keeps the last path element of a file name and replaces anything else that could confuse a
+     * receiver saving it or reading the announcement, such as spaces. Clients apply it again to the
+     * names the server announces before saving anything under them.
+     */
+    static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder safe = new StringBuilder();
+        for (int i = 0; i < base.length() && safe.length() < MAX_NAME_LENGTH; i++) {
+            char c = base.charAt(i);
+            safe.append(Character.isWhitespace(c) || Character.isISOControl(c) || c == ':' ? '_' : c);
+        }
+        String result = safe.toString();
+        return result.isEmpty() || result.equals(".") || result.equals("..") ? "file" : result;
+    }
+
+    /**
+     * Drops the uploads that have received nothing for the upload timeout, telling their uploader
+     * if it is still connected, and the shared files not asked for within the keep time. Downloads
+     * of a file still running when it goes stop at the next piece.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        for (Transfer transfer : transfers.values()) {
+            long idle = now - transfer.lastUsedNanos;
+            if (transfer.complete() ? idle < keepNanos : idle < uploadTimeoutNanos) {
+                continue;
+            }
+            ChatSession uploader = transfer.uploader;
+            if (uploader != null) {
+                refuse(uploader, transfer.id, "Upload timed out");
+            }
+            System.out.println(MessageStamp.LOG.now() + (transfer.complete() ? "Deleting shared file " : "Dropping unfinished upload ")
+                    + transfer.name + " (" + transfer.staged + " of " + transfer.size + " bytes), unused for "
+                    + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+            remove(transfer);
+        }
+    }
+
+    /**
+     * Forgets a transfer and deletes its file, giving its size back to the quota.
+     */
+    private void remove(Transfer transfer) {
+        if (transfers.remove(transfer.id, transfer)) {
+            reservedBytes.addAndGet(-transfer.size);
+        }
+        try {
+            transfer.channel.close();
+            Files.deleteIfExists(transfer.path);
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes and deletes every staged file.
+     */
+    void close() {
+        expiry.shutdownNow();
+        for (Transfer transfer : transfers.values()) {
+            remove(transfer);
+        }
+        if (temporaryDirectory) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+}
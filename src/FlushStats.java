@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts messages, bytes and flushes for one connection, optionally rolling up into a shared parent.
+ * Every flush costs roughly one write system call, so messages minus flushes is the number of
+ * system calls coalescing saved compared to flushing every message.
+ *
+ * Delivery latency is sampled once per flush rather than per message, so that it costs nothing
+ * extra however many messages a flush coalesces, and is only kept by an aggregate given a histogram.
+ */
+final class FlushStats {
+    private final FlushStats parent;
+    // Where delivery latencies end up, or null to ignore them
+    private final LatencyHistogram deliveryLatency;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    /**
+     * @param parent Aggregate that every recorded flush is also added to, or null
+     */
+    FlushStats(FlushStats parent) {
+        this(parent, null);
+    }
+
+    /**
+     * @param parent          Aggregate that every recorded flush is also added to, or null
+     * @param deliveryLatency Histogram for the latencies passed to {@link #recordDelivery}, or null
+     */
+    FlushStats(FlushStats parent, LatencyHistogram deliveryLatency) {
+        this.parent = parent;
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    /**
+     * Records one flush (or one write call) that carried the given number of messages and bytes.
+     */
+    void recordFlush(int messageCount, long byteCount) {
+        // A partial write can carry bytes without completing a message
+        bytes.add(byteCount);
+        if (messageCount > 0) {
+            messages.add(messageCount);
+            flushes.increment();
+        }
+        if (parent != null) {
+            parent.recordFlush(messageCount, byteCount);
+        }
+    }
+
+    /**
+     * Records that a message encoded at the given {@link System#nanoTime()} has just been written.
+     */
+    void recordDelivery(long encodedNanos) {
+        if (deliveryLatency != null) {
+            deliveryLatency.recordSince(encodedNanos);
+        } else if (parent != null) {
+            parent.recordDelivery(encodedNanos);
+        }
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    long flushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * Returns the write system calls avoided compared to one flush per message.
+     */
+    long syscallsSaved() {
+        return messages() - flushes();
+    }
+
+    /**
+     * Formats the counters for log output.
+     */
+    String describe() {
+        long flushCount = flushes();
+        String perFlush = flushCount == 0 ? "0" : String.format("%.1f", (double) messages() / flushCount);
+        return messages() + " messages in " + flushCount + " flushes (" + perFlush
+                + " per flush, " + syscallsSaved() + " syscalls saved)";
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary frame format negotiated as an alternative to newline-delimited text.
+ *
+ * Version 1 frames are laid out as:
+ * <pre>
+ *   varint  length     number of bytes that follow
+ *   byte    type       {@link #CHAT}, {@link #TEXT}, {@link #NAME} or {@link #FILE_DATA}, plus the {@link #COMPRESSED} flag
+ *   varint  senderId   server-assigned session id (0 from clients and for system messages)
+ *   varint  timestamp  epoch milliseconds, stamped by the server (0 from clients)
+ *   varint  messageId  only if the type has the {@link #HAS_ID} flag: the server-assigned message id
+ *   bytes   payload    UTF-8, may contain newlines
+ * </pre>
+ * Varints are unsigned LEB128: seven bits per byte, least significant group first, with the high
+ * bit set on every byte but the last. The username and clock text that every legacy line repeats
+ * are sent as a small id and a number instead, and the receiver knows each frame's size up front
+ * rather than scanning for a line terminator.
+ *
+ * If both sides negotiated compression, payloads of at least {@link CompressionDictionary#THRESHOLD}
+ * bytes may be deflated with the shared dictionary; such frames have the {@link #COMPRESSED} bit
+ * set in their type. Receivers always accept either form.
+ *
+ * Messages sent in a room carry the id the server gave them, flagged by {@link #HAS_ID}; it is
+ * their message log offset when the server keeps a log. A client remembers the last one it received and hands it back when it
+ * reconnects, so that the server can send only what it missed (see {@link ChatProtocol}).
+ *
+ * A {@link #FILE_DATA} frame carries a piece of a file being transferred: its sender id field holds
+ * the transfer id, its timestamp field the offset of the piece in the file, and its payload the raw
+ * bytes, which are neither text nor compressed. Its header is encoded on its own, so that the file
+ * bytes can go from the file to the socket without passing through a buffer of ours.
+ */
+final class FrameCodec {
+    static final int VERSION = 1;
+
+    // A chat message typed by a user; payload is only the text, the server adds sender and time
+    static final byte CHAT = 1;
+    // A preformatted line shown as is, such as system notices, or a command from a client
+    static final byte TEXT = 2;
+    // Tells clients the username for a session id; payload is the username
+    static final byte NAME = 3;
+    // A piece of a file transfer; senderId is the transfer id, timestamp the offset, payload raw bytes
+    static final byte FILE_DATA = 4;
+    // Set in the type byte when the payload is compressed with CompressionDictionary
+    static final byte COMPRESSED = (byte) 0x80;
+    // Set in the type byte when a message id follows the timestamp
+    static final byte HAS_ID = 0x40;
+
+    // Longest possible type byte plus three 64-bit varints, excluding the length prefix
+    static final int MAX_HEADER_BODY = 1 + 10 + 10 + 10;
+    // Longest length prefix for a frame within MAX_FRAME_LENGTH
+    static final int MAX_LENGTH_PREFIX = 5;
+    // Frames claiming to be larger than this are treated as a protocol error
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * A decoded frame.
+     */
+    static final class Frame {
+        final byte type;
+        final long senderId;
+        final long timestamp;
+        // The server-assigned message id, or -1 if the frame carries none
+        final long messageId;
+        // The text, or null for file data
+        final String payload;
+        // The raw bytes of file data, in the decoder's buffer: only valid until the decoder is next used
+        final byte[] data;
+        final int dataOffset;
+        final int dataLength;
+        // Bytes a compressed payload inflated to, or 0 if it arrived uncompressed
+        final int inflatedLength;
+
+        Frame(byte type, long senderId, long timestamp, long messageId, String payload) {
+            this(type, senderId, timestamp, messageId, payload, null, 0, 0, 0);
+        }
+
+        private Frame(byte type, long senderId, long timestamp, long messageId, String payload,
+                      byte[] data, int dataOffset, int dataLength, int inflatedLength) {
+            this.type = type;
+            this.senderId = senderId;
+            this.timestamp = timestamp;
+            this.messageId = messageId;
+            this.payload = payload;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.inflatedLength = inflatedLength;
+        }
+    }
+
+    /**
+     * Encodes the length prefix and header of a {@link #FILE_DATA} frame, to be followed by
+     * {@code dataLength} bytes of the file.
+     */
+    static byte[] encodeFileDataHeader(long transferId, long offset, int dataLength) {
+        int headerBody = 1 + varintSize(transferId) + varintSize(offset);
+        byte[] header = new byte[varintSize(headerBody + dataLength) + headerBody];
+        int position = writeVarint(header, 0, headerBody + dataLength);
+        header[position++] = FILE_DATA;
+        position = writeVarint(header, position, transferId);
+        writeVarint(header, position, offset);
+        return header;
+    }
+
+    /**
+     * Returns the number of bytes in the length prefix starting at {@code offset},
+     * or -1 if the prefix is not complete within {@code end}.
+     */
+    static int lengthPrefixSize(byte[] buffer, int offset, int end) throws IOException {
+        for (int i = offset; i < end; i++) {
+            if ((buffer[i] & 0x80) == 0) {
+                return i - offset + 1;
+            }
+            if (i - offset + 1 >= MAX_LENGTH_PREFIX) {
+                throw new IOException("Malformed frame length");
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a complete length prefix and checks it against {@link #MAX_FRAME_LENGTH}.
+     */
+    static int readLength(byte[] buffer, int offset) throws IOException {
+        long length = readVarint(buffer, offset, buffer.length);
+        checkLength(length);
+        return (int) length;
+    }
+
+    /**
+     * Decodes the part of a frame after its length prefix.
+     *
+     * @param maxPayloadBytes Largest size a compressed payload may inflate to, besides
+     *                        {@link #MAX_FRAME_LENGTH}
+     * @throws ProtocolDecoder.MessageTooLongException If a compressed payload inflates to more
+     */
+    static Frame decodeBody(byte[] buffer, int offset, int length, int maxPayloadBytes) throws IOException {
+        int end = offset + length;
+        if (length < 1) {
+            throw new IOException("Empty frame");
+        }
+        byte type = (byte) (buffer[offset] & ~(COMPRESSED | HAS_ID));
+        boolean compressed = (buffer[offset] & COMPRESSED) != 0;
+        boolean hasId = (buffer[offset] & HAS_ID) != 0;
+        int position = offset + 1;
+        long senderId = readVarint(buffer, position, end);
+        position += varintSize(senderId);
+        long timestamp = readVarint(buffer, position, end);
+        position += varintSize(timestamp);
+        long messageId = -1;
+        if (hasId) {
+            messageId = readVarint(buffer, position, end);
+            position += varintSize(messageId);
+        }
+        if (type == FILE_DATA) {
+            return new Frame(type, senderId, timestamp, -1, null, buffer, position, end - position, 0);
+        }
+        if (compressed) {
+            byte[] inflated = CompressionDictionary.decompress(buffer, position, end - position,
+                    Math.min(MAX_FRAME_LENGTH, maxPayloadBytes));
+            return new Frame(type, senderId, timestamp, messageId, new String(inflated, StandardCharsets.UTF_8),
+                    null, 0, 0, inflated.length);
+        }
+        return new Frame(type, senderId, timestamp, messageId,
+                new String(buffer, position, end - position, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes an unsigned varint and returns the position after it.
+     */
+    static int writeVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeVarint} uses for a value.
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long readVarint(byte[] buffer, int offset, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (offset >= end) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buffer[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void checkLength(long length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame of " + length + " bytes exceeds the limit of " + MAX_FRAME_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds connections whose client has gone silent, pings them, and disconnects the ones that stay
+ * silent, such as half-open connections left behind by a sleeping laptop or an expired NAT entry.
+ * Without it such a session would stay registered and keep receiving messages forever.
+ *
+ * All sessions share one hashed timing wheel serviced by a single thread, rather than each having
+ * its own scheduled task. The wheel has one slot per tick, spanning one heartbeat interval, and
+ * each session sits in the slot of its next deadline: one interval after it was last heard from.
+ * Hearing from a client only updates its last-activity time ({@link ChatSession#lastActivityNanos()});
+ * the session is moved lazily when its slot comes up. So every tick costs one constant-time check
+ * per session that falls due in it, and nothing for the others. A session that has been silent
+ * for a whole interval is sent a {@link ChatProtocol#PING}, which the client answers, and one that
+ * has been silent for {@code maxMisses} intervals is disconnected.
+ *
+ * Every session is registered, but only those that negotiated {@link ChatProtocol#HEARTBEAT_EXTENSION}
+ * are pinged, since older clients would show the ping as a chat line. The others cannot be told apart
+ * from a user who is only reading, so they are disconnected only once they have sent nothing for the
+ * much longer {@code --idle-timeout-s}.
+ */
+final class HeartbeatWheel implements Runnable {
+    // Ticks per heartbeat interval; a deadline is checked at most one tick late
+    private static final int TICKS_PER_INTERVAL = 32;
+
+    private final long intervalNanos;
+    private final int maxMisses;
+    // Intervals of silence after which a session that is not pinged is disconnected, or 0 for never
+    private final long idleIntervals;
+    private final long tickNanos;
+    // Sessions by deadline tick modulo the wheel size; only touched by the wheel thread
+    private final List<ArrayDeque<ChatSession>> slots;
+    // Newly registered sessions, handed to the wheel thread
+    private final ConcurrentLinkedQueue<ChatSession> added = new ConcurrentLinkedQueue<>();
+    private final long origin = System.nanoTime();
+    // The last tick processed; only touched by the wheel thread
+    private long tick;
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private volatile Thread thread;
+
+    /**
+     * @param intervalMillis    How long a client may be silent before it is pinged
+     * @param maxMisses         Intervals of silence after which it is disconnected
+     * @param idleTimeoutMillis How long a client that is not pinged may be silent, or 0 for ever
+     */
+    HeartbeatWheel(long intervalMillis, int maxMisses, long idleTimeoutMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.maxMisses = maxMisses;
+        // Rounded up, and never shorter than the limit for clients that are pinged
+        this.idleIntervals = idleTimeoutMillis <= 0 ? 0
+                : Math.max(maxMisses, (idleTimeoutMillis + intervalMillis - 1) / intervalMillis);
+        this.tickNanos = Math.max(1, intervalNanos / TICKS_PER_INTERVAL);
+        // Deadlines are never more than an interval ahead, plus a tick lost to rounding
+        this.slots = new ArrayList<>(TICKS_PER_INTERVAL + 2);
+        for (int i = 0; i < TICKS_PER_INTERVAL + 2; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Creates and starts the wheel configured for a server, or returns null if heartbeats are disabled.
+     */
+    static HeartbeatWheel start(ServerConfig config) {
+        if (config.heartbeatIntervalMillis <= 0) {
+            return null;
+        }
+        HeartbeatWheel wheel = new HeartbeatWheel(config.heartbeatIntervalMillis, config.heartbeatMisses,
+                TimeUnit.SECONDS.toMillis(config.idleTimeoutSeconds));
+        Thread thread = new Thread(wheel, "heartbeat-wheel");
+        thread.setDaemon(true);
+        wheel.thread = thread;
+        thread.start();
+        return wheel;
+    }
+
+    /**
+     * Stops the wheel thread started by {@link #start}.
+     */
+    void stop() {
+        Thread wheelThread = thread;
+        if (wheelThread != null) {
+            wheelThread.interrupt();
+        }
+    }
+
+    /**
+     * Starts watching a session, which is pinged once it has negotiated heartbeats. Safe to call
+     * from any thread. A session is dropped from the wheel on its own once it is closed.
+     */
+    void register(ChatSession session) {
+        added.add(session);
+    }
+
+    /**
+     * Advances the wheel every tick until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            // Catch up on every tick that has passed, in case this thread was held up
+            long current = (now - origin) / tickNanos;
+            ChatMessage ping = null;
+            while (tick < current) {
+                tick++;
+                ArrayDeque<ChatSession> due = slots.get((int) (tick % slots.size()));
+                for (int i = due.size(); i > 0; i--) {
+                    ping = check(due.poll(), now, ping);
+                }
+            }
+            if (ping != null) {
+                ping.release();
+            }
+            ChatSession session;
+            while ((session = added.poll()) != null) {
+                schedule(session, session.lastActivityNanos() + intervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Handles a session whose deadline has come: reschedules it if the client was heard from in
+     * the meantime, and otherwise pings or disconnects it. A session that is not pinged is only
+     * rescheduled until its idle limit, or for as long as it stays open if it has none.
+     *
+     * @param ping The ping message shared by this tick, or null if none was needed yet
+     * @return The ping message, created if this session needed it
+     */
+    private ChatMessage check(ChatSession session, long now, ChatMessage ping) {
+        if (!session.isOpen()) {
+            return ping;
+        }
+        long lastActivity = session.lastActivityNanos();
+        long silentIntervals = (now - lastActivity) / intervalNanos;
+        boolean pinged = session.heartbeats();
+        long limit = pinged ? maxMisses : idleIntervals;
+        if (limit > 0 && silentIntervals >= limit) {
+            reaped.increment();
+            System.out.println(MessageStamp.LOG.now() + "Disconnecting " + (pinged ? "unresponsive" : "idle") + " client "
+                    + session.describe() + " after " + TimeUnit.NANOSECONDS.toMillis(now - lastActivity) + " ms of silence ("
+                    + reaped.sum() + " reaped so far, " + pings.sum() + " pings sent)");
+            session.disconnect();
+            return ping;
+        }
+        if (pinged && silentIntervals > 0) {
+            if (ping == null) {
+                ping = ChatMessage.text(null, ChatProtocol.PING);
+            }
+            session.send(ping);
+            pings.increment();
+        }
+        // Check again one interval after the last activity, or after the last missed interval
+        schedule(session, lastActivity + (silentIntervals + 1) * intervalNanos);
+        return ping;
+    }
+
+    private void schedule(ChatSession session, long deadlineNanos) {
+        long deadlineTick = Math.max(tick + 1, (deadlineNanos - origin + tickNanos - 1) / tickNanos);
+        slots.get((int) (deadlineTick % slots.size())).add(session);
+    }
+
+    /**
+     * Returns the number of sessions disconnected for not answering heartbeats or for being idle.
+     */
+    long reaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * Returns the number of pings sent.
+     */
+    long pings() {
+        return pings.sum();
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One end of a connection between two threads of the same process, standing in for a loopback
+ * TCP socket. Used by a host's own client to talk to the server embedded in its process without
+ * going through the kernel's network stack.
+ *
+ * Each direction is a bounded byte buffer: a writer waits while the buffer is full, as it would
+ * for a full socket send buffer, and a reader waits while it is empty, up to the read timeout if
+ * one is set. Closing either end closes the connection in both directions: writes fail from then
+ * on, and reads on both ends return what was already written, then the end of the stream.
+ *
+ * Only the stream, timeout and close methods of {@link Socket} are supported; the socket options,
+ * which only tune TCP, are left at their defaults and ignored.
+ */
+final class InMemorySocket extends Socket {
+    // Bytes in flight in each direction, about the size of a default loopback socket buffer
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Pipe incoming;
+    private final Pipe outgoing;
+    private volatile int timeoutMillis;
+    private volatile boolean closed;
+
+    private InMemorySocket(Pipe incoming, Pipe outgoing) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    /**
+     * Creates the two connected ends of a new connection.
+     */
+    static InMemorySocket[] pair() {
+        Pipe toFirst = new Pipe();
+        Pipe toSecond = new Pipe();
+        return new InMemorySocket[] {new InMemorySocket(toFirst, toSecond), new InMemorySocket(toSecond, toFirst)};
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : incoming.read(b, off, len, timeoutMillis);
+            }
+
+            @Override
+            public int available() {
+                return incoming.available();
+            }
+
+            @Override
+            public void close() {
+                InMemorySocket.this.close();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                outgoing.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                InMemorySocket.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.timeoutMillis = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        incoming.close();
+        outgoing.close();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemorySocket[" + (closed ? "closed" : "open") + "]";
+    }
+
+    /**
+     * A bounded byte buffer from one end to the other. A ReentrantLock rather than monitors, so
+     * virtual threads waiting on it do not pin their carrier.
+     */
+    private static final class Pipe {
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        // Index of the first unread byte, and the number of unread bytes
+        private int start;
+        private int count;
+        private boolean closed;
+
+        void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    while (count == buffer.length && !closed) {
+                        writable.await();
+                    }
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    int end = (start + count) % buffer.length;
+                    int chunk = Math.min(len, Math.min(buffer.length - count, buffer.length - end));
+                    System.arraycopy(b, off, buffer, end, chunk);
+                    count += chunk;
+                    off += chunk;
+                    len -= chunk;
+                    readable.signal();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads at least one byte, or returns -1 once the connection is closed and everything
+         * written before that has been read.
+         */
+        int read(byte[] b, int off, int len, int timeoutMillis) throws IOException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (count == 0) {
+                    if (closed) {
+                        return -1;
+                    }
+                    if (timeoutMillis == 0) {
+                        readable.await();
+                    } else if ((remaining = readable.awaitNanos(remaining)) <= 0 && count == 0 && !closed) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                int chunk = Math.min(len, Math.min(count, buffer.length - start));
+                System.arraycopy(buffer, start, b, off, chunk);
+                start = (start + chunk) % buffer.length;
+                count -= chunk;
+                writable.signal();
+                return chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int available() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
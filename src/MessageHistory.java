@@ -0,0 +1,103 @@
+/**
+ * The most recent messages of a room, kept encoded in a fixed-capacity ring so that a client
+ * joining the room can be shown them without touching the disk.
+ *
+ * Each slot holds references to the message's already encoded text line and uncompressed binary
+ * frame, so replaying a slot to a client of either protocol is just queueing a shared frame again.
+ * The ring is allocated once and overwriting a slot releases the frames it held, so recording a
+ * message allocates nothing. Each slot also keeps the message's id, so that a client resuming
+ * without a message log is sent only what it has not seen.
+ *
+ * Not thread-safe: the owning {@link Room} guards it with the same lock as its member list, which
+ * is what makes the handoff from replay to live delivery exact.
+ */
+final class MessageHistory {
+    private final SharedFrame[] lines;
+    private final SharedFrame[] frames;
+    private final long[] ids;
+    // Id of the newest message overwritten, or -1 if the ring still holds everything recorded
+    private long overwrittenId = -1;
+    // Total messages ever recorded; the next one goes into slot recorded % capacity
+    private long recorded;
+
+    /**
+     * @param capacity Number of recent messages to keep and replay
+     */
+    MessageHistory(int capacity) {
+        this.lines = new SharedFrame[capacity];
+        this.frames = new SharedFrame[capacity];
+        this.ids = new long[capacity];
+    }
+
+    /**
+     * Stores a message's id and two encodings, taking over the caller's references, and releases
+     * the oldest message's once the ring is full.
+     */
+    void add(long id, SharedFrame line, SharedFrame frame) {
+        int slot = (int) (recorded % lines.length);
+        if (lines[slot] != null) {
+            lines[slot].release();
+            frames[slot].release();
+            overwrittenId = ids[slot];
+        }
+        lines[slot] = line;
+        frames[slot] = frame;
+        ids[slot] = id;
+        recorded++;
+    }
+
+    /**
+     * Returns the stored messages, oldest first, with one reference retained on each for the caller.
+     *
+     * @param binary Whether to return binary frames rather than text lines
+     */
+    SharedFrame[] recent(boolean binary) {
+        return after(binary, -1);
+    }
+
+    /**
+     * Returns the stored messages with ids above {@code lastSeenId}, oldest first, with one
+     * reference retained on each for the caller.
+     *
+     * @param binary Whether to return binary frames rather than text lines
+     */
+    SharedFrame[] after(boolean binary, long lastSeenId) {
+        SharedFrame[] ring = binary ? frames : lines;
+        int stored = (int) Math.min(recorded, ring.length);
+        int count = 0;
+        while (count < stored && ids[(int) ((recorded - count - 1) % ring.length)] > lastSeenId) {
+            count++;
+        }
+        SharedFrame[] recent = new SharedFrame[count];
+        for (int i = 0; i < count; i++) {
+            SharedFrame frame = ring[(int) ((recorded - count + i) % ring.length)];
+            frame.retain(1);
+            recent[i] = frame;
+        }
+        return recent;
+    }
+
+    /**
+     * Returns true if a message with an id above {@code lastSeenId} has already been overwritten,
+     * so that {@link #after} cannot return everything a client missed.
+     */
+    boolean overwroteAfter(long lastSeenId) {
+        return overwrittenId > lastSeenId;
+    }
+
+    /**
+     * Releases every stored frame and empties the ring.
+     */
+    void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i] != null) {
+                lines[i].release();
+                frames[i].release();
+                lines[i] = null;
+                frames[i] = null;
+            }
+        }
+        recorded = 0;
+        overwrittenId = -1;
+    }
+}
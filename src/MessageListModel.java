@@ -0,0 +1,196 @@
+import javax.swing.AbstractListModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lines shown in the chat window, for a {@link javax.swing.JList} that only renders the rows in view.
+ *
+ * The most recent lines are kept in a ring of fixed capacity, so appending is constant time and
+ * memory stays bounded however long the session runs. A line pushed out of the ring is written to
+ * a spill file, and scrolling back reads it from there a page of lines at a time, keeping the few
+ * pages read last in memory. Only the file offset of every page start stays in memory, eight bytes
+ * per {@value #PAGE_LINES} lines. Without a spill file lines pushed out of the ring are dropped, and
+ * the list starts at the oldest line still held; if writing to the spill file fails, the lines in
+ * it are dropped too.
+ *
+ * Lines are added in batches, each announced to the list as one change however many lines it holds.
+ *
+ * Like every Swing model, it is only used on the event dispatch thread.
+ */
+final class MessageListModel extends AbstractListModel<String> {
+    private static final int PAGE_LINES = 256;
+    private static final int CACHED_PAGES = 8;
+
+    private final String[] ring;
+    // Number, counting every line ever appended, of the first line in the list
+    private long first;
+    // Index into ring of the oldest line held in memory
+    private int head;
+    private int held;
+    // Lines written to the spill file; they come before the ring in the list
+    private int spilled;
+    private RandomAccessFile spillFile;
+    private DataOutputStream spillOut;
+    private long spillBytes;
+    private boolean spillDirty;
+    private long[] pageOffsets = new long[16];
+    private final Map<Integer, String[]> pages = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /**
+     * @param capacity Lines to keep in memory
+     * @param spill    Whether to page older lines to a temporary file rather than dropping them
+     */
+    MessageListModel(int capacity, boolean spill) {
+        this.ring = new String[Math.max(1, capacity)];
+        if (spill) {
+            try {
+                File file = File.createTempFile("chat-history", ".bin");
+                file.deleteOnExit();
+                spillFile = new RandomAccessFile(file, "rw");
+                spillOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(spillFile.getChannel())));
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds a line at the end of the list.
+     */
+    void append(String line) {
+        appendAll(List.of(line));
+    }
+
+    /**
+     * Adds lines at the end of the list, as a single change.
+     */
+    void appendAll(List<String> lines) {
+        long oldFirst = first;
+        long oldEnd = first + getSize();
+        for (String line : lines) {
+            if (held == ring.length) {
+                String oldest = ring[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                held--;
+                if (spillOut == null || !spill(oldest)) {
+                    first++;
+                }
+            }
+            ring[(head + held) % ring.length] = line;
+            held++;
+        }
+        // Lines that were in the list and are gone now, then lines that are new to it
+        long removed = Math.min(first, oldEnd) - oldFirst;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, (int) removed - 1);
+        }
+        long end = first + getSize();
+        long added = Math.max(first, oldEnd);
+        if (added < end) {
+            fireIntervalAdded(this, (int) (added - first), (int) (end - first) - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return spilled + held;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        if (index >= spilled) {
+            return ring[(head + index - spilled) % ring.length];
+        }
+        String[] page = pages.get(index / PAGE_LINES);
+        if (page == null) {
+            page = readPage(index / PAGE_LINES);
+            pages.put(index / PAGE_LINES, page);
+        }
+        return page[index % PAGE_LINES];
+    }
+
+    /**
+     * Moves a line from the ring to the end of the spill file. Its index in the list is unchanged.
+     *
+     * @return false if the line could not be written, and the spill file has been given up
+     */
+    private boolean spill(String line) {
+        try {
+            if (spilled % PAGE_LINES == 0) {
+                int page = spilled / PAGE_LINES;
+                if (page == pageOffsets.length) {
+                    pageOffsets = Arrays.copyOf(pageOffsets, page * 2);
+                }
+                pageOffsets[page] = spillBytes;
+            }
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            spillOut.writeInt(bytes.length);
+            spillOut.write(bytes);
+            spillBytes += 4 + bytes.length;
+            spillDirty = true;
+            // A cached copy of the last, partial page would be missing this line
+            pages.remove(spilled / PAGE_LINES);
+            spilled++;
+            return true;
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            // From now on the list only holds the ring
+            spillOut = null;
+            try {
+                spillFile.close();
+            } catch (IOException closeFailure) {
+                System.out.println("An error occurred: " + closeFailure.getMessage());
+            }
+            first += spilled;
+            spilled = 0;
+            pages.clear();
+            return false;
+        }
+    }
+
+    private String[] readPage(int page) {
+        String[] lines = new String[PAGE_LINES];
+        int count = Math.min(PAGE_LINES, spilled - page * PAGE_LINES);
+        try {
+            if (spillDirty && spillOut != null) {
+                spillOut.flush();
+                spillDirty = false;
+            }
+            spillFile.seek(pageOffsets[page]);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(spillFile.getChannel())));
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                lines[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            Arrays.fill(lines, 0, count, "");
+        } finally {
+            try {
+                // Spilled lines are written at the file's position, so put it back at the end
+                spillFile.seek(spillBytes);
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A durable, append-only log of every broadcast, stored in fixed-size memory-mapped segments.
+ *
+ * Every message gets the next offset, a sequence number that never repeats for the life of the log.
+ * Appending only copies the record into the mapped segment, so the broadcasting thread never waits
+ * for the disk. A background thread forces newly written bytes to disk every flush interval (group
+ * commit): one fsync covers every message appended since the last one. The mapped pages belong to
+ * the operating system, so a killed server loses nothing it appended; a power failure or kernel
+ * crash loses at most the last flush interval.
+ *
+ * Segments are files named after the offset of their first record, each with a sparse offset index
+ * alongside. When a record does not fit, the active segment is sealed and a new one is started.
+ * Sealed segments are deleted, oldest first, once the log exceeds its size limit or their newest
+ * record is older than the age limit.
+ *
+ * On startup the log finds the end of the newest segment by validating record checksums, so a
+ * record torn by a crash is discarded rather than replayed.
+ */
+final class MessageLog implements AutoCloseable {
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long flushIntervalMillis;
+    // Segments by base offset; the last one is the active segment
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    // Sealed segments whose tail has not been forced to disk yet
+    private final ConcurrentLinkedQueue<LogSegment> unflushedSealed = new ConcurrentLinkedQueue<>();
+    // Serializes appends and rolls; a ReentrantLock so virtual threads waiting here do not pin
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Thread flusher;
+    private volatile LogSegment active;
+    private volatile long nextOffset;
+    private volatile boolean closed;
+
+    /**
+     * A record read back from the log.
+     */
+    static final class Record {
+        final long offset;
+        final long timestamp;
+        final byte type;
+        final long senderId;
+        final String senderName;
+        // The room it was sent in
+        final String room;
+        final String body;
+
+        Record(long offset, long timestamp, byte type, long senderId, String senderName, String room, String body) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.senderId = senderId;
+            this.senderName = senderName;
+            this.room = room;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Opens the log in a directory, recovering existing segments, and starts the flush thread.
+     *
+     * @param directory           Where segment files live; created if missing
+     * @param segmentBytes        Size of each segment file
+     * @param retentionBytes      Delete the oldest segments once the log is larger than this
+     * @param retentionMillis     Delete segments whose newest record is older than this
+     * @param flushIntervalMillis How often newly appended bytes are forced to disk
+     * @throws IOException If the directory or a segment cannot be opened
+     */
+    MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis,
+               long flushIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.flushIntervalMillis = flushIntervalMillis;
+        Files.createDirectories(directory);
+        recover();
+        this.flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log configured for a server, or returns null if logging is disabled.
+     */
+    static MessageLog open(ServerConfig config) throws IOException {
+        if (config.logDirectory == null) {
+            return null;
+        }
+        return new MessageLog(config.logDirectory, config.logSegmentBytes, config.logRetentionBytes,
+                config.logRetentionMillis, config.logFlushIntervalMillis);
+    }
+
+    /**
+     * Appends a message at the next offset and returns it. Only copies into memory; it never waits
+     * for the disk.
+     *
+     * @param room The room the message was sent in
+     * @return The offset assigned to the message, or -1 if it is too large for a segment
+     */
+    long append(long timestamp, byte type, long senderId, String senderName, String room, String body) {
+        return append(null, timestamp, type, senderId, senderName, room, body);
+    }
+
+    /**
+     * Appends a message under the next id of a sequence, drawn with the append lock held so that
+     * offsets increase through the log. Ids the sequence hands out elsewhere leave gaps, which
+     * reads skip over.
+     *
+     * @param ids  The server's message ids, seeded from {@link #nextOffset()}, or null for the next offset
+     * @param room The room the message was sent in
+     * @return The offset assigned to the message, or -1 if it is too large for a segment
+     */
+    long append(MessageStamp.Sequence ids, long timestamp, byte type, long senderId, String senderName, String room,
+                String body) {
+        byte[] name = senderName != null ? senderName.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] roomName = room.getBytes(StandardCharsets.UTF_8);
+        byte[] text = body.getBytes(StandardCharsets.UTF_8);
+        int recordLength = LogSegment.recordLength(name.length, roomName.length, text.length);
+        if (recordLength > segmentBytes - LogSegment.TERMINATOR_BYTES) {
+            System.out.println("Message of " + text.length + " bytes is too large for the message log");
+            return -1;
+        }
+        appendLock.lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            LogSegment segment = active;
+            if (!segment.hasRoom(recordLength)) {
+                segment = roll();
+            }
+            long offset = ids != null ? ids.next() : nextOffset;
+            segment.append(offset, timestamp, type, senderId, name, roomName, text);
+            nextOffset = offset + 1;
+            return offset;
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+            return -1;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the offset the next appended message will get.
+     */
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Returns the offset of the oldest retained record, or the next offset if there is none.
+     */
+    long firstOffset() {
+        Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+        return oldest != null ? oldest.getKey() : nextOffset;
+    }
+
+    /**
+     * Reads records in offset order, starting at {@code fromOffset} or the oldest retained record
+     * if that has already been deleted.
+     *
+     * @param fromOffset First offset wanted
+     * @param maxRecords Most records to read
+     * @param consumer   Receives each record
+     * @return The number of records read
+     */
+    int read(long fromOffset, int maxRecords, Consumer<Record> consumer) {
+        Long start = segments.floorKey(fromOffset);
+        if (start == null) {
+            start = segments.isEmpty() ? null : segments.firstKey();
+        }
+        int read = 0;
+        for (Map.Entry<Long, LogSegment> entry = start != null ? segments.ceilingEntry(start) : null;
+             entry != null && read < maxRecords;
+             entry = segments.higherEntry(entry.getKey())) {
+            read += entry.getValue().read(fromOffset, maxRecords - read, consumer);
+        }
+        return read;
+    }
+
+    /**
+     * Summarizes the log for output.
+     */
+    String describe() {
+        return segments.size() + " segments, next offset " + nextOffset;
+    }
+
+    /**
+     * Forces everything appended so far to disk and stops the flush thread.
+     */
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (var files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(LogSegment.LOG_SUFFIX))
+                    .forEach(name -> baseOffsets.add(Long.parseLong(
+                            name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length()))));
+        }
+        baseOffsets.sort(null);
+        boolean torn = false;
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            boolean last = i == baseOffsets.size() - 1;
+            LogSegment segment = LogSegment.open(directory, baseOffsets.get(i), segmentBytes, last);
+            segments.put(segment.baseOffset, segment);
+            if (last) {
+                torn = segment.recover();
+            }
+        }
+        if (segments.isEmpty()) {
+            active = LogSegment.open(directory, 0, segmentBytes, true);
+            segments.put(0L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        nextOffset = active.nextOffset();
+        System.out.println("Message log in " + directory.toAbsolutePath() + ": " + describe()
+                + (torn ? ", discarded a torn record at the end" : ""));
+    }
+
+    /**
+     * Seals the active segment and starts a new one. Called with the append lock held.
+     */
+    private LogSegment roll() throws IOException {
+        LogSegment sealed = active;
+        sealed.seal();
+        unflushedSealed.add(sealed);
+        LogSegment segment = LogSegment.open(directory, nextOffset, segmentBytes, true);
+        segments.put(segment.baseOffset, segment);
+        active = segment;
+        return segment;
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+            enforceRetention();
+        }
+    }
+
+    private void flush() {
+        LogSegment segment;
+        while ((segment = unflushedSealed.poll()) != null) {
+            segment.force();
+        }
+        active.force();
+    }
+
+    private void enforceRetention() {
+        long total = (long) segments.size() * segmentBytes;
+        long now = System.currentTimeMillis();
+        Map.Entry<Long, LogSegment> oldest;
+        while ((oldest = segments.firstEntry()) != null && oldest.getValue() != active) {
+            LogSegment segment = oldest.getValue();
+            if (total <= retentionBytes && now - segment.lastModifiedMillis() <= retentionMillis) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            segment.delete();
+            total -= segmentBytes;
+        }
+    }
+}
+
+/**
+ * One segment of the {@link MessageLog}: a memory-mapped log file and its sparse offset index.
+ *
+ * Records are laid out as:
+ * <pre>
+ *   int    length of everything after the checksum
+ *   int    CRC32C of everything after the checksum
+ *   long   offset
+ *   long   timestamp, epoch milliseconds
+ *   byte   type (FrameCodec.CHAT or TEXT)
+ *   long   sender session id
+ *   short  sender name length, then the UTF-8 name
+ *   short  room name length, then the UTF-8 room name
+ *   bytes  UTF-8 body
+ * </pre>
+ * A zero length marks the end of the written data; new files are zero-filled, so this holds
+ * without extra writes. The index holds a pair of ints every {@link #INDEX_INTERVAL_BYTES}: the
+ * record's offset relative to the segment, and its position plus one, so that an unused,
+ * zero-filled entry is recognizable. A read only scans a few kilobytes to find an offset.
+ */
+class LogSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    static final int TERMINATOR_BYTES = 4;
+    private static final int HEADER_BYTES = 4 + 4;
+    private static final int FIXED_BODY_BYTES = 8 + 8 + 1 + 8 + 2 + 2;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 8;
+
+    final long baseOffset;
+    private final Path logPath;
+    private final Path indexPath;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    // Reused for every append; only touched with the log's append lock held
+    private final CRC32C crc = new CRC32C();
+    // End of the valid records; published after each append so readers never see a partial record
+    private volatile int end;
+    private volatile int indexEntries;
+    // Positions [0, forced) are known to be on disk; only touched by the flush thread
+    private int forced;
+    private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+    private long lastOffset = -1;
+
+    private LogSegment(long baseOffset, Path logPath, Path indexPath, MappedByteBuffer log, MappedByteBuffer index) {
+        this.baseOffset = baseOffset;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.log = log;
+        this.index = index;
+    }
+
+    /**
+     * Opens or creates the segment starting at {@code baseOffset}. Sealed segments are mapped
+     * read-only and their end is found from the index.
+     */
+    static LogSegment open(Path directory, long baseOffset, int segmentBytes, boolean writable) throws IOException {
+        String name = String.format("%020d", baseOffset);
+        Path logPath = directory.resolve(name + LOG_SUFFIX);
+        Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+        int indexBytes = (segmentBytes / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES;
+        MappedByteBuffer log = map(logPath, segmentBytes, writable);
+        MappedByteBuffer index = map(indexPath, indexBytes, writable);
+        LogSegment segment = new LogSegment(baseOffset, logPath, indexPath, log, index);
+        segment.end = segment.scan(writable);
+        return segment;
+    }
+
+    static int recordLength(int nameBytes, int roomBytes, int bodyBytes) {
+        return HEADER_BYTES + FIXED_BODY_BYTES + nameBytes + roomBytes + bodyBytes;
+    }
+
+    boolean hasRoom(int recordLength) {
+        return end + recordLength + TERMINATOR_BYTES <= log.capacity();
+    }
+
+    /**
+     * Returns the offset after the last valid record.
+     */
+    long nextOffset() {
+        return lastOffset >= 0 ? lastOffset + 1 : baseOffset;
+    }
+
+    /**
+     * Writes a record at the end of the segment. Called with the log's append lock held.
+     */
+    void append(long offset, long timestamp, byte type, long senderId, byte[] name, byte[] room, byte[] body) {
+        int position = end;
+        int bodyStart = position + HEADER_BYTES;
+        ByteBuffer record = log.duplicate();
+        record.position(bodyStart);
+        record.putLong(offset).putLong(timestamp).put(type).putLong(senderId)
+                .putShort((short) name.length).put(name).putShort((short) room.length).put(room).put(body);
+        int bodyLength = record.position() - bodyStart;
+        crc.reset();
+        crc.update(log.duplicate().position(bodyStart).limit(bodyStart + bodyLength));
+        log.putInt(position + 4, (int) crc.getValue());
+        // The length goes last, so a reader or a recovery scan never sees a record before it is whole
+        log.putInt(position, bodyLength);
+        if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            addIndexEntry(offset, position);
+        }
+        lastOffset = offset;
+        end = record.position();
+    }
+
+    /**
+     * Reads records from {@code fromOffset} onwards, up to the end published so far.
+     */
+    int read(long fromOffset, int maxRecords, Consumer<MessageLog.Record> consumer) {
+        int limit = end;
+        ByteBuffer buffer = log.duplicate();
+        int position = indexedPosition(fromOffset);
+        int read = 0;
+        while (position < limit && read < maxRecords) {
+            int bodyLength = buffer.getInt(position);
+            int bodyStart = position + HEADER_BYTES;
+            long offset = buffer.getLong(bodyStart);
+            if (offset >= fromOffset) {
+                consumer.accept(decode(buffer, bodyStart, bodyLength));
+                read++;
+            }
+            position = bodyStart + bodyLength;
+        }
+        return read;
+    }
+
+    /**
+     * Clears whatever follows the last valid record, such as a record torn by a crash, so that
+     * later appends start from clean zeroes.
+     *
+     * @return true if anything had to be cleared
+     */
+    boolean recover() {
+        int validEnd = end;
+        if (validEnd + TERMINATOR_BYTES > log.capacity() || log.getInt(validEnd) == 0) {
+            return false;
+        }
+        for (int i = validEnd; i < log.capacity(); i++) {
+            log.put(i, (byte) 0);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the segment as complete; its modification time then records its newest message.
+     */
+    void seal() {
+        try {
+            Files.setLastModifiedTime(logPath, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    long lastModifiedMillis() {
+        return logPath.toFile().lastModified();
+    }
+
+    /**
+     * Forces bytes written since the last call to disk.
+     */
+    void force() {
+        int limit = end;
+        if (limit > forced) {
+            log.force(forced, limit - forced);
+            index.force();
+            forced = limit;
+        }
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(logPath);
+            Files.deleteIfExists(indexPath);
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the end of the valid records by checking each record's checksum.
+     *
+     * @param full Scan the whole segment and rebuild the index, as for the segment that was being
+     *             written when the server stopped; otherwise trust the index and scan from its last
+     *             entry, as for sealed segments
+     */
+    private int scan(boolean full) {
+        int position = 0;
+        if (full) {
+            indexEntries = 0;
+        } else {
+            int entries = 0;
+            while ((entries + 1) * INDEX_ENTRY_BYTES <= index.capacity()
+                    && index.getInt(entries * INDEX_ENTRY_BYTES + 4) != 0) {
+                entries++;
+            }
+            indexEntries = entries;
+            if (entries > 0) {
+                position = index.getInt((entries - 1) * INDEX_ENTRY_BYTES + 4) - 1;
+                lastIndexedPosition = position;
+            }
+        }
+        ByteBuffer buffer = log.duplicate();
+        CRC32C check = new CRC32C();
+        while (position + HEADER_BYTES <= log.capacity()) {
+            int bodyLength = buffer.getInt(position);
+            int bodyStart = position + HEADER_BYTES;
+            if (bodyLength < FIXED_BODY_BYTES || bodyStart + bodyLength > log.capacity()) {
+                break;
+            }
+            check.reset();
+            check.update(log.duplicate().position(bodyStart).limit(bodyStart + bodyLength));
+            if ((int) check.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            lastOffset = buffer.getLong(bodyStart);
+            if (full && position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                addIndexEntry(lastOffset, position);
+            }
+            position = bodyStart + bodyLength;
+        }
+        if (full) {
+            // Drop index entries that pointed past the valid records
+            for (int i = indexEntries * INDEX_ENTRY_BYTES; i < index.capacity(); i++) {
+                index.put(i, (byte) 0);
+            }
+        }
+        forced = position;
+        return position;
+    }
+
+    private void addIndexEntry(long offset, int position) {
+        int entry = indexEntries * INDEX_ENTRY_BYTES;
+        if (entry + INDEX_ENTRY_BYTES > index.capacity()) {
+            return;
+        }
+        index.putInt(entry, (int) (offset - baseOffset));
+        index.putInt(entry + 4, position + 1);
+        indexEntries++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * Returns the position of the last indexed record at or before {@code offset}.
+     */
+    private int indexedPosition(long offset) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entryOffset = baseOffset + index.getInt(middle * INDEX_ENTRY_BYTES);
+            if (entryOffset <= offset) {
+                position = index.getInt(middle * INDEX_ENTRY_BYTES + 4) - 1;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    private static MessageLog.Record decode(ByteBuffer buffer, int bodyStart, int bodyLength) {
+        ByteBuffer record = buffer.duplicate().position(bodyStart).limit(bodyStart + bodyLength);
+        long offset = record.getLong();
+        long timestamp = record.getLong();
+        byte type = record.get();
+        long senderId = record.getLong();
+        byte[] name = new byte[record.getShort() & 0xFFFF];
+        record.get(name);
+        byte[] room = new byte[record.getShort() & 0xFFFF];
+        record.get(room);
+        byte[] body = new byte[record.remaining()];
+        record.get(body);
+        String senderName = name.length > 0 ? new String(name, StandardCharsets.UTF_8) : null;
+        return new MessageLog.Record(offset, timestamp, type, senderId, senderName,
+                new String(room, StandardCharsets.UTF_8), new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static MappedByteBuffer map(Path path, int size, boolean writable) throws IOException {
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            // A mapping stays valid after its channel is closed
+            return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                    writable ? size : Math.min(size, channel.size()));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders timestamps as "HH:mm:ss" in the local time zone, for the prefixes of chat lines, system
+ * lines and the server's log.
+ *
+ * Messages arrive many to a second, so each {@link Clock} keeps the last second it rendered and
+ * reformats only when the second changes. The cache is an immutable pair behind a volatile field:
+ * any number of threads can format at once without locking, a hit allocates nothing, and two
+ * threads that miss together both format the same text, of which one is kept. Timestamps far apart,
+ * as when replaying history, are still formatted correctly, only without the benefit of the cache.
+ *
+ * A {@link Sequence} stamps messages with their ids, which clients hand back to resume where they
+ * left off.
+ */
+final class MessageStamp {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // Prefixes the server's log lines about connections coming and going
+    static final Clock LOG = new Clock("[", "] ");
+
+    private MessageStamp() {
+    }
+
+    /**
+     * Formats timestamps with fixed text around the time, e.g. "[" and "] System: ".
+     */
+    static final class Clock {
+        private final String before;
+        private final String after;
+        private volatile Rendered last = new Rendered(Long.MIN_VALUE, null);
+
+        Clock(String before, String after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Returns the text around the time of day of a {@link System#currentTimeMillis()} timestamp.
+         */
+        String format(long epochMillis) {
+            long second = Math.floorDiv(epochMillis, 1000);
+            Rendered rendered = last;
+            if (rendered.second != second) {
+                rendered = new Rendered(second, before + TIME.format(Instant.ofEpochSecond(second)) + after);
+                last = rendered;
+            }
+            return rendered.text;
+        }
+
+        /**
+         * Returns the text around the current time of day.
+         */
+        String now() {
+            return format(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Hands out the ids of a server's messages: unique across its rooms, and increasing in the order
+     * each room's members receive them, as long as a room takes its ids while holding its lock.
+     *
+     * With a message log, the sequence continues from the log's next offset and the log draws from
+     * it while appending, so an id is also the message's offset. Without one it starts from the
+     * current time in microseconds, so that ids still increase across restarts and a client
+     * resuming with an id from before a restart does not mistake new messages for ones it has seen.
+     */
+    static final class Sequence {
+        private final AtomicLong next;
+
+        /**
+         * @param log The server's message log, or null
+         */
+        Sequence(MessageLog log) {
+            this.next = new AtomicLong(log != null ? log.nextOffset()
+                    : TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+        }
+
+        /**
+         * Returns the next id.
+         */
+        long next() {
+            return next.getAndIncrement();
+        }
+    }
+
+    private static final class Rendered {
+        final long second;
+        final String text;
+
+        Rendered(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,730 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking chat server built on {@link Selector} and {@link SocketChannel}.
+ * One acceptor thread hands new connections round-robin to a fixed pool of event loops
+ * (one per available core), so thousands of clients are served by a handful of threads.
+ * It speaks the same protocols as {@link ClientHandler}: text lines, or binary frames once negotiated.
+ *
+ * Writes are batched: all queued lines for a connection go out in one gathering write, and with
+ * a flush delay configured the loop waits that long after the first queued line before writing.
+ * Selector timeouts are in milliseconds, so in this mode the delay is rounded up to whole ms.
+ * A connection throttled by the {@link RateLimiter} is left out of the read set until its budget
+ * has caught up, on the same timer.
+ *
+ * Files being downloaded are written between batches with {@link java.nio.channels.FileChannel#transferTo},
+ * straight from the staged file to the socket, a piece at a time; a connection whose files are all
+ * waiting out their bandwidth cap is left out of the write set until the first is ready, on the
+ * same timer again.
+ */
+public class NioChatServer {
+    private final ServerConfig config;
+    private final ClientRegistry clients;
+    private final NioEventLoop[] loops;
+    // Index of the loop the next accepted connection goes to, shared by every acceptor
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final List<Thread> acceptors = new ArrayList<>();
+
+    /**
+     * Creates a new non-blocking server.
+     *
+     * @param clients    The registry of connected clients used for broadcasting
+     * @param config     The server configuration. Event loop threads must never block, so the
+     *                   {@link OutboundQueue.OverflowPolicy#BLOCK} overflow policy is replaced
+     *                   with {@link OutboundQueue.OverflowPolicy#DROP_OLDEST}.
+     * @param flushStats Server-wide flush counters that each connection's counters roll up into
+     * @param rateLimiter Budgets of the clients and the server, for each connection to charge
+     * @throws IOException If a selector cannot be opened
+     */
+    public NioChatServer(ClientRegistry clients, ServerConfig config, FlushStats flushStats,
+                         RateLimiter rateLimiter) throws IOException {
+        this.config = config;
+        this.clients = clients;
+        OutboundQueue.OverflowPolicy overflowPolicy = config.overflowPolicy;
+        if (overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK) {
+            System.out.println("The block overflow policy is not supported in nio mode; using drop-oldest");
+            overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+        }
+        this.loops = new NioEventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(clients, config.queueCapacity, overflowPolicy,
+                    config.flushDelayNanos, config.flushThresholdBytes, flushStats, config.maxMessageBytes, rateLimiter);
+        }
+    }
+
+    /**
+     * Binds the listening channels, then starts the event loops and the acceptor threads, which
+     * accept connections until {@link #stop()}. As in the blocking modes, several acceptors share
+     * the listening channel or, with {@code --reuse-port}, each open their own.
+     *
+     * @throws IOException If the server socket cannot be bound; nothing is left open
+     */
+    public void start() throws IOException {
+        try {
+            ServerSocketChannel sharedChannel = config.reusePort ? null : config.openServerChannel();
+            for (int i = 0; i < config.acceptors; i++) {
+                serverChannels.add(sharedChannel != null ? sharedChannel : config.openServerChannel());
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        System.out.println("Using " + loops.length + " event loop threads");
+        for (int i = 0; i < serverChannels.size(); i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i);
+            Thread acceptor = new Thread(() -> accept(serverChannel), "nio-acceptor-" + i);
+            acceptors.add(acceptor);
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Closes the listening channels and every connection, and ends the event loops.
+     */
+    public void stop() {
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        // The port is only released once a blocked accept has woken up
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        while (serverChannel.isOpen()) {
+            try {
+                // Accept stays blocking; only the per-client channels are non-blocking
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    config.configure(channel.socket());
+                } catch (IOException e) {
+                    System.out.println("An error occurred: " + e.getMessage());
+                    channel.close();
+                    continue;
+                }
+                System.out.println(MessageStamp.LOG.now() + "New client connected: " + channel.socket().getInetAddress());
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            } catch (ClosedChannelException e) {
+                return;  // Stopped
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+}
+
+/**
+ * A single selector thread that services reads and writes for the connections assigned to it.
+ * Other threads never touch the selector directly; they queue work and wake it up instead.
+ */
+class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final ClientRegistry clients;
+    private final int queueCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final long flushDelayNanos;
+    private final int flushThresholdBytes;
+    private final FlushStats flushStats;
+    private final int maxMessageBytes;
+    private final RateLimiter rateLimiter;
+    // Connections waiting out the flush delay, in deadline order since every delay is the same;
+    // only touched by this loop
+    private final ArrayDeque<NioConnection> delayedFlushes = new ArrayDeque<>();
+    // Throttled connections not being read from, earliest resume first; only touched by this loop
+    private final PriorityQueue<NioConnection> pausedReads =
+            new PriorityQueue<>((a, b) -> Long.compare(a.resumeReadingAt - b.resumeReadingAt, 0));
+    // Connections with only capped files to send, earliest ready first; only touched by this loop
+    private final PriorityQueue<NioConnection> pacedWrites =
+            new PriorityQueue<>((a, b) -> Long.compare(a.resumeWritingAt - b.resumeWritingAt, 0));
+    // Channels accepted by the acceptor thread that still need registering with this selector
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    // Connections that had lines queued from another thread and need OP_WRITE enabled
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Connections whose replay ended on another thread, so they may be read from again
+    private final Queue<NioConnection> replayedReads = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped;
+
+    NioEventLoop(ClientRegistry clients, int queueCapacity, OutboundQueue.OverflowPolicy overflowPolicy,
+                 long flushDelayNanos, int flushThresholdBytes, FlushStats flushStats, int maxMessageBytes,
+                 RateLimiter rateLimiter) throws IOException {
+        this.selector = Selector.open();
+        this.clients = clients;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.flushDelayNanos = flushDelayNanos;
+        this.flushThresholdBytes = flushThresholdBytes;
+        this.flushStats = flushStats;
+        this.maxMessageBytes = maxMessageBytes;
+        this.rateLimiter = rateLimiter;
+    }
+
+    int flushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop. Safe to call from any thread.
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to start watching a connection for writability. Safe to call from any thread.
+     */
+    void requestWrite(NioConnection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Tells the loop that a connection's replay has ended, so that it handles the connection's
+     * messages again if it stopped for the replay. Safe to call from any thread.
+     */
+    void replayEnded(NioConnection connection) {
+        replayedReads.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops reading from a throttled connection until the given time. Called on this loop only.
+     */
+    void pauseReading(NioConnection connection, long resumeNanos) {
+        connection.resumeReadingAt = resumeNanos;
+        pausedReads.add(connection);
+    }
+
+    /**
+     * Stops writing to a connection whose files are all waiting out their bandwidth cap until the
+     * first is ready. Called on this loop only.
+     */
+    void pauseWriting(NioConnection connection, long resumeNanos) {
+        if (!connection.writePaced) {
+            connection.writePaced = true;
+            connection.resumeWritingAt = resumeNanos;
+            pacedWrites.add(connection);
+        }
+    }
+
+    /**
+     * Asks the loop to close its connections and exit. Safe to call from any thread.
+     */
+    void shutdown() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                selector.select(selectTimeoutMillis());
+                registerPendingChannels();
+                enablePendingWrites();
+                enableExpiredFlushes();
+                resumeExpiredReads();
+                resumeReplayedReads();
+                resumeExpiredWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    private void registerPendingChannels() throws IOException {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(channel, key, this, clients,
+                    new OutboundQueue(queueCapacity, overflowPolicy), new FlushStats(flushStats),
+                    new ProtocolDecoder(maxMessageBytes), rateLimiter.newClient());
+            key.attach(connection);
+            ChatServer.join(clients, connection);
+        }
+    }
+
+    /**
+     * Starts writing for connections that asked for it, or holds them back for the flush delay
+     * so that more lines can join the batch.
+     */
+    private void enablePendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (flushDelayNanos == 0 || connection.flushDue()) {
+                connection.enableWriteInterest();
+            } else if (!connection.flushDelayed) {
+                connection.flushDelayed = true;
+                connection.flushDeadline = System.nanoTime() + flushDelayNanos;
+                delayedFlushes.add(connection);
+            }
+        }
+    }
+
+    private void enableExpiredFlushes() {
+        long now = System.nanoTime();
+        while (!delayedFlushes.isEmpty() && delayedFlushes.peek().flushDeadline - now <= 0) {
+            NioConnection connection = delayedFlushes.poll();
+            connection.flushDelayed = false;
+            connection.enableWriteInterest();
+        }
+    }
+
+    private void resumeExpiredReads() {
+        long now = System.nanoTime();
+        while (!pausedReads.isEmpty() && pausedReads.peek().resumeReadingAt - now <= 0) {
+            NioConnection connection = pausedReads.poll();
+            try {
+                connection.resumeReading();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void resumeReplayedReads() {
+        NioConnection connection;
+        while ((connection = replayedReads.poll()) != null) {
+            if (connection.replayPaused) {
+                connection.replayPaused = false;
+                try {
+                    connection.resumeReading();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void resumeExpiredWrites() {
+        long now = System.nanoTime();
+        while (!pacedWrites.isEmpty() && pacedWrites.peek().resumeWritingAt - now <= 0) {
+            NioConnection connection = pacedWrites.poll();
+            connection.writePaced = false;
+            connection.enableWriteInterest();
+        }
+    }
+
+    /**
+     * Blocks indefinitely unless a delayed flush, a throttled connection or a paced file is
+     * pending, in which case it wakes up in time for the earliest of them.
+     */
+    private long selectTimeoutMillis() {
+        long now = System.nanoTime();
+        long remainingNanos = Long.MAX_VALUE;
+        NioConnection flush = delayedFlushes.peek();
+        if (flush != null) {
+            remainingNanos = flush.flushDeadline - now;
+        }
+        NioConnection paused = pausedReads.peek();
+        if (paused != null) {
+            remainingNanos = Math.min(remainingNanos, paused.resumeReadingAt - now);
+        }
+        NioConnection paced = pacedWrites.peek();
+        if (paced != null) {
+            remainingNanos = Math.min(remainingNanos, paced.resumeWritingAt - now);
+        }
+        if (remainingNanos == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, (remainingNanos + 999_999) / 1_000_000);
+    }
+}
+
+/**
+ * Per-connection state for the non-blocking server: a read buffer with line or frame decoding and
+ * a bounded queue of encoded outbound messages. Lines being written are moved off the queue into a
+ * small gather array first, so a partial write is never disturbed by the overflow policy
+ * discarding queued lines. Queued frames are shared with other connections; each connection
+ * writes through its own views of the bytes so positions never interfere. Pieces of files go out
+ * only once the queue is empty, and a piece started is finished before any further message.
+ */
+class NioConnection extends AbstractChatSession {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Most lines handed to a single gathering write
+    private static final int GATHER_LIMIT = 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop loop;
+    private final ClientRegistry clients;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Bytes received but not yet handled, kept across reads until a line or frame is complete
+    private final ProtocolDecoder decoder;
+    private final RateLimiter.Client rateLimit;
+    // Frames being written and this connection's views of their bytes, which track how much has
+    // been written so far. Entries [0, gatherCount) are in use; only touched by the event loop.
+    private final SharedFrame[] gatherFrames = new SharedFrame[GATHER_LIMIT];
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[GATHER_LIMIT];
+    private int gatherCount;
+    // The piece of a file being written, if any; only touched by the event loop
+    private FileSender.Chunk chunk;
+    private final FlushStats flushStats;
+    // Set while a write has been requested from the loop but not yet drained
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // Set when the queue passed the flush threshold while a delayed flush was pending
+    private final AtomicBoolean urgentFlushRequested = new AtomicBoolean();
+    // Delayed flush bookkeeping, owned by the event loop
+    boolean flushDelayed;
+    long flushDeadline;
+    // Set while the connection is throttled, and when reading resumes; owned by the event loop
+    private boolean readPaused;
+    long resumeReadingAt;
+    // Set while reading waits for a replay read on another thread to end; owned by the event loop
+    boolean replayPaused;
+    // Set while every file is waiting out its cap, and when the first is ready; owned by the event loop
+    boolean writePaced;
+    long resumeWritingAt;
+    private volatile boolean closed;
+
+    NioConnection(SocketChannel channel, SelectionKey key, NioEventLoop loop, ClientRegistry clients,
+                  OutboundQueue outbound, FlushStats flushStats, ProtocolDecoder decoder,
+                  RateLimiter.Client rateLimit) {
+        super(outbound);
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.clients = clients;
+        this.flushStats = flushStats;
+        this.decoder = decoder;
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Queues an encoded message for the event loop to write. Safe to call from any thread.
+     */
+    @Override
+    protected void enqueue(SharedFrame frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        try {
+            if (!outbound.offer(frame)) {
+                System.out.println(MessageStamp.LOG.now() + "Disconnecting slow client " + describe() + ": " + outbound.describe());
+                // Runs on whichever thread is broadcasting, so let the owning loop do the close
+                disconnect();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        } else if (flushDue() && urgentFlushRequested.compareAndSet(false, true)) {
+            // A delayed flush is pending but the batch is already big enough; write it now
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Returns true once enough bytes are queued that waiting out the flush delay is pointless.
+     */
+    boolean flushDue() {
+        return outbound.queuedBytes() >= loop.flushThresholdBytes();
+    }
+
+    /**
+     * Reads whatever is available and handles every complete line or frame found in it.
+     */
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        recordActivity();
+        readBuffer.flip();
+        decoder.append(readBuffer);
+        readBuffer.clear();
+        ChatServer.metrics().recordReceived(handleReceived(), read);
+    }
+
+    /**
+     * Called by the loop once a throttled connection's budget has caught up, or its replay has
+     * ended: handles the messages received before it was paused, then reads from it again unless
+     * it is paused anew.
+     */
+    void resumeReading() throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        readPaused = false;
+        ChatServer.metrics().recordReceived(handleReceived(), 0);
+        if (!readPaused && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Handles the complete lines or frames received, charging each to the rate limit, until none
+     * is left or the connection is throttled. The protocol is checked before each message,
+     * because the handshake line switches it. While a resume's replay is being read on another
+     * thread, the rest waits for it, so that a later command cannot overtake it.
+     *
+     * @return The number of messages handled
+     */
+    private int handleReceived() throws IOException {
+        int messages = 0;
+        try {
+            while (key.isValid()) {
+                if (replayPending()) {
+                    // Picked up again by the loop once replayEnded is called
+                    readPaused = true;
+                    replayPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                FrameCodec.Frame frame = null;
+                String line = null;
+                if (binaryFrames()) {
+                    frame = decoder.nextFrame();
+                    if (frame == null) {
+                        break;
+                    }
+                } else {
+                    line = decoder.nextLine();
+                    if (line == null) {
+                        break;
+                    }
+                }
+                long wait = rateLimit.admit(decoder.lastMessageBytes(),
+                        frame != null && frame.type == FrameCodec.FILE_DATA);
+                if (wait == RateLimiter.DISCONNECT) {
+                    System.out.println(MessageStamp.LOG.now() + "Disconnecting flooding client " + describe());
+                    close();
+                    break;
+                }
+                if (frame != null) {
+                    ChatServer.handleFrame(clients, this, frame);
+                } else {
+                    ChatServer.handleLine(clients, this, line);
+                }
+                messages++;
+                if (wait > 0 && key.isValid()) {
+                    // Leave the rest in the decoder and the socket until the budget has caught up
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.pauseReading(this, System.nanoTime() + wait);
+                    break;
+                }
+            }
+        } catch (ProtocolDecoder.MessageTooLongException e) {
+            rateLimit.rejectOversized();
+            System.out.println(MessageStamp.LOG.now() + "Disconnecting client " + describe() + ": " + e.getMessage());
+            throw e;
+        }
+        return messages;
+    }
+
+    /**
+     * Writes queued lines with gathering writes, and pieces of files whenever no line is queued,
+     * until both run out or the socket buffer is full. Partially written lines stay at the front
+     * of the gather array for the next round, and a partially written piece is finished first.
+     */
+    void onWritable() throws IOException {
+        while (true) {
+            if (chunk != null) {
+                if (!chunk.writeTo(channel)) {
+                    return;  // Socket buffer is full; keep OP_WRITE and resume later
+                }
+                flushStats.recordFlush(0, chunk.length());
+                chunk = null;
+            }
+            if (fillGather() > 0) {
+                // The first frame is the oldest, so its age bounds the latency of the whole write
+                boolean live = outbound.isLive(gatherFrames[0]);
+                long oldestNanos = gatherFrames[0].createdNanos();
+                long written = channel.write(gatherBuffers, 0, gatherCount);
+                int completed = releaseWritten();
+                flushStats.recordFlush(completed, written);
+                if (live && completed > 0) {
+                    flushStats.recordDelivery(oldestNanos);
+                }
+                if (gatherCount > 0) {
+                    return;  // Socket buffer is full; keep OP_WRITE and resume later
+                }
+                continue;
+            }
+            chunk = files.next(System.nanoTime());
+            if (chunk == null) {
+                break;
+            }
+        }
+        if (!files.isEmpty()) {
+            // Every file is waiting out its cap
+            long now = System.nanoTime();
+            loop.pauseWriting(this, now + files.nanosUntilReady(now));
+        }
+        key.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+        urgentFlushRequested.set(false);
+        writeScheduled.set(false);
+        // A sender may have queued a line after the drain but before the flag was cleared
+        if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+            enableWriteInterest();
+        }
+    }
+
+    /**
+     * Called on the event loop after a write was requested; also completes a close requested
+     * from another thread.
+     */
+    void enableWriteInterest() {
+        if (closed) {
+            close();
+        } else if (key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        if (!key.isValid()) {
+            return;  // Already closed
+        }
+        closed = true;
+        ChatServer.leave(clients, this);
+        System.out.println(MessageStamp.LOG.now() + "Client disconnected: " + describe() + " (" + outbound.describe() + "; "
+                + flushStats.describe() + ")");
+        for (int i = 0; i < gatherCount; i++) {
+            gatherFrames[i].release();
+            gatherFrames[i] = null;
+            gatherBuffers[i] = null;
+        }
+        gatherCount = 0;
+        outbound.clear();
+        files.clear();
+        chunk = null;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("An error occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tops up the gather array from the outbound queue.
+     *
+     * @return The number of lines ready to write
+     */
+    private int fillGather() {
+        SharedFrame frame;
+        while (gatherCount < GATHER_LIMIT && (frame = outbound.poll()) != null) {
+            gatherFrames[gatherCount] = frame;
+            // A private view over the shared bytes; the frame's array itself is never modified
+            gatherBuffers[gatherCount] = ByteBuffer.wrap(frame.array(), frame.offset(), frame.length());
+            gatherCount++;
+        }
+        return gatherCount;
+    }
+
+    /**
+     * Releases fully written lines and moves any partially written ones to the front.
+     *
+     * @return The number of lines completed by the last write
+     */
+    private int releaseWritten() {
+        int completed = 0;
+        while (completed < gatherCount && !gatherBuffers[completed].hasRemaining()) {
+            gatherFrames[completed].release();
+            completed++;
+        }
+        int remaining = gatherCount - completed;
+        System.arraycopy(gatherFrames, completed, gatherFrames, 0, remaining);
+        System.arraycopy(gatherBuffers, completed, gatherBuffers, 0, remaining);
+        for (int i = remaining; i < gatherCount; i++) {
+            gatherFrames[i] = null;
+            gatherBuffers[i] = null;
+        }
+        gatherCount = remaining;
+        return completed;
+    }
+
+    @Override
+    protected void replayEnded() {
+        if (!closed) {
+            loop.replayEnded(this);
+        }
+    }
+
+    @Override
+    public String describe() {
+        String username = getUsername();
+        return username != null ? username : String.valueOf(channel.socket().getInetAddress());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Asks the owning loop to close the connection. Safe to call from any thread.
+     */
+    @Override
+    public void disconnect() {
+        closed = true;
+        loop.requestWrite(this);
+    }
+}
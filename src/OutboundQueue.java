@@ -0,0 +1,198 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of messages waiting to be written to one client.
+ *
+ * Broadcasting threads only ever enqueue, and each connection drains its own queue, so a client
+ * with a full TCP window delays nobody but itself. What happens when the queue is full is decided
+ * by the {@link OverflowPolicy}. Depth and drop counts are tracked so slow consumers can be spotted.
+ *
+ * The queue owns one reference to every frame it holds. Frames discarded by the overflow policy or
+ * by {@link #clear()} are released here; frames handed out by {@link #take()} or {@link #poll()}
+ * must be released by the writer once written.
+ */
+final class OutboundQueue {
+
+    /**
+     * What to do with a new message when a client's queue is full.
+     */
+    enum OverflowPolicy {
+        // Discard the oldest queued message to make room; the client misses messages but stays connected
+        DROP_OLDEST,
+        // Refuse the message and have the caller disconnect the client
+        DISCONNECT,
+        // Make the broadcasting thread wait for room; lossless, but a slow client slows down the sender
+        BLOCK
+    }
+
+    private final ArrayBlockingQueue<SharedFrame> queue;
+    private final OverflowPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();
+    // Encoded bytes currently queued, so writers can decide when a batch is worth flushing
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Highest depth observed, updated racily; it is a diagnostic, not an exact figure
+    private volatile int maxDepth;
+    // Frames encoded before this System.nanoTime() may be history being replayed
+    private volatile long liveSinceNanos = System.nanoTime();
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity The maximum number of messages held before the overflow policy applies
+     * @param policy   The overflow policy
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message, applying the overflow policy if the queue is full.
+     *
+     * @param message The message to queue; the queue takes over the caller's reference
+     * @return false if the queue was full under {@link OverflowPolicy#DISCONNECT} and the caller
+     *         should disconnect the client; true otherwise
+     * @throws InterruptedException If interrupted while waiting under {@link OverflowPolicy#BLOCK}
+     */
+    boolean offer(SharedFrame message) throws InterruptedException {
+        // Counted before the message becomes visible, so a consumer can never take it first
+        queuedBytes.addAndGet(message.length());
+        switch (policy) {
+            case DROP_OLDEST -> {
+                while (!queue.offer(message)) {
+                    SharedFrame oldest = queue.poll();
+                    if (oldest != null) {
+                        discard(oldest);
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            case DISCONNECT -> {
+                if (!queue.offer(message)) {
+                    discard(message);
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            case BLOCK -> {
+                try {
+                    queue.put(message);
+                } catch (InterruptedException e) {
+                    discard(message);
+                    throw e;
+                }
+            }
+        }
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the next message, waiting until one is available.
+     */
+    SharedFrame take() throws InterruptedException {
+        return taken(queue.take());
+    }
+
+    /**
+     * Removes the next message, or returns null if the queue is empty.
+     */
+    SharedFrame poll() {
+        return taken(queue.poll());
+    }
+
+    /**
+     * Removes the next message, waiting up to the given time for one to arrive.
+     *
+     * @return The message, or null if none arrived in time
+     */
+    SharedFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return taken(queue.poll(timeout, unit));
+    }
+
+    /**
+     * Discards and releases every queued message, e.g. once the connection has closed.
+     */
+    void clear() {
+        SharedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            discard(frame);
+        }
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Returns the number of messages currently waiting.
+     */
+    int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of encoded bytes currently waiting.
+     */
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns the highest number of messages that have been waiting at once.
+     */
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns how many messages were discarded because the queue was full.
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    OverflowPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Notes that a history replay is about to be queued. Replayed frames were encoded long ago, so
+     * frames encoded before now are left out of delivery latency figures.
+     */
+    void replayStarting() {
+        liveSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns whether a frame was encoded after the last replay started, and so is a live message
+     * whose age is its delivery latency.
+     */
+    boolean isLive(SharedFrame frame) {
+        return frame.createdNanos() - liveSinceNanos >= 0;
+    }
+
+    private SharedFrame taken(SharedFrame frame) {
+        if (frame != null) {
+            queuedBytes.addAndGet(-frame.length());
+        }
+        return frame;
+    }
+
+    private void discard(SharedFrame frame) {
+        queuedBytes.addAndGet(-frame.length());
+        frame.release();
+    }
+
+    /**
+     * Formats the queue metrics for log output.
+     */
+    String describe() {
+        return "queue depth " + depth() + ", max depth " + maxDepth + ", dropped " + dropped();
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits received bytes into text lines or binary frames, for either kind of transport.
+ *
+ * A connection starts out in the line protocol and may switch to binary frames after the
+ * handshake, so the decoder works on raw bytes and never reads ahead into characters: whatever
+ * follows the handshake line is still in the buffer, undecoded, when the switch happens.
+ * Blocking readers pull from an {@link InputStream} with {@link #readLine} and {@link #readFrame};
+ * the non-blocking server pushes what it read with {@link #append} and polls with
+ * {@link #nextLine()} and {@link #nextFrame()}.
+ *
+ * A server decoder is given the longest message it accepts, and rejects a longer one as soon as
+ * that many bytes of it are buffered rather than holding the rest of it in memory.
+ */
+final class ProtocolDecoder {
+    private static final int INITIAL_CAPACITY = 8192;
+
+    // Received bytes not yet consumed are in [position, limit)
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+    private int limit;
+    // Where the search for the next '\n' resumes, so a long partial line is only scanned once
+    private int scanned;
+    // Bytes read from the stream since the last call to takeBytesRead()
+    private long bytesRead;
+    // Longest line or frame accepted, in bytes as received
+    private final int maxMessageBytes;
+    // Size of the message returned last, including its terminator or length prefix, or the size its
+    // payload inflated to if that is larger
+    private int lastMessageBytes;
+
+    /**
+     * Creates a decoder that accepts lines of any length and frames up to {@link FrameCodec#MAX_FRAME_LENGTH}.
+     */
+    ProtocolDecoder() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageBytes Longest line or frame to accept, in bytes as received, and the most a
+     *                        compressed frame's payload may inflate to
+     */
+    ProtocolDecoder(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Reads the next line, blocking until one is complete.
+     *
+     * @return The line without its terminator, or null at the end of the stream. Like
+     *         {@link java.io.BufferedReader#readLine()}, a final unterminated line is returned as is.
+     * @throws MessageTooLongException If the line is longer than the limit
+     */
+    String readLine(InputStream in) throws IOException {
+        String line;
+        while ((line = nextLine()) == null) {
+            if (!fill(in)) {
+                if (position == limit) {
+                    return null;
+                }
+                line = decodeLine(limit);
+                lastMessageBytes = limit - position;
+                position = limit;
+                return line;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Reads the next binary frame, blocking until one is complete.
+     *
+     * @return The frame, or null if the stream ended cleanly between frames
+     * @throws IOException If the stream fails, ends mid-frame or the frame is malformed
+     */
+    FrameCodec.Frame readFrame(InputStream in) throws IOException {
+        FrameCodec.Frame frame;
+        while ((frame = nextFrame()) == null) {
+            if (!fill(in)) {
+                if (position == limit) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside a frame");
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Adds bytes received by a non-blocking channel.
+     */
+    void append(ByteBuffer source) {
+        makeRoom(source.remaining());
+        int count = source.remaining();
+        source.get(buffer, limit, count);
+        limit += count;
+    }
+
+    /**
+     * Returns the next complete line, or null if no full line has been received yet.
+     *
+     * @throws MessageTooLongException If the line is longer than the limit, complete or not
+     */
+    String nextLine() throws MessageTooLongException {
+        for (int i = Math.max(scanned, position); i < limit; i++) {
+            if (buffer[i] == '\n') {
+                checkLength(i - position);
+                String line = decodeLine(i);
+                lastMessageBytes = i + 1 - position;
+                position = i + 1;
+                scanned = position;
+                return line;
+            }
+        }
+        scanned = limit;
+        checkLength(limit - position);
+        return null;
+    }
+
+    /**
+     * Returns the next complete frame, or null if no full frame has been received yet.
+     *
+     * @throws IOException If the frame is malformed or larger than {@link FrameCodec#MAX_FRAME_LENGTH}
+     * @throws MessageTooLongException If the frame is longer than the limit; known from its length
+     *         prefix, before the rest of it arrives, or once its compressed payload inflates past it
+     */
+    FrameCodec.Frame nextFrame() throws IOException {
+        int prefix = FrameCodec.lengthPrefixSize(buffer, position, limit);
+        if (prefix < 0) {
+            return null;
+        }
+        int length = FrameCodec.readLength(buffer, position);
+        checkLength(length);
+        if (limit - position < prefix + length) {
+            // Make sure the whole frame will fit once it arrives
+            makeRoom(prefix + length - (limit - position));
+            return null;
+        }
+        FrameCodec.Frame frame = FrameCodec.decodeBody(buffer, position + prefix, length, maxMessageBytes);
+        lastMessageBytes = Math.max(prefix + length, frame.inflatedLength);
+        position += prefix + length;
+        return frame;
+    }
+
+    private boolean fill(InputStream in) throws IOException {
+        makeRoom(1);
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            return false;
+        }
+        limit += read;
+        bytesRead += read;
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes {@link #readLine} and {@link #readFrame} have read from the
+     * stream since the last call.
+     */
+    long takeBytesRead() {
+        long count = bytesRead;
+        bytesRead = 0;
+        return count;
+    }
+
+    /**
+     * Returns the size of the line or frame returned last: as received or, for a compressed frame,
+     * as inflated if that is larger, so that budgets charge for what is stored and broadcast.
+     */
+    int lastMessageBytes() {
+        return lastMessageBytes;
+    }
+
+    private void checkLength(long length) throws MessageTooLongException {
+        if (length > maxMessageBytes) {
+            throw new MessageTooLongException("Message longer than the limit of " + maxMessageBytes + " bytes");
+        }
+    }
+
+    /**
+     * Ensures there is space for at least {@code needed} more bytes after {@link #limit}, first by
+     * moving unconsumed bytes to the front and then, if that is not enough, by growing the buffer.
+     */
+    private void makeRoom(int needed) {
+        if (buffer.length - limit >= needed) {
+            return;
+        }
+        int unconsumed = limit - position;
+        byte[] target = buffer;
+        if (unconsumed + needed > buffer.length) {
+            target = new byte[Math.max(buffer.length * 2, unconsumed + needed)];
+        }
+        System.arraycopy(buffer, position, target, 0, unconsumed);
+        buffer = target;
+        scanned = Math.max(0, scanned - position);
+        limit = unconsumed;
+        position = 0;
+    }
+
+    private String decodeLine(int end) {
+        // Match BufferedReader.readLine(), which also accepts "\r\n" terminators
+        int length = end - position;
+        if (length > 0 && buffer[end - 1] == '\r') {
+            length--;
+        }
+        return new String(buffer, position, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Thrown when a client sends a line or frame longer than the decoder accepts. The rest of the
+     * stream cannot be trusted to start at a message boundary, so the connection should be closed.
+     */
+    static final class MessageTooLongException extends IOException {
+        MessageTooLongException(String message) {
+            super(message);
+        }
+    }
+}
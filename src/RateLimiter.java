@@ -0,0 +1,138 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast clients may send, so that one flooding client cannot take over the server's
+ * CPU and every other client's bandwidth by having each of its messages broadcast.
+ *
+ * Every client has a budget of messages and bytes per second, and the server has a budget for all
+ * of them together. A client over its own budget is either throttled or disconnected, as
+ * configured; a client only over the server's budget is always throttled, since it may not be the
+ * one flooding. Throttling stops reading from the client until the budget has caught up, so the
+ * backlog waits in the client's socket buffers and then its own process, not in the server.
+ *
+ * Each budget is a token bucket holding {@code --rate-burst-ms} worth of its rate, kept as the
+ * single timestamp at which the bucket will be full again (the generic cell rate algorithm), so
+ * that admitting a message is a few arithmetic operations and at most one compare-and-set per
+ * budget, and allocates nothing. Every decision is counted in {@link ServerMetrics}.
+ */
+final class RateLimiter {
+    // Returned by Client.admit when the client must be disconnected
+    static final long DISCONNECT = -1;
+
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final Bucket serverMessages;
+    private final Bucket serverBytes;
+    private final boolean enabled;
+
+    RateLimiter(ServerConfig config, ServerMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.serverMessages = new Bucket(config.serverRateMessages, config.rateBurstMillis, 1);
+        this.serverBytes = new Bucket(config.serverRateBytes, config.rateBurstMillis, config.maxMessageBytes);
+        this.enabled = config.clientRateMessages > 0 || config.clientRateBytes > 0
+                || config.serverRateMessages > 0 || config.serverRateBytes > 0;
+    }
+
+    /**
+     * Creates the budget of a newly connected client.
+     */
+    Client newClient() {
+        return new Client();
+    }
+
+    /**
+     * The budget of one client. Only used by the thread reading from that client.
+     */
+    final class Client {
+        private final Bucket messages = new Bucket(config.clientRateMessages, config.rateBurstMillis, 1);
+        private final Bucket bytes = new Bucket(config.clientRateBytes, config.rateBurstMillis, config.maxMessageBytes);
+
+        /**
+         * Charges a received message to the client's budget and the server's. The message is
+         * handled either way, unless the client is to be disconnected; the time returned is how
+         * long the client overdrew its budget by, and how long to stop reading from it afterwards.
+         *
+         * @param size     The message's size as received, or inflated if it was compressed to less
+         * @param fileData Whether it is a piece of a file transfer, which only counts against the
+         *                 byte budgets: a large file is many pieces, but not many messages to broadcast
+         * @return Nanoseconds to stop reading for, 0 if none, or {@link #DISCONNECT}
+         */
+        long admit(int size, boolean fileData) {
+            if (!enabled) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            int count = fileData ? 0 : 1;
+            long wait = Math.max(messages.take(now, count), bytes.take(now, size));
+            if (wait > 0 && config.disconnectOverRate) {
+                metrics.recordRateDisconnect();
+                return DISCONNECT;
+            }
+            long serverWait = Math.max(serverMessages.take(now, count), serverBytes.take(now, size));
+            if (serverWait > wait) {
+                metrics.recordThrottled(serverWait, true);
+                return serverWait;
+            }
+            if (wait > 0) {
+                metrics.recordThrottled(wait, false);
+                return wait;
+            }
+            return 0;
+        }
+
+        /**
+         * Counts a client disconnected for sending a message longer than {@code --max-line-bytes}.
+         */
+        void rejectOversized() {
+            metrics.recordOversizeDisconnect();
+        }
+    }
+
+    /**
+     * A token bucket refilled at a fixed rate, stored as the time at which it will be full again.
+     * Also paces the pieces of a file transfer under its bandwidth cap.
+     */
+    static final class Bucket {
+        // Units per second, or 0 for no limit
+        private final long rate;
+        // How far the full time may be ahead of now before a message has to wait: the bucket's size
+        private final long burstNanos;
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+        /**
+         * @param minimumBurst Units the bucket holds at least, so that a single message of the
+         *                     largest size allowed never exceeds a full bucket on its own
+         */
+        Bucket(long rate, int burstMillis, int minimumBurst) {
+            this.rate = rate;
+            this.burstNanos = rate == 0 ? 0
+                    : Math.max(TimeUnit.MILLISECONDS.toNanos(burstMillis), nanosFor(minimumBurst, rate));
+        }
+
+        /**
+         * Takes tokens from the bucket, overdrawing it if it holds too few.
+         *
+         * @return How long until the bucket is no longer overdrawn, or 0 or less if it is not
+         */
+        long take(long now, int tokens) {
+            if (rate == 0) {
+                return 0;
+            }
+            long cost = nanosFor(tokens, rate);
+            while (true) {
+                long current = fullAt.get();
+                // A bucket that filled up in the past is simply full now
+                long next = (current - now < 0 ? now : current) + cost;
+                if (fullAt.compareAndSet(current, next)) {
+                    return next - burstNanos - now;
+                }
+            }
+        }
+
+        private static long nanosFor(long tokens, long rate) {
+            return tokens * 1_000_000_000L / rate;
+        }
+    }
+}
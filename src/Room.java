@@ -0,0 +1,305 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named channel: its members and its recent history. Messages sent in a room are delivered to
+ * its members only, so the cost of a broadcast grows with the size of the room rather than the
+ * number of connected clients.
+ *
+ * Like {@link ClientRegistry}, the members are kept in an immutable array that is replaced on
+ * every change, so a broadcast reads it without locking. The array is replaced under a lock
+ * rather than with a compare-and-set, because joining must also copy the history: recording a
+ * message and taking its recipients happen under the same lock as adding a member and copying the
+ * ring, so every message reaches a joining client exactly once, either replayed or live. Only
+ * references are copied under the lock; the replay is queued after it is released, so replaying a
+ * long history does not hold up other messages in the room.
+ *
+ * Messages take their ids, and are appended to the message log, under the same lock, so the ids
+ * of a room's messages increase in the order its members receive them. That makes the last id a client
+ * received a complete bookmark: a client resuming after a dropped connection is sent the room's
+ * messages from the log between its bookmark and the log's end at the moment it rejoins, and
+ * everything after that live. That gap can run to thousands of records, so it is read and encoded
+ * on the registry's reader thread rather than the caller's, which may be an event loop serving
+ * many other clients.
+ */
+final class Room {
+    private static final ChatSession[] EMPTY = new ChatSession[0];
+    private static final SharedFrame[] NO_FRAMES = new SharedFrame[0];
+    // Log records read per call while collecting a resuming client's gap
+    private static final int READ_BATCH = 1000;
+
+    final String name;
+    // Recent messages replayed on join, or null if history is disabled; guarded by lock
+    private final MessageHistory history;
+    // Whether the room goes away when its last member leaves
+    private final boolean retireWhenEmpty;
+    // Told when the room gains its first member or loses its last one, or null
+    private final RoomRegistry.OccupancyListener listener;
+    // Numbers every message published in the room
+    private final MessageStamp.Sequence ids;
+    // Where messages are stored, or null if the server keeps no log
+    private final MessageLog log;
+    // Most messages sent to a resuming client; older ones in its gap are skipped
+    private final int resumeLimit;
+    // Reads resuming clients' gaps from the log, or null if there is no log
+    private final Executor gapReader;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Current members; the array itself is never modified after being published
+    private volatile ChatSession[] members = EMPTY;
+    // Set when an empty room is retired; a closed room accepts no members. Guarded by lock
+    private boolean closed;
+
+    /**
+     * @param name            The room name
+     * @param historySize     Number of recent messages replayed to joining members (0 = none)
+     * @param retireWhenEmpty Whether the room is retired once empty
+     * @param listener        Told when the room becomes occupied or empty, or null
+     * @param ids             The server's message ids
+     * @param log             The message log, or null
+     * @param resumeLimit     Most messages replayed to a resuming client
+     * @param gapReader       Where resuming clients' gaps are read from the log, or null if there is no log
+     */
+    Room(String name, int historySize, boolean retireWhenEmpty, RoomRegistry.OccupancyListener listener,
+         MessageStamp.Sequence ids, MessageLog log, int resumeLimit, Executor gapReader) {
+        this.name = name;
+        this.history = historySize > 0 ? new MessageHistory(historySize) : null;
+        this.retireWhenEmpty = retireWhenEmpty;
+        this.listener = listener;
+        this.ids = ids;
+        this.log = log;
+        this.resumeLimit = resumeLimit;
+        this.gapReader = gapReader;
+    }
+
+    /**
+     * Gives a message its id, appends it to the message log, records it in the room's history and
+     * returns the members it should be delivered to.
+     */
+    ChatSession[] publish(ChatMessage message) {
+        if (history == null && log == null) {
+            // Nothing is replayed, so the ids need not follow the order of delivery
+            message.assignId(ids.next());
+            return members;
+        }
+        lock.lock();
+        try {
+            long id = log != null ? log.append(ids, message.timestamp, message.type, message.senderId,
+                    message.senderName, name, message.body) : -1;
+            // A message too large for the log still gets an id, which the log skips
+            message.assignId(id >= 0 ? id : ids.next());
+            if (history != null && !closed) {
+                // Encoded under the lock because binary frames carry the id; without compression that is only a copy
+                history.add(message.id(), message.frameFor(false, false), message.frameFor(true, false));
+            }
+            return members;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a session and queues the recent history for it, oldest first, ahead of any message sent
+     * in the room after it joined.
+     *
+     * @return false if the room was retired meanwhile and the session was not added
+     */
+    boolean join(ChatSession session) {
+        return enter(session, false, -1);
+    }
+
+    /**
+     * Adds a session that lost its connection and reconnected. Instead of the recent history it is
+     * sent a {@link ChatProtocol#RESUME_REPLY} line, then the room's messages after the last one it
+     * received, read from the message log, then live messages. The log is read on the gap reader,
+     * so the replay may still be pending when this returns. Without a log, the messages in the
+     * recent history after that one follow the reply instead, after a notice if some it missed are
+     * no longer there; without a message id to resume from, the whole recent history does.
+     *
+     * @param lastSeenId The id of the last message the client received, or -1
+     * @return false if the room was retired meanwhile and the session was not added
+     */
+    boolean resume(ChatSession session, long lastSeenId) {
+        return enter(session, true, lastSeenId);
+    }
+
+    private boolean enter(ChatSession session, boolean resume, long lastSeenId) {
+        boolean fromLog = resume && lastSeenId >= 0 && log != null;
+        session.beginReplay();
+        SharedFrame[] replay = null;
+        long logEnd = -1;
+        lock.lock();
+        try {
+            if (!closed) {
+                if (fromLog) {
+                    // Every earlier message in this room is in the log already, and every later one will be live
+                    logEnd = log.nextOffset();
+                    replay = NO_FRAMES;
+                } else if (history == null) {
+                    replay = NO_FRAMES;
+                } else if (resume && lastSeenId >= 0) {
+                    // Only what the client has not seen, so that nothing is shown twice
+                    replay = history.after(session.binaryFrames(), lastSeenId);
+                    if (history.overwroteAfter(lastSeenId)) {
+                        replay = withLine(replay, systemLine(session.binaryFrames(), "Some earlier messages in "
+                                + name + " were missed."));
+                    }
+                } else {
+                    // Only the session's own thread switches its protocol, and that thread is here
+                    replay = history.recent(session.binaryFrames());
+                }
+                ChatSession[] current = members;
+                ChatSession[] updated = new ChatSession[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = session;
+                members = updated;
+                session.setRoom(this);
+                if (current.length == 0 && listener != null) {
+                    // Under the lock, so that the listener sees a room's changes in order
+                    listener.occupied(name);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (replay == null) {
+            session.endReplay(NO_FRAMES);
+            return false;
+        }
+        if (fromLog) {
+            // Read outside the lock and off this thread; live messages are held for the session meanwhile
+            long from = lastSeenId + 1;
+            long end = logEnd;
+            try {
+                gapReader.execute(() -> replayGap(session, from, end));
+            } catch (RejectedExecutionException e) {
+                // The server is stopping
+                replayGap(session, end, end);
+            }
+            return true;
+        }
+        if (resume) {
+            replay = withLine(replay, encodeLine(session.binaryFrames(), ChatProtocol.RESUME_REPLY + name));
+        }
+        session.endReplay(replay);
+        return true;
+    }
+
+    /**
+     * Ends a resuming session's replay with the reply and the gap read from the log. The replay
+     * ends even if reading fails, so that the session's held messages are not stuck.
+     */
+    private void replayGap(ChatSession session, long from, long end) {
+        boolean binary = session.binaryFrames();
+        SharedFrame[] gap = NO_FRAMES;
+        try {
+            gap = readGap(binary, from, end);
+        } finally {
+            session.endReplay(withLine(gap, encodeLine(binary, ChatProtocol.RESUME_REPLY + name)));
+        }
+    }
+
+    /**
+     * Reads this room's messages with offsets in {@code [from, end)} from the log and encodes them
+     * for a client. Only the most recent {@link #resumeLimit} are kept, after a notice counting the
+     * ones left out.
+     */
+    private SharedFrame[] readGap(boolean binary, long from, long end) {
+        ArrayDeque<SharedFrame> gap = new ArrayDeque<>();
+        long[] next = {from};
+        long[] skipped = {0};
+        while (next[0] < end) {
+            int read = log.read(next[0], READ_BATCH, record -> {
+                next[0] = record.offset + 1;
+                if (record.offset >= end || !record.room.equals(name)) {
+                    return;
+                }
+                ChatMessage message = ChatMessage.logged(record);
+                gap.addLast(message.frameFor(binary, false));
+                message.release();
+                if (gap.size() > resumeLimit) {
+                    gap.removeFirst().release();
+                    skipped[0]++;
+                }
+            });
+            if (read == 0) {
+                break;
+            }
+        }
+        if (skipped[0] > 0) {
+            gap.addFirst(systemLine(binary, skipped[0] + " earlier messages in " + name + " were missed."));
+        }
+        return gap.toArray(NO_FRAMES);
+    }
+
+    /**
+     * Returns the frames with another one in front.
+     */
+    private static SharedFrame[] withLine(SharedFrame[] frames, SharedFrame first) {
+        SharedFrame[] with = new SharedFrame[frames.length + 1];
+        with[0] = first;
+        System.arraycopy(frames, 0, with, 1, frames.length);
+        return with;
+    }
+
+    private static SharedFrame systemLine(boolean binary, String text) {
+        return encodeLine(binary, ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + text);
+    }
+
+    private static SharedFrame encodeLine(boolean binary, String line) {
+        return binary ? SharedFrame.encodeBinary(FrameCodec.TEXT, 0, 0, line, false) : SharedFrame.encode(line);
+    }
+
+    /**
+     * Removes a session. A transient room that becomes empty is closed and its history released.
+     *
+     * @return true if the room was closed and should be dropped from the registry
+     */
+    boolean leave(ChatSession session) {
+        lock.lock();
+        try {
+            ChatSession[] current = members;
+            int index = indexOf(current, session);
+            if (index < 0) {
+                return false;
+            }
+            ChatSession[] updated = current.length == 1 ? EMPTY : new ChatSession[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            members = updated;
+            if (session.getRoom() == this) {
+                session.setRoom(null);
+            }
+            if (updated.length == 0 && listener != null) {
+                listener.vacated(name);
+            }
+            if (retireWhenEmpty && updated.length == 0) {
+                closed = true;
+                if (history != null) {
+                    history.clear();
+                }
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of members.
+     */
+    int size() {
+        return members.length;
+    }
+
+    private static int indexOf(ChatSession[] array, ChatSession session) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
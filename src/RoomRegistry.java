@@ -0,0 +1,156 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The routing table from room names to {@link Room}s.
+ *
+ * Every session is in exactly one room at a time, starting in the {@link #LOBBY}, and holds a
+ * reference to it, so sending a message needs no lookup here at all; the table is only consulted
+ * when a client switches rooms. Rooms are created by the first member to join and retired when
+ * the last one leaves, except for the lobby, which always exists.
+ *
+ * With a message log, the registry also owns the thread that reads resuming clients' gaps from it
+ * for every room, until {@link #close}.
+ */
+final class RoomRegistry {
+    static final String LOBBY = "lobby";
+    // Room names are short, without spaces, and case-sensitive
+    static final int MAX_NAME_LENGTH = 32;
+    // How long close() waits for gaps being read, which need the log still open
+    private static final int CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int historySize;
+    private final MessageStamp.Sequence ids;
+    private final MessageLog log;
+    private final int resumeLimit;
+    private final OccupancyListener listener;
+    // Reads resuming clients' gaps from the log, or null if there is no log
+    private final ExecutorService gapReader;
+
+    /**
+     * Told when a room gains its first member on this server or loses its last one. Calls for one
+     * room are made in order, while that room's membership is locked, so they must not block.
+     */
+    interface OccupancyListener {
+        void occupied(String room);
+
+        void vacated(String room);
+    }
+
+    /**
+     * @param historySize Number of recent messages each room replays to joining members (0 = none)
+     * @param log         The message log, which stores messages and fills resuming clients' gaps, or null
+     * @param resumeLimit Most missed messages sent to a resuming client
+     * @param listener    Told when rooms become occupied or empty, or null
+     */
+    RoomRegistry(int historySize, MessageLog log, int resumeLimit, OccupancyListener listener) {
+        this.historySize = historySize;
+        this.ids = new MessageStamp.Sequence(log);
+        this.log = log;
+        this.resumeLimit = resumeLimit;
+        this.listener = listener;
+        this.gapReader = log == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resume-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rooms.put(LOBBY, newRoom(LOBBY, false));
+    }
+
+    /**
+     * Moves a session into a room, creating the room if needed, and queues the room's history for it.
+     * The session leaves its current room first.
+     *
+     * @param session The session, which must already be registered with the {@link ClientRegistry}
+     * @param name    A name accepted by {@link #isValidName}
+     */
+    void join(ChatSession session, String name) {
+        enter(session, name, false, -1);
+    }
+
+    /**
+     * Moves a reconnected session back into the room it was in, queueing the messages it missed
+     * there (see {@link Room#resume}). The session leaves its current room first.
+     *
+     * @param lastSeenId The id of the last message the client received, or -1
+     */
+    void resume(ChatSession session, String name, long lastSeenId) {
+        enter(session, name, true, lastSeenId);
+    }
+
+    private void enter(ChatSession session, String name, boolean resume, long lastSeenId) {
+        leave(session);
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, n -> newRoom(n, true));
+            if (resume ? room.resume(session, lastSeenId) : room.join(session)) {
+                return;
+            }
+            // The room was retired by its last member leaving just now; the next lookup creates a new one
+            rooms.remove(name, room);
+        }
+    }
+
+    /**
+     * Takes a session out of its room, if any. Called when it switches rooms or disconnects.
+     */
+    void leave(ChatSession session) {
+        Room room = session.getRoom();
+        if (room != null && room.leave(session)) {
+            rooms.remove(room.name, room);
+        }
+    }
+
+    /**
+     * Looks up a room by name.
+     *
+     * @return The room, or null if nobody on this server is in it
+     */
+    Room find(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Returns the number of rooms that currently exist, including the lobby.
+     */
+    int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Stops the gap reader once the gaps already requested have been read, so that the log can be
+     * closed after this returns.
+     */
+    void close() {
+        if (gapReader == null) {
+            return;
+        }
+        gapReader.shutdown();
+        try {
+            gapReader.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Room newRoom(String name, boolean retireWhenEmpty) {
+        return new Room(name, historySize, retireWhenEmpty, listener, ids, log, resumeLimit, gapReader);
+    }
+
+    /**
+     * Returns true if a client-supplied room name is acceptable.
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i)) || Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
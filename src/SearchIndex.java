@@ -0,0 +1,1233 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A full-text index of the {@link MessageLog}, answering {@code /search} with the most recent
+ * messages of a room that contain every word asked for.
+ *
+ * The index maps each term (a lower-cased word, plus one term for the sender and one for the room)
+ * to its posting list: the offsets of the messages containing it, in increasing order, stored as
+ * varint deltas in blocks of up to {@link PostingList#BLOCK_SIZE} with a skip entry per block. A
+ * search walks the lists of all its terms backwards from the newest offset, leapfrogging each list
+ * to the next offset the others could share, so it decodes only the blocks around the matches and
+ * stops as soon as it has enough of them. The matches are then read back from the log.
+ *
+ * An indexer thread follows the log, so that broadcasting never waits for the index. New messages
+ * go to a segment in the heap; once it holds {@code --search-segment-messages} it is written to a
+ * file and memory-mapped, so the heap holds one segment at most however long the log is. A merger
+ * thread combines runs of {@link #MERGE_FACTOR} segments of the same size into one, so a search
+ * looks at a few dozen segments at most. Merging concatenates posting lists, which is a copy.
+ * Searches run on the indexer thread too, between batches of new messages, so they never hold up a
+ * connection's thread and always see everything indexed so far.
+ *
+ * Segment files live in a {@code search} directory next to the log and are kept across restarts;
+ * the indexer picks up after the last message they cover. Segments whose messages have all been
+ * deleted by the log's retention are deleted too.
+ */
+final class SearchIndex implements AutoCloseable {
+    static final String DIRECTORY = "search";
+    static final int DEFAULT_SEGMENT_MESSAGES = 100_000;
+    private static final String SUFFIX = ".search";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    // Segments merged into one at a time, all of the same tier
+    private static final int MERGE_FACTOR = 10;
+    // Segments are not merged beyond this, which keeps each file well within a 2 GB mapping
+    private static final long MAX_MERGED_MESSAGES = 20_000_000;
+    // Log records indexed per batch; waiting searches run in between
+    private static final int INDEX_BATCH = 10_000;
+    // How often the indexer looks for new messages when idle
+    private static final int INDEX_INTERVAL_MILLIS = 100;
+    private static final int MAX_QUEUED_SEARCHES = 64;
+    // Longest term kept; longer words are cut off
+    static final int MAX_TERM_LENGTH = 40;
+    private static final String SENDER_TERM = "from:";
+    private static final String ROOM_TERM = "in:";
+
+    private final MessageLog log;
+    private final Path directory;
+    private final int segmentMessages;
+    private final ServerMetrics metrics;
+    // Sealed segments, oldest first; the array is replaced whole under segmentsLock
+    private volatile IndexSegment[] segments;
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+    // Messages not yet in a sealed segment; only touched by the indexer thread
+    private MemorySegment memory = new MemorySegment();
+    // Offset of the next log record to index; written by the indexer thread only
+    private volatile long nextOffset;
+    private final BlockingQueue<Runnable> searches = new LinkedBlockingQueue<>(MAX_QUEUED_SEARCHES);
+    // Released whenever a segment is sealed, so that the merger looks for segments to merge
+    private final Semaphore mergeWanted = new Semaphore(0);
+    private final Thread indexer;
+    private final Thread merger;
+    private volatile boolean closed;
+    // Whether the merger is combining segments right now
+    private volatile boolean merging;
+
+    /**
+     * Opens the index kept next to a log, or creates it, and starts indexing whatever the log
+     * holds beyond it.
+     *
+     * @param segmentMessages Messages per segment before it is written out
+     * @param metrics         Where search latencies are recorded, or null
+     */
+    SearchIndex(MessageLog log, Path directory, int segmentMessages, ServerMetrics metrics) throws IOException {
+        this.log = log;
+        this.directory = directory;
+        this.segmentMessages = segmentMessages;
+        this.metrics = metrics;
+        Files.createDirectories(directory);
+        this.segments = recover();
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        this.merger = new Thread(this::mergeLoop, "search-merger");
+        merger.setDaemon(true);
+        indexer.start();
+        merger.start();
+        // Segments left unmerged by a previous run
+        mergeWanted.release();
+    }
+
+    /**
+     * Opens the index configured for a server, or returns null if search is disabled or there is
+     * no log to index.
+     */
+    static SearchIndex open(ServerConfig config, MessageLog log, ServerMetrics metrics) throws IOException {
+        if (log == null || !config.searchEnabled) {
+            return null;
+        }
+        return new SearchIndex(log, config.logDirectory.resolve(DIRECTORY), config.searchSegmentMessages, metrics);
+    }
+
+    /**
+     * Splits text into terms: runs of letters and digits, lower-cased and cut to
+     * {@link #MAX_TERM_LENGTH}.
+     */
+    static void tokenize(String text, Consumer<String> terms) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.accept(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * What to search for, parsed from the arguments of {@code /search}.
+     */
+    static final class Query {
+        static final String USAGE = ChatProtocol.SEARCH_COMMAND
+                + "<words> [from:<user>] [in:<room>] [since:<when>] [until:<when>] [limit:<n>], where <when> is "
+                + "a date such as 2024-05-31 or a time ago such as 30m, 12h or 7d";
+        static final int DEFAULT_LIMIT = 20;
+        static final int MAX_LIMIT = 100;
+
+        final String[] terms;
+        final byte[][] termBytes;
+        // Matching messages were sent in [since, until), epoch milliseconds
+        final long since;
+        final long until;
+        final int limit;
+        // The words and filters, for the reply
+        final String description;
+
+        private Query(Set<String> terms, long since, long until, int limit, String description) {
+            this.terms = terms.toArray(new String[0]);
+            this.termBytes = new byte[this.terms.length][];
+            for (int i = 0; i < this.terms.length; i++) {
+                termBytes[i] = this.terms[i].getBytes(StandardCharsets.UTF_8);
+            }
+            this.since = since;
+            this.until = until;
+            this.limit = limit;
+            this.description = description;
+        }
+
+        /**
+         * @param arguments The words and filters
+         * @param room      The room searched unless {@code in:} names another, or null
+         * @throws IllegalArgumentException If the query is malformed or has nothing to search for
+         */
+        static Query parse(String arguments, String room) {
+            Set<String> terms = new LinkedHashSet<>();
+            String sender = null;
+            long since = Long.MIN_VALUE;
+            long until = Long.MAX_VALUE;
+            int limit = DEFAULT_LIMIT;
+            for (String word : arguments.trim().split("\\s+")) {
+                if (word.startsWith(SENDER_TERM)) {
+                    sender = word.substring(SENDER_TERM.length());
+                } else if (word.startsWith(ROOM_TERM)) {
+                    room = word.substring(ROOM_TERM.length());
+                } else if (word.startsWith("since:")) {
+                    since = parseTime(word.substring("since:".length()), false);
+                } else if (word.startsWith("until:")) {
+                    until = parseTime(word.substring("until:".length()), true);
+                } else if (word.startsWith("limit:")) {
+                    try {
+                        limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(word.substring("limit:".length()))));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Not a number: " + word);
+                    }
+                } else {
+                    tokenize(word, terms::add);
+                }
+            }
+            if (terms.isEmpty() && (sender == null || sender.isEmpty())) {
+                throw new IllegalArgumentException("Nothing to search for");
+            }
+            if (room == null || room.isEmpty()) {
+                throw new IllegalArgumentException("Join a room to search it");
+            }
+            String description = "\"" + String.join(" ", terms) + "\"" + (sender != null ? " from " + sender : "")
+                    + " in " + room;
+            terms.add(ROOM_TERM + room);
+            if (sender != null) {
+                terms.add(SENDER_TERM + sender);
+            }
+            return new Query(terms, since, until, limit, description);
+        }
+
+        /**
+         * Parses a date, a date and time ({@code 2024-05-31T18:00}) or a time ago ({@code 90s},
+         * {@code 30m}, {@code 12h}, {@code 7d}). A date used as the end of a range includes that day.
+         */
+        private static long parseTime(String value, boolean end) {
+            try {
+                if (!value.isEmpty() && "smhd".indexOf(value.charAt(value.length() - 1)) >= 0) {
+                    long amount = Long.parseLong(value.substring(0, value.length() - 1));
+                    Duration ago = switch (value.charAt(value.length() - 1)) {
+                        case 's' -> Duration.ofSeconds(amount);
+                        case 'm' -> Duration.ofMinutes(amount);
+                        case 'h' -> Duration.ofHours(amount);
+                        default -> Duration.ofDays(amount);
+                    };
+                    return System.currentTimeMillis() - ago.toMillis();
+                }
+                if (value.contains("T")) {
+                    return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                }
+                LocalDate date = LocalDate.parse(value);
+                return (end ? date.plusDays(1) : date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Not a time: " + value);
+            }
+        }
+    }
+
+    /**
+     * Answers a client's {@code /search}: a summary line, then the matches, newest first. The
+     * search runs on the indexer thread, which sends the answer.
+     *
+     * @param arguments What followed the command
+     */
+    void search(ChatSession session, String arguments) {
+        Room room = session.getRoom();
+        Query query;
+        try {
+            query = Query.parse(arguments, room != null ? room.name : null);
+        } catch (IllegalArgumentException e) {
+            session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + e.getMessage() + ". Usage: " + Query.USAGE);
+            return;
+        }
+        long start = System.nanoTime();
+        search(query).whenComplete((matches, error) -> {
+            if (error != null) {
+                session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Search failed: " + error.getMessage());
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.recordSearch(start);
+            }
+            session.send(ChatUtils.MessageSenderInfo.SYSTEM.messagePrefix() + "Search: " + matches.size()
+                    + (matches.size() == query.limit ? " most recent" : "") + (matches.size() == 1 ? " match" : " matches")
+                    + " for " + query.description
+                    + String.format(Locale.ROOT, " (%.1f ms)", elapsed / 1e6));
+            for (MessageLog.Record match : matches) {
+                // Indented, so that results are not taken for live messages or commands
+                session.send("  " + ChatMessage.displayLine(match));
+            }
+        });
+    }
+
+    /**
+     * Finds the most recent messages matching a query.
+     *
+     * @return The matches, newest first; fails if too many searches are already waiting
+     */
+    CompletableFuture<List<MessageLog.Record>> search(Query query) {
+        CompletableFuture<List<MessageLog.Record>> result = new CompletableFuture<>();
+        Runnable search = () -> {
+            try {
+                result.complete(run(query));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        if (closed || !searches.offer(search)) {
+            result.completeExceptionally(new IllegalStateException("the server is too busy, try again shortly"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of the next message to be indexed.
+     */
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Returns true once every message logged so far is indexed and no merge is due or running.
+     */
+    boolean caughtUp() {
+        return nextOffset == log.nextOffset() && !merging && nextMerge() == null;
+    }
+
+    /**
+     * Summarizes the index for output.
+     */
+    String describe() {
+        IndexSegment[] sealed = segments;
+        long bytes = 0;
+        long messages = 0;
+        for (IndexSegment segment : sealed) {
+            bytes += segment.sizeBytes();
+            messages += segment.messages;
+        }
+        return sealed.length + " segments of " + messages + " messages in " + bytes / (1024 * 1024)
+                + " MB, indexed up to offset " + nextOffset;
+    }
+
+    /**
+     * Stops indexing and merging, and writes out the messages indexed since the last segment, so
+     * that a restart does not index them again.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Not interrupted, since an interrupt closes a file channel being written; both threads
+        // check for closing at least every INDEX_INTERVAL_MILLIS, or every term while merging
+        mergeWanted.release();
+        try {
+            indexer.join();
+            merger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable search;
+        while ((search = searches.poll()) != null) {
+            search.run();
+        }
+        if (memory.messages > 0) {
+            seal();
+        }
+    }
+
+    /**
+     * Opens the segments left by a previous run. A merge interrupted before it could delete its
+     * inputs leaves segments covered by the merged one, which are deleted now.
+     */
+    private IndexSegment[] recover() throws IOException {
+        List<IndexSegment> found = new ArrayList<>();
+        try (var files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                    Files.delete(path);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        found.add(IndexSegment.open(path));
+                    } catch (IOException e) {
+                        System.out.println("An error occurred: " + e.getMessage());
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong((IndexSegment segment) -> segment.first)
+                .thenComparing(Comparator.comparingLong((IndexSegment segment) -> segment.last).reversed()));
+        List<IndexSegment> kept = new ArrayList<>();
+        for (IndexSegment segment : found) {
+            if (!kept.isEmpty() && segment.first <= kept.get(kept.size() - 1).last) {
+                segment.delete();
+            } else {
+                kept.add(segment);
+            }
+        }
+        if (!kept.isEmpty() && kept.get(kept.size() - 1).last >= log.nextOffset()) {
+            // The log was deleted or replaced; its offsets mean something else now
+            kept.forEach(IndexSegment::delete);
+            kept.clear();
+        }
+        nextOffset = Math.max(kept.isEmpty() ? 0 : kept.get(kept.size() - 1).last + 1, log.firstOffset());
+        IndexSegment[] recovered = kept.toArray(new IndexSegment[0]);
+        this.segments = recovered;
+        System.out.println("Search index in " + directory.toAbsolutePath() + ": " + describe());
+        return recovered;
+    }
+
+    private void indexLoop() {
+        while (!closed) {
+            Runnable search;
+            try {
+                search = searches.poll(INDEX_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (search != null) {
+                search.run();
+            }
+            indexNewMessages();
+            dropExpired();
+        }
+    }
+
+    /**
+     * Indexes everything appended to the log since the last call, running waiting searches
+     * between batches.
+     */
+    private void indexNewMessages() {
+        while (!closed && log.read(nextOffset, INDEX_BATCH, this::add) > 0) {
+            Runnable search;
+            while ((search = searches.poll()) != null) {
+                search.run();
+            }
+        }
+    }
+
+    private void add(MessageLog.Record record) {
+        memory.add(record);
+        if (memory.messages >= segmentMessages) {
+            seal();
+        }
+        nextOffset = record.offset + 1;
+    }
+
+    /**
+     * Writes the segment in the heap to a file and starts a new one. Called on the indexer thread,
+     * or once it has stopped.
+     */
+    private void seal() {
+        MemorySegment sealed = memory;
+        memory = new MemorySegment();
+        List<Map.Entry<byte[], PostingsBuilder>> terms = sealed.sortedTerms();
+        SegmentWriter writer = null;
+        try {
+            writer = new SegmentWriter(directory, sealed.first, sealed.last);
+            writer.samples(sealed);
+            for (Map.Entry<byte[], PostingsBuilder> term : terms) {
+                writer.term(term.getKey(), List.of(term.getValue().list()));
+            }
+            IndexSegment segment = writer.finish(sealed.messages);
+            segmentsLock.lock();
+            try {
+                IndexSegment[] current = segments;
+                IndexSegment[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = segment;
+                segments = updated;
+            } finally {
+                segmentsLock.unlock();
+            }
+            mergeWanted.release();
+        } catch (IOException e) {
+            // The messages stay in the log, but cannot be found until the index is rebuilt
+            System.out.println("An error occurred: " + e.getMessage());
+            if (writer != null) {
+                writer.abandon();
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments holding only messages the log no longer has.
+     */
+    private void dropExpired() {
+        long firstOffset = log.firstOffset();
+        IndexSegment[] current = segments;
+        if (current.length == 0 || current[0].last >= firstOffset) {
+            return;
+        }
+        List<IndexSegment> expired = new ArrayList<>();
+        segmentsLock.lock();
+        try {
+            current = segments;
+            int keep = 0;
+            while (keep < current.length && current[keep].last < firstOffset) {
+                expired.add(current[keep++]);
+            }
+            segments = Arrays.copyOfRange(current, keep, current.length);
+        } finally {
+            segmentsLock.unlock();
+        }
+        expired.forEach(IndexSegment::delete);
+    }
+
+    private void mergeLoop() {
+        while (!closed) {
+            try {
+                mergeWanted.acquire();
+                mergeWanted.drainPermits();
+            } catch (InterruptedException e) {
+                return;
+            }
+            IndexSegment[] run;
+            while (!closed && (run = nextMerge()) != null) {
+                merging = true;
+                merge(run);
+                merging = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest run of {@link #MERGE_FACTOR} adjacent segments of the same tier, or null.
+     * A segment's tier is the number of times its size can be divided by the merge factor before
+     * reaching the size of a freshly sealed segment, so each merge moves a run up one tier.
+     */
+    private IndexSegment[] nextMerge() {
+        IndexSegment[] current = segments;
+        int runStart = 0;
+        for (int i = 1; i <= current.length; i++) {
+            if (i == current.length || tier(current[i]) != tier(current[runStart])) {
+                runStart = i;
+                continue;
+            }
+            if (i - runStart + 1 == MERGE_FACTOR) {
+                IndexSegment[] run = Arrays.copyOfRange(current, runStart, i + 1);
+                long messages = 0;
+                for (IndexSegment segment : run) {
+                    messages += segment.messages;
+                }
+                if (messages <= MAX_MERGED_MESSAGES) {
+                    return run;
+                }
+                runStart = i + 1;
+            }
+        }
+        return null;
+    }
+
+    private int tier(IndexSegment segment) {
+        int tier = 0;
+        for (long size = segmentMessages; segment.messages >= size * MERGE_FACTOR; size *= MERGE_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Merges a run of adjacent segments into one and swaps it in. The run's segments cover
+     * increasing ranges of offsets, so each merged posting list is their lists one after another.
+     */
+    private void merge(IndexSegment[] run) {
+        long start = System.nanoTime();
+        long messages = 0;
+        for (IndexSegment segment : run) {
+            messages += segment.messages;
+        }
+        SegmentWriter writer = null;
+        IndexSegment merged;
+        try {
+            writer = new SegmentWriter(directory, run[0].first, run[run.length - 1].last);
+            for (IndexSegment segment : run) {
+                writer.samples(segment);
+            }
+            int[] next = new int[run.length];
+            List<PostingList> parts = new ArrayList<>(run.length);
+            while (!closed) {
+                byte[] smallest = null;
+                for (int i = 0; i < run.length; i++) {
+                    if (next[i] < run[i].termCount) {
+                        byte[] term = run[i].term(next[i]);
+                        if (smallest == null || Arrays.compareUnsigned(term, smallest) < 0) {
+                            smallest = term;
+                        }
+                    }
+                }
+                if (smallest == null) {
+                    break;
+                }
+                parts.clear();
+                for (int i = 0; i < run.length; i++) {
+                    if (next[i] < run[i].termCount && Arrays.equals(run[i].term(next[i]), smallest)) {
+                        parts.add(run[i].postingsAt(next[i]++));
+                    }
+                }
+                writer.term(smallest, parts);
+            }
+            if (closed) {
+                writer.abandon();
+                return;
+            }
+            merged = writer.finish(messages);
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+            if (writer != null) {
+                writer.abandon();
+            }
+            return;
+        }
+        boolean replaced = false;
+        segmentsLock.lock();
+        try {
+            IndexSegment[] current = segments;
+            int at = Arrays.asList(current).indexOf(run[0]);
+            // Retention may have dropped some of the run meanwhile
+            if (at >= 0 && at + run.length <= current.length
+                    && Arrays.equals(Arrays.copyOfRange(current, at, at + run.length), run)) {
+                IndexSegment[] updated = new IndexSegment[current.length - run.length + 1];
+                System.arraycopy(current, 0, updated, 0, at);
+                updated[at] = merged;
+                System.arraycopy(current, at + run.length, updated, at + 1, current.length - at - run.length);
+                segments = updated;
+                replaced = true;
+            }
+        } finally {
+            segmentsLock.unlock();
+        }
+        if (replaced) {
+            // A search still reading a merged segment keeps its mapping until it lets go of it
+            for (IndexSegment segment : run) {
+                segment.delete();
+            }
+            System.out.println(MessageStamp.LOG.now() + "Merged " + run.length + " search index segments of "
+                    + messages + " messages in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } else {
+            merged.delete();
+        }
+    }
+
+    /**
+     * Runs a search over the segment in the heap, then the sealed segments from the newest, until
+     * enough matches are found. Called on the indexer thread.
+     */
+    private List<MessageLog.Record> run(Query query) {
+        List<MessageLog.Record> matches = new ArrayList<>();
+        collect(memory, query, matches);
+        IndexSegment[] sealed = segments;
+        for (int i = sealed.length - 1; i >= 0 && matches.size() < query.limit; i--) {
+            collect(sealed[i], query, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Adds a segment's matches to a search's, newest first. The lists are intersected backwards by
+     * leapfrogging: each list is asked for its largest offset at or below the current candidate,
+     * and any list that lacks the candidate moves the candidate down to what it has instead.
+     */
+    private void collect(SearchSegment segment, Query query, List<MessageLog.Record> matches) {
+        if (segment.messages == 0) {
+            return;
+        }
+        PostingList[] lists = new PostingList[query.terms.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = segment.postings(query.terms[i], query.termBytes[i]);
+            if (lists[i] == null) {
+                return;
+            }
+        }
+        // The rarest term proposes candidates, so the fewest of them are checked against the rest
+        Arrays.sort(lists, Comparator.comparingInt((PostingList list) -> list.count));
+        long lower = segment.lowerBound(query.since);
+        long target = segment.upperBound(query.until);
+        while (matches.size() < query.limit) {
+            long candidate = lists[0].floor(target);
+            if (candidate < lower) {
+                return;
+            }
+            boolean agreed = true;
+            for (int i = 1; i < lists.length && agreed; i++) {
+                long other = lists[i].floor(candidate);
+                if (other < lower) {
+                    return;
+                }
+                if (other != candidate) {
+                    target = other;
+                    agreed = false;
+                }
+            }
+            if (agreed) {
+                MessageLog.Record record = fetch(candidate);
+                if (record != null && record.timestamp >= query.since && record.timestamp < query.until) {
+                    matches.add(record);
+                }
+                target = candidate - 1;
+            }
+        }
+    }
+
+    /**
+     * Reads one message back from the log, or returns null if retention has deleted it.
+     */
+    private MessageLog.Record fetch(long offset) {
+        MessageLog.Record[] found = new MessageLog.Record[1];
+        log.read(offset, 1, record -> found[0] = record);
+        return found[0] != null && found[0].offset == offset ? found[0] : null;
+    }
+
+    /**
+     * The offsets of the messages containing one term in one segment, newest last, in blocks.
+     * Each block has a skip entry holding its first offset, the position of the rest of its
+     * offsets in the data and their number; the rest are varint deltas from the offset before.
+     * A list remembers the block it decoded last, since a search tends to stay near it.
+     */
+    static final class PostingList {
+        static final int BLOCK_SIZE = 128;
+        static final int SKIP_BYTES = 8 + 4 + 4;
+
+        final int count;
+        final int blocks;
+        private final ByteBuffer skips;
+        private final int skipStart;
+        private final ByteBuffer data;
+        private final int dataStart;
+        final int dataLength;
+        private final long[] decoded = new long[BLOCK_SIZE];
+        private int decodedBlock = -1;
+        private int decodedCount;
+
+        PostingList(int count, int blocks, ByteBuffer skips, int skipStart, ByteBuffer data, int dataStart, int dataLength) {
+            this.count = count;
+            this.blocks = blocks;
+            this.skips = skips;
+            this.skipStart = skipStart;
+            this.data = data;
+            this.dataStart = dataStart;
+            this.dataLength = dataLength;
+        }
+
+        long blockFirst(int block) {
+            return skips.getLong(skipStart + block * SKIP_BYTES);
+        }
+
+        int blockPosition(int block) {
+            return skips.getInt(skipStart + block * SKIP_BYTES + 8);
+        }
+
+        int blockCount(int block) {
+            return skips.getInt(skipStart + block * SKIP_BYTES + 12);
+        }
+
+        /**
+         * Returns the largest offset in the list at or below {@code target}, or -1 if none is.
+         */
+        long floor(long target) {
+            int low = 0;
+            int high = blocks - 1;
+            int block = -1;
+            if (decodedBlock >= 0 && decoded[0] <= target
+                    && (decodedBlock == blocks - 1 || blockFirst(decodedBlock + 1) > target)) {
+                // Still within the block decoded last
+                block = decodedBlock;
+                low = high + 1;
+            }
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (blockFirst(middle) <= target) {
+                    block = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (block < 0) {
+                return -1;
+            }
+            decode(block);
+            low = 0;
+            high = decodedCount - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (decoded[middle] <= target) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return decoded[found];
+        }
+
+        private void decode(int block) {
+            if (block == decodedBlock) {
+                return;
+            }
+            int n = blockCount(block);
+            int position = dataStart + blockPosition(block);
+            long value = blockFirst(block);
+            decoded[0] = value;
+            for (int i = 1; i < n; i++) {
+                long delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data.get(position++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                value += delta;
+                decoded[i] = value;
+            }
+            decodedBlock = block;
+            decodedCount = n;
+        }
+
+        void copyData(DataOutputStream out, byte[] buffer) throws IOException {
+            for (int copied = 0; copied < dataLength; ) {
+                int length = Math.min(buffer.length, dataLength - copied);
+                data.get(dataStart + copied, buffer, 0, length);
+                out.write(buffer, 0, length);
+                copied += length;
+            }
+        }
+    }
+
+    /**
+     * A posting list being built in the heap, in the same layout as a sealed one.
+     */
+    static final class PostingsBuilder {
+        private byte[] data = new byte[8];
+        private int length;
+        private byte[] skips = new byte[PostingList.SKIP_BYTES];
+        private ByteBuffer skipView = ByteBuffer.wrap(skips);
+        private int blocks;
+        private int count;
+        private long last = -1;
+
+        void add(long offset) {
+            if (offset == last) {
+                return;  // The term appeared more than once in the message
+            }
+            if (count % PostingList.BLOCK_SIZE == 0) {
+                if ((blocks + 1) * PostingList.SKIP_BYTES > skips.length) {
+                    skips = Arrays.copyOf(skips, skips.length * 2);
+                    skipView = ByteBuffer.wrap(skips);
+                }
+                int entry = blocks * PostingList.SKIP_BYTES;
+                skipView.putLong(entry, offset).putInt(entry + 8, length).putInt(entry + 12, 1);
+                blocks++;
+            } else {
+                if (length + 10 > data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                length = FrameCodec.writeVarint(data, length, offset - last);
+                int countAt = (blocks - 1) * PostingList.SKIP_BYTES + 12;
+                skipView.putInt(countAt, skipView.getInt(countAt) + 1);
+            }
+            last = offset;
+            count++;
+        }
+
+        PostingList list() {
+            return new PostingList(count, blocks, skipView, 0, ByteBuffer.wrap(data), 0, length);
+        }
+    }
+
+    /**
+     * A range of indexed messages, with samples of their times so that a time range can be turned
+     * into a range of offsets.
+     */
+    abstract static class SearchSegment {
+        // A message's offset and time are assigned a moment apart, so neither quite orders the other
+        private static final long TIME_SLACK_MILLIS = 1000;
+        static final int SAMPLE_INTERVAL = 64;
+
+        long first = -1;
+        long last = -1;
+        long messages;
+
+        abstract PostingList postings(String term, byte[] termBytes);
+
+        abstract int sampleCount();
+
+        abstract long sampleOffset(int sample);
+
+        abstract long sampleTime(int sample);
+
+        /**
+         * Returns an offset below which no message sent at or after {@code since} is expected.
+         */
+        long lowerBound(long since) {
+            if (since == Long.MIN_VALUE) {
+                return first;
+            }
+            int found = -1;
+            int low = 0;
+            int high = sampleCount() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sampleTime(middle) < since - TIME_SLACK_MILLIS) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found >= 0 ? sampleOffset(found) : first;
+        }
+
+        /**
+         * Returns an offset above which no message sent before {@code until} is expected.
+         */
+        long upperBound(long until) {
+            if (until == Long.MAX_VALUE) {
+                return last;
+            }
+            int found = -1;
+            int low = 0;
+            int high = sampleCount() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sampleTime(middle) >= until + TIME_SLACK_MILLIS) {
+                    found = middle;
+                    high = middle - 1;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return found >= 0 ? sampleOffset(found) : last;
+        }
+    }
+
+    /**
+     * The newest messages, indexed in the heap until there are enough of them to seal.
+     */
+    static final class MemorySegment extends SearchSegment {
+        private final Map<String, PostingsBuilder> terms = new HashMap<>();
+        private long[] sampleOffsets = new long[16];
+        private long[] sampleTimes = new long[16];
+        private int samples;
+
+        void add(MessageLog.Record record) {
+            long offset = record.offset;
+            if (first < 0) {
+                first = offset;
+            }
+            last = offset;
+            if (messages % SAMPLE_INTERVAL == 0) {
+                if (samples == sampleOffsets.length) {
+                    sampleOffsets = Arrays.copyOf(sampleOffsets, samples * 2);
+                    sampleTimes = Arrays.copyOf(sampleTimes, samples * 2);
+                }
+                sampleOffsets[samples] = offset;
+                sampleTimes[samples++] = record.timestamp;
+            }
+            messages++;
+            tokenize(record.body, term -> terms.computeIfAbsent(term, t -> new PostingsBuilder()).add(offset));
+            if (record.type == FrameCodec.CHAT && record.senderName != null) {
+                terms.computeIfAbsent(SENDER_TERM + record.senderName, t -> new PostingsBuilder()).add(offset);
+            }
+            terms.computeIfAbsent(ROOM_TERM + record.room, t -> new PostingsBuilder()).add(offset);
+        }
+
+        @Override
+        PostingList postings(String term, byte[] termBytes) {
+            PostingsBuilder builder = terms.get(term);
+            return builder != null ? builder.list() : null;
+        }
+
+        /**
+         * Returns the terms in the order of their UTF-8 bytes, as sealed segments keep them.
+         */
+        List<Map.Entry<byte[], PostingsBuilder>> sortedTerms() {
+            List<Map.Entry<byte[], PostingsBuilder>> sorted = new ArrayList<>(terms.size());
+            for (Map.Entry<String, PostingsBuilder> term : terms.entrySet()) {
+                sorted.add(Map.entry(term.getKey().getBytes(StandardCharsets.UTF_8), term.getValue()));
+            }
+            sorted.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+            return sorted;
+        }
+
+        @Override
+        int sampleCount() {
+            return samples;
+        }
+
+        @Override
+        long sampleOffset(int sample) {
+            return sampleOffsets[sample];
+        }
+
+        @Override
+        long sampleTime(int sample) {
+            return sampleTimes[sample];
+        }
+    }
+
+    /**
+     * A sealed segment: an immutable, memory-mapped file laid out as
+     * <pre>
+     *   int    magic, int version
+     *   long   first offset, long last offset, long message count
+     *   int    sample count, int term count, long position of the term table
+     *   samples: a long offset and a long timestamp each
+     *   terms, in the order of their UTF-8 bytes:
+     *     short  length, then the UTF-8 term
+     *     int    posting count, int block count
+     *     blocks: a long first offset, an int data position and an int offset count each
+     *     int    data length, then the data
+     *   term table: the int position of each term
+     * </pre>
+     * A term is found by binary search over the term table.
+     */
+    static final class IndexSegment extends SearchSegment {
+        private static final int MAGIC = 0x43534958;  // "CSIX"
+        private static final int VERSION = 1;
+        static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 8;
+        private static final int SAMPLE_BYTES = 16;
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final int samples;
+        final int termCount;
+        private final int termTable;
+
+        private IndexSegment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.first = buffer.getLong(8);
+            this.last = buffer.getLong(16);
+            this.messages = buffer.getLong(24);
+            this.samples = buffer.getInt(32);
+            this.termCount = buffer.getInt(36);
+            this.termTable = (int) buffer.getLong(40);
+        }
+
+        static IndexSegment open(Path path) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // A mapping stays valid after its channel is closed, and after its file is deleted
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a search index segment: " + path);
+            }
+            return new IndexSegment(path, buffer);
+        }
+
+        long sizeBytes() {
+            return buffer.capacity();
+        }
+
+        @Override
+        PostingList postings(String term, byte[] termBytes) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compareTerm(entry(middle), termBytes);
+                if (comparison == 0) {
+                    return postingsAt(middle);
+                } else if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return null;
+        }
+
+        byte[] term(int index) {
+            int entry = entry(index);
+            byte[] term = new byte[buffer.getShort(entry) & 0xFFFF];
+            buffer.get(entry + 2, term);
+            return term;
+        }
+
+        PostingList postingsAt(int index) {
+            int entry = entry(index);
+            int position = entry + 2 + (buffer.getShort(entry) & 0xFFFF);
+            int count = buffer.getInt(position);
+            int blocks = buffer.getInt(position + 4);
+            int skipStart = position + 8;
+            int dataLengthAt = skipStart + blocks * PostingList.SKIP_BYTES;
+            return new PostingList(count, blocks, buffer, skipStart, buffer, dataLengthAt + 4, buffer.getInt(dataLengthAt));
+        }
+
+        private int entry(int index) {
+            return buffer.getInt(termTable + index * 4);
+        }
+
+        private int compareTerm(int entry, byte[] term) {
+            int length = buffer.getShort(entry) & 0xFFFF;
+            for (int i = 0; i < length && i < term.length; i++) {
+                int comparison = Integer.compare(buffer.get(entry + 2 + i) & 0xFF, term[i] & 0xFF);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return Integer.compare(length, term.length);
+        }
+
+        @Override
+        int sampleCount() {
+            return samples;
+        }
+
+        @Override
+        long sampleOffset(int sample) {
+            return buffer.getLong(HEADER_BYTES + sample * SAMPLE_BYTES);
+        }
+
+        @Override
+        long sampleTime(int sample) {
+            return buffer.getLong(HEADER_BYTES + sample * SAMPLE_BYTES + 8);
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a sealed segment to a temporary file, which is renamed into place once complete, so
+     * that a crash never leaves a partial segment behind. Samples are written first, then terms in
+     * order.
+     */
+    private static final class SegmentWriter {
+        private final Path temporary;
+        private final Path target;
+        private final long first;
+        private final long last;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final byte[] copyBuffer = new byte[8192];
+        private long position = IndexSegment.HEADER_BYTES;
+        private int samples;
+        private int[] termPositions = new int[1024];
+        private int terms;
+
+        SegmentWriter(Path directory, long first, long last) throws IOException {
+            String name = String.format("%020d-%020d", first, last);
+            this.temporary = directory.resolve(name + SUFFIX + TEMPORARY_SUFFIX);
+            this.target = directory.resolve(name + SUFFIX);
+            this.first = first;
+            this.last = last;
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.write(new byte[IndexSegment.HEADER_BYTES]);
+        }
+
+        void samples(SearchSegment segment) throws IOException {
+            for (int i = 0; i < segment.sampleCount(); i++) {
+                out.writeLong(segment.sampleOffset(i));
+                out.writeLong(segment.sampleTime(i));
+            }
+            samples += segment.sampleCount();
+            position += (long) segment.sampleCount() * IndexSegment.SAMPLE_BYTES;
+        }
+
+        /**
+         * Writes a term with the posting lists it has in each input, oldest first, as one list.
+         */
+        void term(byte[] term, List<PostingList> parts) throws IOException {
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Search index segment too large");
+            }
+            if (terms == termPositions.length) {
+                termPositions = Arrays.copyOf(termPositions, terms * 2);
+            }
+            termPositions[terms++] = (int) position;
+            int count = 0;
+            int blocks = 0;
+            long dataLength = 0;
+            for (PostingList part : parts) {
+                count += part.count;
+                blocks += part.blocks;
+                dataLength += part.dataLength;
+            }
+            out.writeShort(term.length);
+            out.write(term);
+            out.writeInt(count);
+            out.writeInt(blocks);
+            int base = 0;
+            for (PostingList part : parts) {
+                for (int block = 0; block < part.blocks; block++) {
+                    out.writeLong(part.blockFirst(block));
+                    out.writeInt(base + part.blockPosition(block));
+                    out.writeInt(part.blockCount(block));
+                }
+                base += part.dataLength;
+            }
+            out.writeInt((int) dataLength);
+            for (PostingList part : parts) {
+                part.copyData(out, copyBuffer);
+            }
+            position += 2 + term.length + 8 + (long) blocks * PostingList.SKIP_BYTES + 4 + dataLength;
+        }
+
+        IndexSegment finish(long messages) throws IOException {
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Search index segment too large");
+            }
+            for (int i = 0; i < terms; i++) {
+                out.writeInt(termPositions[i]);
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(IndexSegment.HEADER_BYTES);
+            header.putInt(IndexSegment.MAGIC).putInt(IndexSegment.VERSION).putLong(first).putLong(last)
+                    .putLong(messages).putInt(samples).putInt(terms).putLong(position).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            out.close();
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return IndexSegment.open(target);
+        }
+
+        void abandon() {
+            try {
+                out.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+}
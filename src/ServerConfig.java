@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup settings for {@link ChatServer}, parsed from {@code --key=value} command line options.
+ */
+final class ServerConfig {
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024;
+    static final int DEFAULT_HISTORY_SIZE = 100;
+    static final int DEFAULT_PORT = 5000;
+    static final int DEFAULT_BACKLOG = 1024;
+    static final int DEFAULT_HEARTBEAT_MILLIS = 30_000;
+    static final int DEFAULT_HEARTBEAT_MISSES = 3;
+    static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 900;
+    static final int DEFAULT_MAX_MESSAGE_BYTES = 64 * 1024;
+    static final int DEFAULT_RATE_BURST_MILLIS = 1000;
+    static final int DEFAULT_MAX_FILE_MB = 1024;
+    static final int DEFAULT_TRANSFER_QUOTA_MB = 4096;
+    static final int DEFAULT_UPLOAD_TIMEOUT_SECONDS = 600;
+    static final int DEFAULT_TRANSFER_KEEP_SECONDS = 24 * 60 * 60;
+
+    // Port clients connect to
+    final int port;
+    // Local address to listen on, or null for every interface
+    final InetAddress bindAddress;
+    // Connections the kernel may hold waiting for accept; also capped by net.core.somaxconn
+    final int backlog;
+    // Number of threads accepting connections
+    final int acceptors;
+    // Whether each acceptor gets its own listening socket on the same port, balanced by the kernel
+    final boolean reusePort;
+    // Socket options for client connections; buffer sizes of 0 leave the OS defaults
+    final boolean tcpNoDelay;
+    final int sendBufferBytes;
+    final int receiveBufferBytes;
+    // How client sockets are serviced
+    final ChatServer.Mode mode;
+    // Size of each client's outbound queue and what to do when it is full
+    final int queueCapacity;
+    final OutboundQueue.OverflowPolicy overflowPolicy;
+    // How long a writer waits for more messages before flushing a batch (0 = flush when idle)
+    final long flushDelayNanos;
+    // Flush a batch as soon as it holds this many bytes
+    final int flushThresholdBytes;
+    // Whether clients may negotiate compressed binary frames
+    final boolean compression;
+    // Where broadcasts are persisted, or null if the message log is off
+    final Path logDirectory;
+    // Size of each message log segment file
+    final int logSegmentBytes;
+    // Oldest message log segments are deleted beyond this total size or age
+    final long logRetentionBytes;
+    final long logRetentionMillis;
+    // How often appended messages are forced to disk; at most this much is lost in a power failure
+    final long logFlushIntervalMillis;
+    // Number of recent messages replayed to a joining client (0 = none)
+    final int historySize;
+    // Port other nodes connect to for federation, or 0 if this server runs alone
+    final int peerPort;
+    // Interface the peer port listens on; loopback unless the nodes run on several machines
+    final InetAddress peerBindAddress;
+    // Shared secret every peer link must prove it knows, or null to accept any peer that can connect
+    final String peerSecret;
+    // Peer ports of the other nodes to connect to
+    final List<InetSocketAddress> peers;
+    // Identifies this node to its peers; must be unique among them
+    final long nodeId;
+    // How long a client may be silent before it is pinged (0 = no heartbeats)
+    final int heartbeatIntervalMillis;
+    // Intervals of silence after which a client is disconnected
+    final int heartbeatMisses;
+    // How long a client that cannot be pinged may send nothing before it is disconnected (0 = never)
+    final int idleTimeoutSeconds;
+    // How often a line of metrics is logged (0 = never)
+    final int metricsIntervalSeconds;
+    // Loopback port serving metrics over HTTP, or 0 for none
+    final int adminPort;
+    // Longest line or frame a client may send; a client sending a longer one is disconnected
+    final int maxMessageBytes;
+    // Each client's budget, and the budget of all clients together, per second (0 = unlimited)
+    final long clientRateMessages;
+    final long clientRateBytes;
+    final long serverRateMessages;
+    final long serverRateBytes;
+    // How much of a budget may be spent at once, in milliseconds of its rate
+    final int rateBurstMillis;
+    // Whether a client over its own budget is disconnected rather than throttled
+    final boolean disconnectOverRate;
+    // Where shared files are staged, or null for a temporary directory deleted on stop
+    final Path transferDirectory;
+    // Largest file a client may share
+    final long maxFileBytes;
+    // Bandwidth cap of each file upload and download, per second (0 = unlimited)
+    final long transferRateBytes;
+    // Most bytes staged at once, counting files still arriving at their full size
+    final long transferQuotaBytes;
+    // How long an upload may receive nothing before it is dropped
+    final int uploadTimeoutSeconds;
+    // How long a shared file is kept after it was last asked for
+    final int transferKeepSeconds;
+    // Whether the message log is indexed for /search
+    final boolean searchEnabled;
+    // Messages indexed in the heap before they are written out as a search index segment
+    final int searchSegmentMessages;
+
+    private ServerConfig(Map<String, String> options) {
+        port = intOption(options, "port", DEFAULT_PORT);
+        bindAddress = options.containsKey("bind") ? parseAddress(options.get("bind")) : null;
+        backlog = intOption(options, "backlog", DEFAULT_BACKLOG);
+        acceptors = Math.max(1, intOption(options, "acceptors", 1));
+        reusePort = options.containsKey("reuse-port");
+        tcpNoDelay = !options.getOrDefault("tcp-nodelay", "on").equals("off");
+        sendBufferBytes = intOption(options, "send-buffer", 0);
+        receiveBufferBytes = intOption(options, "receive-buffer", 0);
+        mode = ChatServer.Mode.valueOf(options.getOrDefault("mode", "blocking").toUpperCase());
+        queueCapacity = intOption(options, "queue-capacity", DEFAULT_QUEUE_CAPACITY);
+        overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                options.getOrDefault("overflow", "drop-oldest").toUpperCase().replace('-', '_'));
+        flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(intOption(options, "flush-delay-us", 0));
+        flushThresholdBytes = intOption(options, "flush-threshold", DEFAULT_FLUSH_THRESHOLD);
+        compression = !options.getOrDefault("compression", "on").equals("off");
+        String logDir = options.getOrDefault("log-dir", "chat-log");
+        logDirectory = logDir.equals("off") ? null : Path.of(logDir);
+        // A segment is mapped whole, and a mapping holds at most Integer.MAX_VALUE bytes
+        long segmentBytes = intOption(options, "log-segment-mb", 64) * 1024L * 1024;
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("--log-segment-mb must be between 1 and "
+                    + Integer.MAX_VALUE / (1024 * 1024) + ": " + options.get("log-segment-mb"));
+        }
+        logSegmentBytes = (int) segmentBytes;
+        logRetentionBytes = intOption(options, "log-retention-mb", 1024) * 1024L * 1024;
+        logRetentionMillis = TimeUnit.HOURS.toMillis(intOption(options, "log-retention-hours", 168));
+        logFlushIntervalMillis = intOption(options, "log-flush-ms", 20);
+        // A replay longer than the outbound queue would overflow it before the client could read it
+        historySize = Math.min(intOption(options, "history", DEFAULT_HISTORY_SIZE), queueCapacity);
+        peerPort = intOption(options, "peer-port", 0);
+        peerBindAddress = options.containsKey("peer-bind") ? parseAddress(options.get("peer-bind"))
+                : InetAddress.getLoopbackAddress();
+        peerSecret = options.get("peer-secret");
+        peers = parsePeers(options.getOrDefault("peers", ""));
+        // The client port is unique among nodes sharing a host, which covers local testing
+        nodeId = intOption(options, "node-id", port);
+        heartbeatIntervalMillis = intOption(options, "heartbeat-ms", DEFAULT_HEARTBEAT_MILLIS);
+        // A single interval would disconnect a client before it had a chance to answer the ping
+        heartbeatMisses = Math.max(2, intOption(options, "heartbeat-misses", DEFAULT_HEARTBEAT_MISSES));
+        idleTimeoutSeconds = intOption(options, "idle-timeout-s", DEFAULT_IDLE_TIMEOUT_SECONDS);
+        metricsIntervalSeconds = intOption(options, "metrics-interval-s", 60);
+        adminPort = intOption(options, "admin-port", 0);
+        maxMessageBytes = intOption(options, "max-line-bytes", DEFAULT_MAX_MESSAGE_BYTES);
+        clientRateMessages = intOption(options, "client-rate-messages", 0);
+        clientRateBytes = intOption(options, "client-rate-bytes", 0);
+        serverRateMessages = intOption(options, "server-rate-messages", 0);
+        serverRateBytes = intOption(options, "server-rate-bytes", 0);
+        rateBurstMillis = intOption(options, "rate-burst-ms", DEFAULT_RATE_BURST_MILLIS);
+        disconnectOverRate = options.getOrDefault("rate-limit", "throttle").equals("disconnect");
+        transferDirectory = options.containsKey("transfer-dir") ? Path.of(options.get("transfer-dir")) : null;
+        maxFileBytes = intOption(options, "max-file-mb", DEFAULT_MAX_FILE_MB) * 1024L * 1024;
+        transferRateBytes = intOption(options, "transfer-rate-bytes", 0);
+        transferQuotaBytes = intOption(options, "transfer-quota-mb", DEFAULT_TRANSFER_QUOTA_MB) * 1024L * 1024;
+        uploadTimeoutSeconds = Math.max(1, intOption(options, "upload-timeout-s", DEFAULT_UPLOAD_TIMEOUT_SECONDS));
+        transferKeepSeconds = Math.max(1, intOption(options, "transfer-keep-s", DEFAULT_TRANSFER_KEEP_SECONDS));
+        searchEnabled = !options.getOrDefault("search", "on").equals("off");
+        searchSegmentMessages = Math.max(1, intOption(options, "search-segment-messages", SearchIndex.DEFAULT_SEGMENT_MESSAGES));
+        if (!peers.isEmpty() && peerPort == 0) {
+            throw new IllegalArgumentException("--peers needs --peer-port, so that the peers can connect back");
+        }
+        if (peerPort != 0 && !peerBindAddress.isLoopbackAddress() && (peerSecret == null || peerSecret.isEmpty())) {
+            // Anyone reaching the port could otherwise relay messages under any name
+            throw new IllegalArgumentException("--peer-bind beyond loopback needs --peer-secret");
+        }
+    }
+
+    /**
+     * Builds a configuration from parsed command line options, using defaults for anything missing.
+     */
+    static ServerConfig fromOptions(Map<String, String> options) {
+        return new ServerConfig(options);
+    }
+
+    /**
+     * Creates an empty outbound queue for a new client.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Opens a listening socket for the blocking modes with the configured address, backlog and options.
+     */
+    ServerSocket openServerSocket() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        if (reusePort) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (receiveBufferBytes > 0) {
+            // Set before binding so that accepted sockets can use a large TCP window from the start
+            serverSocket.setReceiveBufferSize(receiveBufferBytes);
+        }
+        serverSocket.bind(new InetSocketAddress(bindAddress, port), backlog);
+        return serverSocket;
+    }
+
+    /**
+     * Opens a listening channel for nio mode with the configured address, backlog and options.
+     */
+    ServerSocketChannel openServerChannel() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (receiveBufferBytes > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+        }
+        serverChannel.bind(new InetSocketAddress(bindAddress, port), backlog);
+        return serverChannel;
+    }
+
+    /**
+     * Applies the configured options to an accepted client socket.
+     */
+    void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferBytes > 0) {
+            socket.setSendBufferSize(sendBufferBytes);
+        }
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes);
+        }
+    }
+
+    /**
+     * Summarizes the settings for the startup banner.
+     */
+    String describe() {
+        return mode.name().toLowerCase() + " mode, " + acceptors + (reusePort ? " reuse-port listeners" : " acceptors")
+                + " with backlog " + backlog + ", outbound queues of " + queueCapacity
+                + " messages (" + overflowPolicy.name().toLowerCase().replace('_', '-') + " on overflow), "
+                + "flush after " + TimeUnit.NANOSECONDS.toMicros(flushDelayNanos) + " us or "
+                + flushThresholdBytes + " bytes, compression " + (compression ? "on" : "off")
+                + ", message log " + (logDirectory != null ? "fsync every " + logFlushIntervalMillis + " ms" : "off")
+                + (logDirectory != null && searchEnabled ? " and indexed for search" : "")
+                + ", replaying " + historySize + " recent messages on join"
+                + (heartbeatIntervalMillis > 0 ? ", heartbeat every " + heartbeatIntervalMillis + " ms, disconnecting after "
+                        + heartbeatMisses + " missed" + (idleTimeoutSeconds > 0 ? " or " + idleTimeoutSeconds
+                        + " s idle without heartbeats" : "") : ", heartbeats off")
+                + ", messages up to " + maxMessageBytes + " bytes"
+                + (clientRateMessages > 0 || clientRateBytes > 0 ? ", clients " + (disconnectOverRate ? "disconnected" : "throttled")
+                        + " over " + rate(clientRateMessages, clientRateBytes) : "")
+                + (serverRateMessages > 0 || serverRateBytes > 0 ? ", server throttled over " + rate(serverRateMessages, serverRateBytes) : "")
+                + ", files up to " + maxFileBytes / (1024 * 1024) + " MB"
+                + (transferRateBytes > 0 ? " at " + transferRateBytes + " bytes/s each" : "")
+                + " and " + transferQuotaBytes / (1024 * 1024) + " MB in all"
+                + (metricsIntervalSeconds > 0 ? ", metrics every " + metricsIntervalSeconds + " s" : "")
+                + (peerPort != 0 ? ", node " + nodeId + " federating on " + peerBindAddress.getHostAddress() + ":" + peerPort
+                        + (peerSecret != null ? " with a shared secret" : "") + " with " + peers.size() + " peers" : "");
+    }
+
+    private static String rate(long messages, long bytes) {
+        return (messages > 0 ? messages + " messages/s" : "") + (messages > 0 && bytes > 0 ? " or " : "")
+                + (bytes > 0 ? bytes + " bytes/s" : "");
+    }
+
+    /**
+     * Parses a comma-separated list of {@code host:port} peer addresses.
+     */
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Peer address must be host:port: " + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    private static InetAddress parseAddress(String host) {
+        try {
+            return InetAddress.getByName(host);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unknown bind address: " + host, e);
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
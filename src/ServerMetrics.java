@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server is doing: connected clients, messages and bytes in and out, the time a
+ * broadcast takes to queue a message for every member of its room, and the delivery latency from
+ * encoding a message to writing it to a client's socket.
+ *
+ * Everything recorded on the hot path is a {@link LongAdder} or a {@link LatencyHistogram}, so the
+ * reader and writer threads never contend on a shared counter. Messages out, bytes out and delivery
+ * latency come from the server-wide {@link FlushStats}, which every connection already reports its
+ * writes to; delivery latency is sampled once per write, as the age of the oldest message in it.
+ * Clients throttled or disconnected by the {@link RateLimiter} are counted as totals.
+ *
+ * Figures are read as snapshots. Every {@code --metrics-interval-s} the server logs one line with
+ * rates and percentiles for the interval just ended, and {@code --admin-port} serves the same
+ * figures for the interval in progress over HTTP on the loopback interface, as text lines or, with
+ * {@code ?format=json}, as a JSON object.
+ */
+final class ServerMetrics {
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private final ClientRegistry clients;
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final FlushStats flushStats = new FlushStats(null, deliveryLatency);
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LatencyHistogram search = new LatencyHistogram();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    // Decisions of the rate limiter
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder throttledByServer = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder rateDisconnects = new LongAdder();
+    private final LongAdder oversizeDisconnects = new LongAdder();
+    private final Snapshot started;
+    // Start of the interval in progress; replaced by the reporter thread at the end of each interval
+    private volatile Snapshot intervalStart;
+    private volatile HeartbeatWheel heartbeats;
+    private volatile Thread reporter;
+    private volatile HttpServer admin;
+
+    ServerMetrics(ClientRegistry clients) {
+        this.clients = clients;
+        this.started = snapshot();
+        this.intervalStart = started;
+    }
+
+    /**
+     * Returns the flush counters that every connection's own counters roll up into.
+     */
+    FlushStats flushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Records messages received from a client and the bytes they arrived in.
+     */
+    void recordReceived(int messages, long bytes) {
+        messagesIn.add(messages);
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Records a client made to wait before its next message is read.
+     *
+     * @param waitNanos How long it waits
+     * @param byServer  Whether it is the server's budget rather than the client's own that ran out
+     */
+    void recordThrottled(long waitNanos, boolean byServer) {
+        (byServer ? throttledByServer : throttled).increment();
+        throttledNanos.add(waitNanos);
+    }
+
+    /**
+     * Records a client disconnected for sending faster than its budget allows.
+     */
+    void recordRateDisconnect() {
+        rateDisconnects.increment();
+    }
+
+    /**
+     * Records a client disconnected for sending a message longer than the limit.
+     */
+    void recordOversizeDisconnect() {
+        oversizeDisconnects.increment();
+    }
+
+    /**
+     * Records how long a broadcast took to queue a message for its recipients.
+     *
+     * @param startNanos {@link System#nanoTime()} before the first recipient was sent the message
+     */
+    void recordFanOut(long startNanos) {
+        fanOut.recordSince(startNanos);
+    }
+
+    /**
+     * Records how long a search took, from the command arriving to the results being queued.
+     *
+     * @param startNanos {@link System#nanoTime()} when the command arrived
+     */
+    void recordSearch(long startNanos) {
+        search.recordSince(startNanos);
+    }
+
+    /**
+     * Starts the periodic log line and the admin endpoint, as configured.
+     *
+     * @param heartbeats The heartbeat wheel whose reaped count to report, or null
+     */
+    void start(ServerConfig config, HeartbeatWheel heartbeats) {
+        this.heartbeats = heartbeats;
+        if (config.metricsIntervalSeconds > 0) {
+            Thread thread = new Thread(() -> report(config.metricsIntervalSeconds), "metrics-reporter");
+            thread.setDaemon(true);
+            reporter = thread;
+            thread.start();
+        }
+        if (config.adminPort > 0) {
+            try {
+                // Loopback only: the figures are meant for the operator of this machine
+                HttpServer server = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), config.adminPort), 0);
+                server.createContext("/metrics", this::serve);
+                server.start();
+                admin = server;
+                System.out.println("Metrics available at http://localhost:" + config.adminPort + "/metrics");
+            } catch (IOException e) {
+                System.out.println("An error occurred: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops the log line and the admin endpoint. The counters keep their values, and a later
+     * {@link #start} carries on from them.
+     */
+    void stop() {
+        Thread thread = reporter;
+        if (thread != null) {
+            thread.interrupt();
+            reporter = null;
+        }
+        HttpServer server = admin;
+        if (server != null) {
+            server.stop(0);
+            admin = null;
+        }
+        heartbeats = null;
+    }
+
+    private void report(int intervalSeconds) {
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+            } catch (InterruptedException e) {
+                return;
+            }
+            Snapshot now = snapshot();
+            StringBuilder line = new StringBuilder(MessageStamp.LOG.now()).append("Metrics:");
+            figures(intervalStart, now).forEach((name, value) -> line.append(' ').append(name).append('=').append(format(value)));
+            System.out.println(line);
+            intervalStart = now;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Map<String, Number> figures = figures(intervalStart, snapshot());
+        String query = exchange.getRequestURI().getQuery();
+        boolean json = query != null && query.contains("format=json");
+        StringBuilder body = new StringBuilder(json ? "{" : "");
+        figures.forEach((name, value) -> {
+            if (json) {
+                body.append(body.length() > 1 ? "," : "").append('"').append(name).append("\":").append(format(value));
+            } else {
+                body.append(name).append(' ').append(format(value)).append('\n');
+            }
+        });
+        if (json) {
+            body.append("}\n");
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Names and values of everything reported: totals since startup, and rates and percentiles
+     * over the interval between two snapshots. Latencies are in microseconds.
+     */
+    private Map<String, Number> figures(Snapshot from, Snapshot to) {
+        double seconds = Math.max(1, to.nanos - from.nanos) / 1e9;
+        Map<String, Number> figures = new LinkedHashMap<>();
+        figures.put("uptime_s", (to.nanos - started.nanos) / 1_000_000_000L);
+        figures.put("interval_s", seconds);
+        figures.put("clients", to.clients);
+        figures.put("messages_in", to.messagesIn);
+        figures.put("messages_in_per_s", (to.messagesIn - from.messagesIn) / seconds);
+        figures.put("bytes_in", to.bytesIn);
+        figures.put("bytes_in_per_s", (to.bytesIn - from.bytesIn) / seconds);
+        figures.put("messages_out", to.messagesOut);
+        figures.put("messages_out_per_s", (to.messagesOut - from.messagesOut) / seconds);
+        figures.put("bytes_out", to.bytesOut);
+        figures.put("bytes_out_per_s", (to.bytesOut - from.bytesOut) / seconds);
+        long writes = to.flushes - from.flushes;
+        figures.put("messages_per_write", writes == 0 ? 0.0 : (double) (to.messagesOut - from.messagesOut) / writes);
+        figures.put("throttled", to.throttled);
+        figures.put("throttled_by_server", to.throttledByServer);
+        figures.put("throttled_ms", to.throttledNanos / 1_000_000);
+        figures.put("rate_disconnects", to.rateDisconnects);
+        figures.put("oversize_disconnects", to.oversizeDisconnects);
+        putLatencies(figures, "fanout", to.fanOut.minus(from.fanOut));
+        putLatencies(figures, "delivery", to.deliveryLatency.minus(from.deliveryLatency));
+        putLatencies(figures, "search", to.search.minus(from.search));
+        if (heartbeats != null) {
+            figures.put("reaped", to.reaped);
+        }
+        return figures;
+    }
+
+    private static void putLatencies(Map<String, Number> figures, String name, LatencyHistogram.Snapshot histogram) {
+        figures.put(name + "_count", histogram.count());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            figures.put(name + "_" + PERCENTILE_NAMES[i] + "_us", histogram.percentile(PERCENTILES[i]) / 1e3);
+        }
+        figures.put(name + "_max_us", histogram.max() / 1e3);
+    }
+
+    private static String format(Number value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.1f", value.doubleValue()) : value.toString();
+    }
+
+    /**
+     * Every counter and histogram at one moment.
+     */
+    private static final class Snapshot {
+        final long nanos = System.nanoTime();
+        final int clients;
+        final long messagesIn;
+        final long bytesIn;
+        final long messagesOut;
+        final long bytesOut;
+        final long flushes;
+        final long reaped;
+        final long throttled;
+        final long throttledByServer;
+        final long throttledNanos;
+        final long rateDisconnects;
+        final long oversizeDisconnects;
+        final LatencyHistogram.Snapshot fanOut;
+        final LatencyHistogram.Snapshot deliveryLatency;
+        final LatencyHistogram.Snapshot search;
+
+        Snapshot(ServerMetrics metrics) {
+            clients = metrics.clients.size();
+            messagesIn = metrics.messagesIn.sum();
+            bytesIn = metrics.bytesIn.sum();
+            messagesOut = metrics.flushStats.messages();
+            bytesOut = metrics.flushStats.bytes();
+            flushes = metrics.flushStats.flushes();
+            HeartbeatWheel wheel = metrics.heartbeats;
+            reaped = wheel != null ? wheel.reaped() : 0;
+            throttled = metrics.throttled.sum();
+            throttledByServer = metrics.throttledByServer.sum();
+            throttledNanos = metrics.throttledNanos.sum();
+            rateDisconnects = metrics.rateDisconnects.sum();
+            oversizeDisconnects = metrics.oversizeDisconnects.sum();
+            fanOut = metrics.fanOut.snapshot();
+            deliveryLatency = metrics.deliveryLatency.snapshot();
+            search = metrics.search.snapshot();
+        }
+    }
+}
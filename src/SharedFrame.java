@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded protocol line or binary frame, shared read-only by every client it is delivered to.
+ *
+ * A broadcast encodes the message exactly once per protocol into a pooled buffer and hands the same frame to every
+ * recipient's outbound queue. The frame is reference counted: each recipient owns one reference and
+ * releases it once the bytes are written (or dropped), and the buffer goes back to the pool when
+ * the last reference is released. Holders must treat the bytes as read-only.
+ */
+final class SharedFrame {
+    // Shared by all frames on the server
+    private static final BufferPool POOL = new BufferPool();
+    // CharsetEncoder is not thread-safe, so encoders are borrowed from a small pool; kept per
+    // thread, there would be one per connection with a virtual thread for each
+    private static final ArrayBlockingQueue<CharsetEncoder> ENCODERS =
+            new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    // When the frame was encoded, which for a broadcast is right after the message was received
+    private final long createdNanos = System.nanoTime();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SharedFrame(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Encodes a line and its '\n' terminator into a pooled buffer.
+     *
+     * @param line The line to encode, without a terminator
+     * @return A frame holding one reference, owned by the caller
+     */
+    static SharedFrame encode(String line) {
+        // UTF-8 never needs more than three bytes per UTF-16 char
+        byte[] data = POOL.acquire(line.length() * 3 + 1);
+        ByteBuffer target = ByteBuffer.wrap(data);
+        encode(line, target);
+        target.put((byte) '\n');
+        return new SharedFrame(data, 0, target.position());
+    }
+
+    private static void encode(String text, ByteBuffer target) {
+        CharsetEncoder encoder = ENCODERS.poll();
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), target, true);
+        encoder.flush(target);
+        ENCODERS.offer(encoder);
+    }
+
+    /**
+     * Encodes a binary frame (see {@link FrameCodec}) into a pooled buffer.
+     *
+     * The payload is encoded first, after room for the largest possible header, because the length
+     * prefix depends on its encoded size; the header is then written right before it.
+     *
+     * @param compress Whether the recipient negotiated compression; payloads of at least
+     *                 {@link CompressionDictionary#THRESHOLD} bytes are then deflated if that
+     *                 makes them smaller
+     * @return A frame holding one reference, owned by the caller
+     */
+    static SharedFrame encodeBinary(byte type, long senderId, long timestamp, String payload, boolean compress) {
+        return encodeBinary(type, senderId, timestamp, -1, payload, compress);
+    }
+
+    /**
+     * Encodes a binary frame that also carries a message id.
+     *
+     * @param messageId The server-assigned message id, or -1 to leave it out
+     */
+    static SharedFrame encodeBinary(byte type, long senderId, long timestamp, long messageId, String payload,
+                                    boolean compress) {
+        int headerRoom = FrameCodec.MAX_LENGTH_PREFIX + FrameCodec.MAX_HEADER_BODY;
+        byte[] data = POOL.acquire(headerRoom + payload.length() * 3);
+        ByteBuffer target = ByteBuffer.wrap(data, headerRoom, data.length - headerRoom);
+        encode(payload, target);
+        int end = target.position();
+
+        int payloadLength = end - headerRoom;
+        if (compress && payloadLength >= CompressionDictionary.THRESHOLD) {
+            byte[] compressed = POOL.acquire(headerRoom + payloadLength);
+            int compressedLength = CompressionDictionary.compress(data, headerRoom, payloadLength, compressed, headerRoom);
+            if (compressedLength > 0) {
+                POOL.release(data);
+                data = compressed;
+                end = headerRoom + compressedLength;
+                type |= FrameCodec.COMPRESSED;
+            } else {
+                POOL.release(compressed);
+            }
+        }
+
+        int headerBody = 1 + FrameCodec.varintSize(senderId) + FrameCodec.varintSize(timestamp);
+        if (messageId >= 0) {
+            headerBody += FrameCodec.varintSize(messageId);
+            type |= FrameCodec.HAS_ID;
+        }
+        int bodyLength = headerBody + end - headerRoom;
+        int start = headerRoom - headerBody - FrameCodec.varintSize(bodyLength);
+        int position = FrameCodec.writeVarint(data, start, bodyLength);
+        data[position++] = type;
+        position = FrameCodec.writeVarint(data, position, senderId);
+        position = FrameCodec.writeVarint(data, position, timestamp);
+        if (messageId >= 0) {
+            FrameCodec.writeVarint(data, position, messageId);
+        }
+        return new SharedFrame(data, start, end - start);
+    }
+
+    /**
+     * Adds references for additional holders, e.g. once per recipient before a fan-out.
+     */
+    void retain(int count) {
+        references.addAndGet(count);
+    }
+
+    /**
+     * Drops one reference; the last release returns the buffer to the pool.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            POOL.release(data);
+        }
+    }
+
+    /**
+     * Returns the backing array; only {@link #length()} bytes from {@link #offset()} are meaningful.
+     */
+    byte[] array() {
+        return data;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the frame was encoded.
+     */
+    long createdNanos() {
+        return createdNanos;
+    }
+}
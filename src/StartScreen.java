@@ -1,7 +1,18 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.net.InetAddress;
 
+/**
+ * The first window: asks for a username, then either hosts a chat or joins one.
+ *
+ * Hosting starts a {@link ChatServer} inside this process on a background thread, with the
+ * options in the {@code chat.host.serverArgs} system property (default
+ * {@code --mode=virtual --log-dir=off}, so that hosting leaves no files behind),
+ * and opens the chat window once the server is listening. The host's own window talks to that
+ * server in memory rather than over a socket. With {@code -Dchat.host.stats=true}, it logs how long
+ * after clicking Host the server was listening and the first message arrived.
+ */
 public class StartScreen extends JFrame {
     private String selectedIP;
     private JTextField usernameField;
@@ -48,9 +59,39 @@ public class StartScreen extends JFrame {
         
         hostButton.addActionListener(e -> {
             if (validateUsername()) {
-                selectedIP = ChatUtils.getLocalIPAddress();
-                startChat(selectedIP, usernameField.getText().trim(), ChatUtils.ServerOption.HOST);
-                dispose();
+                // 0 unless the startup times are to be logged
+                long clickedNanos = Boolean.getBoolean("chat.host.stats") ? System.nanoTime() : 0;
+                hostButton.setEnabled(false);
+                joinButton.setEnabled(false);
+                String username = usernameField.getText().trim();
+                // Binding and opening the message log stay off the event dispatch thread
+                Thread.ofVirtual().name("host-startup").start(() -> {
+                    try {
+                        ChatServer server = ChatServer.start(ServerConfig.fromOptions(ChatUtils.parseOptions(
+                                System.getProperty("chat.host.serverArgs", "--mode=virtual --log-dir=off").split(" +"))));
+                        if (clickedNanos != 0) {
+                            System.out.printf("Hosting: server listening %.1f ms after clicking Host%n",
+                                    (System.nanoTime() - clickedNanos) / 1e6);
+                        }
+                        selectedIP = ChatUtils.getLocalIPAddress();
+                        SwingUtilities.invokeLater(() -> {
+                            new ChatClientGUI(selectedIP, username, server, clickedNanos).setVisible(true);
+                            dispose();
+                        });
+                    } catch (IOException | RuntimeException ex) {
+                        System.out.println("An error occurred: " + ex.getMessage());
+                        SwingUtilities.invokeLater(() -> {
+                            JOptionPane.showMessageDialog(
+                                this,
+                                "Could not start the server: " + ex.getMessage(),
+                                "Error",
+                                JOptionPane.ERROR_MESSAGE
+                            );
+                            hostButton.setEnabled(true);
+                            joinButton.setEnabled(true);
+                        });
+                    }
+                });
             }
         });
         
@@ -66,7 +107,7 @@ public class StartScreen extends JFrame {
                 if (ipAddress != null && !ipAddress.trim().isEmpty()) {
                     try {
                         InetAddress.getByName(ipAddress);
-                        startChat(ipAddress, usernameField.getText().trim(), ChatUtils.ServerOption.JOIN);
+                        startChat(ipAddress, usernameField.getText().trim());
                         dispose();
                     } catch (Exception ex) {
                         JOptionPane.showMessageDialog(
@@ -105,9 +146,9 @@ public class StartScreen extends JFrame {
         return true;
     }
     
-    private void startChat(String ipAddress, String username, ChatUtils.ServerOption serverOption) {
+    private void startChat(String ipAddress, String username) {
         SwingUtilities.invokeLater(() -> {
-            ChatClientGUI chatClient = new ChatClientGUI(ipAddress, username, serverOption);
+            ChatClientGUI chatClient = new ChatClientGUI(ipAddress, username, ChatUtils.ServerOption.JOIN);
             chatClient.setVisible(true);
         });
     }
@@ -0,0 +1,110 @@
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hands lines received by the network reader to the Swing event dispatch thread in batches.
+ *
+ * Posting one task per message lets a burst of thousands of messages flood the AWT event queue,
+ * with input and repaints waiting behind them. Instead, lines collect in a lock-free queue and at
+ * most one drain task is pending at a time: the first line after a quiet spell is shown right
+ * away, and lines arriving within a frame of the last drain wait for the end of that frame, then
+ * all go to the UI in a single call. A backlog of more than {@value #MAX_LINES_PER_UPDATE} lines is
+ * shown over consecutive updates, with other events handled in between.
+ *
+ * It counts lines per UI update and times each drain task on the event dispatch thread; with
+ * {@code -Dchat.client.uiStatsSeconds} set, it logs those figures at that interval.
+ */
+final class UiDispatcher {
+    private static final int DEFAULT_FRAME_MILLIS = 16;
+    // Beyond this, a backlog is shown over several updates so that input and painting get a turn in between
+    private static final int MAX_LINES_PER_UPDATE = 4096;
+
+    private final Consumer<List<String>> ui;
+    private final long frameNanos;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    // Set while a drain is scheduled or posted and has not yet started taking lines
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ui-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long lastDrainNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private volatile int largestUpdate;
+    private final LatencyHistogram drainTime = new LatencyHistogram();
+
+    /**
+     * @param ui Shows a batch of lines; called on the event dispatch thread
+     */
+    UiDispatcher(Consumer<List<String>> ui) {
+        this.ui = ui;
+        this.frameNanos = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.client.uiFrameMillis", DEFAULT_FRAME_MILLIS));
+        int statsSeconds = Integer.getInteger("chat.client.uiStatsSeconds", 0);
+        if (statsSeconds > 0) {
+            timer.scheduleAtFixedRate(() -> System.out.println(describe()), statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Queues a line for the UI. Safe to call from any thread.
+     */
+    void submit(String line) {
+        pending.add(line);
+        if (scheduled.compareAndSet(false, true)) {
+            long wait = lastDrainNanos + frameNanos - System.nanoTime();
+            if (wait <= 0) {
+                SwingUtilities.invokeLater(this::drain);
+            } else {
+                timer.schedule(() -> SwingUtilities.invokeLater(this::drain), wait, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        lastDrainNanos = start;
+        // Cleared before taking lines: one added after this is taken now or schedules the next drain
+        scheduled.set(false);
+        List<String> batch = new ArrayList<>();
+        for (String line = pending.poll(); line != null; line = pending.poll()) {
+            batch.add(line);
+            if (batch.size() == MAX_LINES_PER_UPDATE) {
+                if (scheduled.compareAndSet(false, true)) {
+                    // Queued behind whatever events arrived meanwhile
+                    SwingUtilities.invokeLater(this::drain);
+                }
+                break;
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        ui.accept(batch);
+        lines.add(batch.size());
+        updates.increment();
+        largestUpdate = Math.max(largestUpdate, batch.size());
+        drainTime.recordSince(start);
+    }
+
+    /**
+     * Summarizes the UI updates so far, e.g. for a log line.
+     */
+    String describe() {
+        long count = updates.sum();
+        LatencyHistogram.Snapshot times = drainTime.snapshot();
+        return String.format("UI updates: %d lines in %d updates (%.1f per update, at most %d), "
+                        + "update time p99 %.2f ms, max %.2f ms",
+                lines.sum(), count, count == 0 ? 0.0 : (double) lines.sum() / count, largestUpdate,
+                times.percentile(0.99) / 1e6, times.max() / 1e6);
+    }
+}